@@ -0,0 +1,99 @@
+package com.dallaway.jsptest;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks for reading a response body and searching it, with bodies
+ * from 1 KB to 10 MB of table-heavy HTML.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BodyBenchmark
+{
+
+  /** The size of the body, in bytes. */
+  @Param({ "1024", "102400", "10485760" })
+  public int body_size;
+
+  private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+  private byte[] body;
+  private Response response;
+  private Extractor rules;
+
+  @Setup
+  public void setUp()
+  {
+    body = page(body_size).getBytes(LATIN1);
+    response = new Response(new String(body, LATIN1), null, "HTTP/1.1 200 OK");
+    rules = new Extractor(new String[] { "<title>", "Order id: " }, new String[] { "</title>", "." });
+  }
+
+  /**
+   * Make an HTML page of about the given size: a table of orders, with the
+   * order id at the end.
+   *
+   * @param size The size in bytes.
+   * @return page The HTML.
+   */
+  static String page(int size)
+  {
+    StringBuffer page = new StringBuffer(size + 128);
+    page.append("<html><head><title>Your orders</title></head><body><table>\n");
+    for (int i=0; page.length() < size - 64; i++)
+      page.append("<tr><td>").append(i).append("</td><td>Widget</td><td class=\"price\">9.99</td></tr>\n");
+    page.append("</table>Order id: 42.</body></html>\n");
+    return page.toString();
+  }
+
+  /**
+   * Read a whole body from a stream into a string.
+   */
+  @Benchmark
+  public String readBody()
+  {
+    return new Response(new ByteArrayInputStream(body), LATIN1, new HeaderTable(), 200).getBody();
+  }
+
+  /**
+   * Read a body while looking for extractor pairs, which reads to the end
+   * as the order id is on the last line.
+   */
+  @Benchmark
+  public String[] readBodyWithExtractor() throws IOException
+  {
+    Response r = new Response(new ByteArrayInputStream(body), LATIN1, new HeaderTable(), 200);
+    r.readBody(rules);
+    return r.getExtracted();
+  }
+
+  /**
+   * Find the text between two markers, near the end of the body.
+   */
+  @Benchmark
+  public String getBetween()
+  {
+    return response.getBetween("Order id: ", ".");
+  }
+
+  /**
+   * Find every cell of the table.
+   */
+  @Benchmark
+  public String[] getBetweens()
+  {
+    return response.getBetweens("<td>", "</td>");
+  }
+
+}
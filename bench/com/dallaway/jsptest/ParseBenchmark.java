@@ -0,0 +1,90 @@
+package com.dallaway.jsptest;
+
+import java.io.*;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks for reading the parts of a response that aren't the body: the
+ * head (status line and headers), the status code and Set-Cookie lines.
+ *
+ * <p>
+ * Run with <code>ant bench</code>, which adds JMH's GC profiler so the
+ * allocation rate of each benchmark is reported alongside its time.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark
+{
+
+  /** The number of headers in the response head. */
+  @Param({ "5", "20", "100" })
+  public int header_count;
+
+  private ByteArrayInputStream head_in;
+  private HeadParser parser = new HeadParser();
+
+  @Setup
+  public void setUp() throws IOException
+  {
+    StringBuffer head = new StringBuffer("HTTP/1.1 200 OK\r\n");
+    head.append("Content-Type: text/html; charset=UTF-8\r\n");
+    head.append("Content-Length: 10240\r\n");
+    head.append("Set-Cookie: JSESSIONID=A1B2C3D4E5F6; Path=/shop\r\n");
+    head.append("Cache-Control: private, max-age=0\r\n");
+    head.append("Connection: keep-alive\r\n");
+    for (int i=5; i<header_count; i++) head.append("X-Header-").append(i).append(": value number ").append(i).append("\r\n");
+    head.append("\r\n");
+
+    head_in = new ByteArrayInputStream(head.toString().getBytes("ISO-8859-1"));
+  }
+
+  /**
+   * Parse a head, then look up the headers a session always needs.
+   */
+  @Benchmark
+  public long readHeaders() throws IOException
+  {
+    head_in.reset();
+    parser.parse(head_in);
+    HeaderTable headers = parser.getHeaders();
+    return headers.getLong("Content-Length") + (headers.contains("Connection", "close") ? 1 : 0) + headers.size();
+  }
+
+  /**
+   * Parse the status code from a status line.
+   */
+  @Benchmark
+  public int getStatusCode()
+  {
+    return new Response("", new Hashtable(), "HTTP/1.1 404 Not Found").getStatusCode();
+  }
+
+  /**
+   * Parse a typical Set-Cookie line, with an expiry date.
+   */
+  @Benchmark
+  public Cookie parseCookie()
+  {
+    return new Cookie("JSESSIONID=A1B2C3D4E5F6; Path=/shop; Domain=.example.com; Expires=Wed, 09 Jun 2027 10:18:14 GMT; HttpOnly");
+  }
+
+  /**
+   * Parse a Set-Cookie line with just a name and value.
+   */
+  @Benchmark
+  public Cookie parseSimpleCookie()
+  {
+    return new Cookie("test_name=test_value");
+  }
+
+}
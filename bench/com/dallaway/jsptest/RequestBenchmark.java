@@ -0,0 +1,115 @@
+package com.dallaway.jsptest;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks for whole requests through <code>Session</code>, against a
+ * <code>StandInServer</code> on the loopback interface, so the client is
+ * what's being measured.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark
+{
+
+  /**
+   * The stand-in server, shared by all benchmark threads.
+   */
+  @State(Scope.Benchmark)
+  public static class Server
+  {
+    /** The size of the body, in bytes. */
+    @Param({ "1024", "102400", "10485760" })
+    public int body_size;
+
+    /** The number of headers in each response. */
+    @Param({ "5", "100" })
+    public int header_count;
+
+    StandInServer server;
+    String url;
+
+    @Setup
+    public void start() throws IOException
+    {
+      StandInServer.Page page = new StandInServer.Page(BodyBenchmark.page(body_size));
+      page.addHeader("Content-Type", "text/html; charset=ISO-8859-1");
+      page.addCookie("JSESSIONID=A1B2C3D4E5F6; Path=/");
+      for (int i=4; i<header_count; i++) page.addHeader("X-Header-"+i, "value number "+i);
+
+      server = new StandInServer(0);
+      server.add("/orders.jsp", page);
+      server.start();
+      url = "http://127.0.0.1:"+server.getPort()+"/orders.jsp";
+    }
+
+    @TearDown
+    public void stop()
+    {
+      server.stop();
+    }
+  }
+
+  /**
+   * A session for each benchmark thread.
+   */
+  @State(Scope.Thread)
+  public static class User
+  {
+    Session keep_alive;
+    Session one_shot;
+
+    @Setup
+    public void start()
+    {
+      keep_alive = new Session();
+      keep_alive.setHTTPVersion("HTTP/1.1");
+      one_shot = new Session();
+    }
+
+    @TearDown
+    public void stop()
+    {
+      keep_alive.close();
+    }
+  }
+
+  /**
+   * A request on a kept-alive connection, reading the whole body.
+   */
+  @Benchmark
+  public String request(Server server, User user) throws IOException
+  {
+    return user.keep_alive.request(server.url).getBody();
+  }
+
+  /**
+   * A request on a new connection each time (HTTP/1.0).
+   */
+  @Benchmark
+  public String requestNewConnection(Server server, User user) throws IOException
+  {
+    return user.one_shot.request(server.url).getBody();
+  }
+
+  /**
+   * A request that stops reading once the title has been found, which
+   * leaves the connection to be closed rather than re-used.
+   */
+  @Benchmark
+  public String[] requestWithExtractor(Server server, User user) throws IOException
+  {
+    Extractor rules = new Extractor(new String[] { "<title>" }, new String[] { "</title>" });
+    return user.keep_alive.request(server.url, rules).getExtracted();
+  }
+
+}
@@ -0,0 +1,422 @@
+package com.dallaway.jsptest;
+
+import java.net.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A request being made on the shared <code>EventLoop</code>.
+ *
+ * <p>
+ * The request connects, writes and reads without blocking, collecting the
+ * response bytes as they arrive.  We only look at the response head far
+ * enough to know where the body ends; once it is all here the response is
+ * parsed by the session in exactly the same way as a blocking request, so
+ * cookies are handled the same way.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+class AsyncRequest
+{
+
+  private static final int BUFSIZ = 8192;
+
+  /** Most bytes of a response held while it arrives: bigger ones should be streamed. */
+  static final int MAX_RESPONSE = 256 * 1024 * 1024;
+
+  private Session session;
+  private URL url;
+  private InetSocketAddress address;
+  private ByteBuffer request;
+  private ResponseCache.Lookup lookup;
+  private CompletableFuture<Response> future;
+  private RequestTiming timing;
+
+  private SocketChannel channel;
+
+  // The response received so far.
+  private byte[] data = new byte[BUFSIZ];
+  private int len = 0;
+
+  // What we know about the response once the head has arrived.
+  private HeadParser head = new HeadParser();
+  private HeaderTable headers;
+  private int body_start = -1;
+  private int head_scan = 0;  // where to carry on looking for the end of the head
+  private boolean no_body = false;
+  private boolean chunked = false;
+  private long content_length = -1;
+
+  /** True once the response (or failure) has been handed to a worker. */
+  private boolean over = false;
+
+  /** Where the next chunk size line starts, for a chunked body. */
+  private int chunk_pos;
+
+  /**
+   * @param session The session making the request, which parses the response.
+   * @param url The URL requested.
+   * @param address The server to connect to.
+   * @param request The complete request to send.
+   * @param lookup What the cache had for the request, or null if there's no cache.
+   * @param future Completed with the response, or the reason there isn't one.
+   * @param timing Where to record how long each stage of the request takes.
+   */
+  AsyncRequest(Session session, URL url, InetSocketAddress address, ByteBuffer request, ResponseCache.Lookup lookup, CompletableFuture<Response> future, RequestTiming timing)
+  {
+    this.session = session;
+    this.url = url;
+    this.address = address;
+    this.request = request;
+    this.lookup = lookup;
+    this.future = future;
+    this.timing = timing;
+  }
+
+  /**
+   * Open the connection and register with the event loop's selector.
+   *
+   * @param selector The selector to register with.
+   */
+  void start(Selector selector)
+  {
+    if (future.isDone()) return; // Cancelled before we got going.
+
+    try
+    {
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+
+      if (channel.connect(address))
+      {
+        timing.setConnected(System.nanoTime());
+        channel.register(selector, SelectionKey.OP_WRITE, this);
+      }
+      else
+        channel.register(selector, SelectionKey.OP_CONNECT, this);
+    }
+    catch (Exception x)
+    {
+      fail(x);
+    }
+  }
+
+  /**
+   * Do whatever the channel is ready for.
+   *
+   * @param key The selection key for our channel.
+   * @param buffer A buffer to read into, shared with other requests on the loop.
+   */
+  void ready(SelectionKey key, ByteBuffer buffer)
+  {
+    if (future.isDone())
+    {
+      close(); // Cancelled.
+      return;
+    }
+
+    try
+    {
+      if (key.isConnectable())
+      {
+        channel.finishConnect();
+        timing.setConnected(System.nanoTime());
+        key.interestOps(SelectionKey.OP_WRITE);
+      }
+      else if (key.isWritable())
+      {
+        channel.write(request);
+        if (!request.hasRemaining())
+        {
+          timing.setWritten(System.nanoTime());
+          timing.setBytesSent(request.limit());
+          key.interestOps(SelectionKey.OP_READ);
+        }
+      }
+      else if (key.isReadable())
+      {
+        buffer.clear();
+        int num_read = channel.read(buffer);
+
+        if (num_read == -1)
+        {
+          finish();
+          return;
+        }
+
+        if (len == 0) timing.setFirstByte(System.nanoTime());
+        buffer.flip();
+        append(buffer);
+
+        if (isComplete()) finish();
+      }
+    }
+    catch (Exception x)
+    {
+      fail(x);
+    }
+  }
+
+  /**
+   * Add bytes read from the server to the response so far.
+   *
+   * @param buffer The bytes just read.
+   * @throws IOException Thrown if the response is too big to hold.
+   */
+  private void append(ByteBuffer buffer) throws IOException
+  {
+    int n = buffer.remaining();
+    if (len + n > data.length)
+    {
+      if (len + n > MAX_RESPONSE) throw tooBig();
+      byte[] bigger = new byte[(int)Math.min(MAX_RESPONSE, Math.max(data.length * 2L, len + n))];
+      System.arraycopy(data, 0, bigger, 0, len);
+      data = bigger;
+    }
+
+    buffer.get(data, len, n);
+    len += n;
+  }
+
+  /**
+   * Have we got the whole response?
+   *
+   * @return complete True if the body has ended, by length or by the last chunk.
+   * @throws IOException Thrown if the response framing is bad.
+   */
+  private boolean isComplete() throws IOException
+  {
+    if (body_start == -1 && !readHead()) return false;
+
+    if (no_body) return true;
+    if (chunked) return isChunkedComplete();
+    if (content_length >= 0) return len - body_start >= content_length;
+
+    return false; // The body runs until the server closes the connection.
+  }
+
+  /**
+   * Look for the end of the response head, and if it's here, find out
+   * how the body is framed.
+   *
+   * @return found True if the whole head has arrived.
+   */
+  private boolean readHead() throws IOException
+  {
+    int end = -1;
+    for (int i=head_scan; i<len-1; i++)
+    {
+      if (data[i] != '\n') continue;
+      if (data[i+1] == '\n') { end = i+2; break; }
+      if (i+2 < len && data[i+1] == '\r' && data[i+2] == '\n') { end = i+3; break; }
+    }
+
+    if (end == -1)
+    {
+      head_scan = Math.max(0, len-3);
+      return false;
+    }
+
+    body_start = end;
+    chunk_pos = end;
+    timing.setHeaders(System.nanoTime());
+
+    head.parse(new ByteArrayInputStream(data, 0, end));
+    headers = head.getHeaders();
+
+    int status = head.getStatusCode();
+    no_body = status == 204 || status == 304;
+    chunked = headers.contains("Transfer-Encoding", "chunked");
+    content_length = headers.getLong("Content-Length");
+    if (!no_body && content_length > MAX_RESPONSE - body_start) throw tooBig();
+
+    return true;
+  }
+
+  /**
+   * @return x The reason for giving up on a response too big to hold.
+   */
+  private IOException tooBig()
+  {
+    return new IOException("Response from "+url+" is over "+MAX_RESPONSE+" bytes: use Session.requestStream() instead");
+  }
+
+  /**
+   * Step over the chunks that have arrived, to see if the last one is here.
+   *
+   * @return complete True if the last chunk and trailers have arrived.
+   * @throws IOException Thrown if a chunk size is bad.
+   */
+  private boolean isChunkedComplete() throws IOException
+  {
+    while (true)
+    {
+      // Skip the line ending after the previous chunk.
+      while (chunk_pos < len && (data[chunk_pos] == '\r' || data[chunk_pos] == '\n')) chunk_pos++;
+
+      int eol = indexOfLF(chunk_pos);
+      if (eol == -1) return false;
+
+      String line = new String(data, chunk_pos, eol - chunk_pos, "ISO-8859-1");
+      int semi = line.indexOf(';');
+      if (semi != -1) line = line.substring(0, semi);
+
+      int size;
+      try
+      {
+        size = Integer.parseInt(line.trim(), 16);
+      }
+      catch (NumberFormatException nfx)
+      {
+        throw new IOException("Bad chunk size: "+line);
+      }
+
+      if (size == 0)
+      {
+        // Trailers, up to a blank line.
+        int p = eol + 1;
+        while (true)
+        {
+          int e = indexOfLF(p);
+          if (e == -1) return false;
+          if (e == p || (e == p+1 && data[p] == '\r')) return true;
+          p = e + 1;
+        }
+      }
+
+      if (len < eol + 1 + size) return false;
+      chunk_pos = eol + 1 + size;
+    }
+  }
+
+  /**
+   * @param from Where to start looking.
+   * @return index The index of the next LF in the data, or -1 if there isn't one yet.
+   */
+  private int indexOfLF(int from)
+  {
+    for (int i=from; i<len; i++)
+    {
+      if (data[i] == '\n') return i;
+    }
+    return -1;
+  }
+
+  /**
+   * The response is complete (or the server has closed the connection),
+   * so parse it and hand it over.
+   */
+  private void finish()
+  {
+    close();
+
+    timing.setBody(System.nanoTime());
+    timing.setBytesReceived(len);
+
+    if (len == 0)
+    {
+      fail(new EOFException("No response from server"));
+      return;
+    }
+
+    // Parsing and decoding the body, and whatever the caller does when the
+    // future completes, happen on a worker rather than the loop thread.
+    over = true;
+    EventLoop.getWorkers().execute(this::handOver);
+  }
+
+  /**
+   * Parse the response and complete the future.  Called on a worker thread,
+   * once the loop thread has finished with the request.
+   */
+  private void handOver()
+  {
+    try
+    {
+      if (headers == null)
+      {
+        // The server closed the connection part way through the head.
+        head.parse(new ByteArrayInputStream(data, 0, len));
+        headers = head.getHeaders();
+        body_start = len;
+      }
+
+      InputStream body = new ByteArrayInputStream(data, body_start, len - body_start);
+      Response res = session.readResponse(head, headers, body, url, lookup);
+      res.setTiming(timing);
+      future.complete(res);
+    }
+    catch (Throwable x)
+    {
+      future.completeExceptionally(x);
+    }
+  }
+
+  /**
+   * Give up on the request if it has run out of time.  Called on the loop thread.
+   *
+   * @param kind <code>RequestTimeoutException.CONNECT</code> (which only
+   * matters if we're still connecting) or <code>DEADLINE</code>.
+   */
+  void expire(int kind)
+  {
+    if (over || future.isDone())
+    {
+      close();
+      return;
+    }
+
+    if (kind == RequestTimeoutException.CONNECT)
+    {
+      if (timing.getConnectedNanos() != -1) return;
+      fail(new RequestTimeoutException(kind, "No connection to "+address+" in time"));
+    }
+    else
+      fail(new RequestTimeoutException(kind, "Request took longer than its deadline"));
+  }
+
+  /**
+   * Give up on the request after something unexpected went wrong with it.
+   * Called on the loop thread.
+   *
+   * @param x What went wrong.
+   */
+  void abort(Throwable x)
+  {
+    if (!over) fail(x);
+    else close();
+  }
+
+  /**
+   * Give up on the request.
+   *
+   * @param x Why we gave up.
+   */
+  private void fail(final Throwable x)
+  {
+    close();
+    over = true;
+    EventLoop.getWorkers().execute(() -> future.completeExceptionally(x));
+  }
+
+  /**
+   * Close the channel, if it's open.  Called on the loop thread.
+   */
+  void close()
+  {
+    if (channel == null) return;
+
+    try
+    {
+      channel.close();
+    }
+    catch (IOException iox)
+    {
+      // We're done with it either way.
+    }
+  }
+
+}
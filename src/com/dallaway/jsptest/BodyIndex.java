@@ -0,0 +1,125 @@
+package com.dallaway.jsptest;
+
+/**
+ * A q-gram position index over a response body, for pages that are
+ * searched many times.
+ *
+ * <p>
+ * Every position in the body is filed under a hash of the four characters
+ * starting there.  To find a string we look up the positions of its least
+ * common four characters and check just those, instead of scanning the whole
+ * body.  Strings shorter than four characters are found by a plain scan.
+ *
+ * <p>
+ * The index takes one <code>int</code> per character of body, plus the
+ * bucket table, so bodies longer than <code>MAX_LENGTH</code> are not indexed.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+class BodyIndex
+{
+
+  /** The q in q-gram: the number of characters hashed for each position. */
+  private static final int Q = 4;
+
+  /** The longest body we will index (16M characters, so 64MB of positions). */
+  static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+  private String body;
+  private int bits;        // log2 of the number of buckets
+  private int[] start;     // bucket b holds positions[start[b]] to positions[start[b+1]-1]
+  private int[] positions; // body positions, in ascending order within each bucket
+
+  /**
+   * Build an index.
+   *
+   * @param body The text to index, which must be no longer than <code>MAX_LENGTH</code>.
+   */
+  BodyIndex(String body)
+  {
+    this.body = body;
+
+    int n = body.length() - Q + 1;
+    if (n < 0) n = 0;
+
+    // About four positions to a bucket, within reason.
+    bits = 8;
+    while (bits < 20 && (1 << bits) < n / 4) bits++;
+    int buckets = 1 << bits;
+
+    // Counting sort of positions into buckets: count, then place.
+    start = new int[buckets + 1];
+    for (int i=0; i<n; i++) start[hash(body, i) + 1]++;
+    for (int b=0; b<buckets; b++) start[b+1] += start[b];
+
+    int[] next = new int[buckets];
+    System.arraycopy(start, 0, next, 0, buckets);
+
+    positions = new int[n];
+    for (int i=0; i<n; i++) positions[next[hash(body, i)]++] = i;
+  }
+
+  /**
+   * Find a string in the body, like <code>String.indexOf(String, int)</code>.
+   *
+   * @param text The text to look for.
+   * @param from Where to start looking.
+   * @return index The position of the first match at or after <code>from</code>, or -1.
+   */
+  int indexOf(String text, int from)
+  {
+    int len = text.length();
+    if (len < Q) return body.indexOf(text, from);
+    if (from < 0) from = 0;
+
+    // Use the q-gram of the text with the fewest positions.
+    int offset = 0;
+    int best = Integer.MAX_VALUE;
+    for (int k=0; k<=len-Q; k++)
+    {
+      int h = hash(text, k);
+      int size = start[h+1] - start[h];
+      if (size < best)
+      {
+        best = size;
+        offset = k;
+      }
+    }
+
+    int h = hash(text, offset);
+    int lo = start[h];
+    int hi = start[h+1];
+
+    // First position in the bucket that could be a match at or after from.
+    int target = from + offset;
+    while (lo < hi)
+    {
+      int mid = (lo + hi) >>> 1;
+      if (positions[mid] < target) lo = mid + 1;
+      else hi = mid;
+    }
+
+    for (int i=lo; i<start[h+1]; i++)
+    {
+      int candidate = positions[i] - offset;
+      if (body.startsWith(text, candidate)) return candidate;
+    }
+
+    return -1;
+  }
+
+  /**
+   * Hash the q characters starting at a position.
+   *
+   * @param s The string.
+   * @param i The position.
+   * @return bucket The bucket number.
+   */
+  private int hash(String s, int i)
+  {
+    int h = (s.charAt(i) << 24) ^ (s.charAt(i+1) << 16) ^ (s.charAt(i+2) << 8) ^ s.charAt(i+3);
+    return (h * 0x9E3779B1) >>> (32 - bits);
+  }
+
+}
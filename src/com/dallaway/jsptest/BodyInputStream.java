@@ -0,0 +1,174 @@
+package com.dallaway.jsptest;
+
+import java.io.*;
+
+/**
+ * The body of a response, as it arrives from the server.
+ *
+ * <p>
+ * When the whole body has been read the connection it came over is handed
+ * back to its pool (or closed, if it can't be re-used).  Closing the stream
+ * before the end of the body closes the connection, as it is no longer in a
+ * state to carry another request.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+class BodyInputStream extends InputStream
+{
+
+  private InputStream in;
+  private Connection connection;
+  private ConnectionPool pool;
+  private RequestTiming timing;
+  private RequestOptions control;
+  private long length = -1;
+
+  private boolean done = false;
+  private boolean at_end = false; // reached the end of the body, rather than closed early
+
+  /**
+   * @param in The stream of body bytes, ending where the body ends.
+   * @param connection The connection the body is being read from.
+   * @param pool The pool to return the connection to at the end of the body, or null
+   * if the connection should be closed.
+   * @param timing Where to record when the body has been read.
+   * @param control The request's timeouts, to stop once the body ends, or null if there are none.
+   */
+  BodyInputStream(InputStream in, Connection connection, ConnectionPool pool, RequestTiming timing, RequestOptions control)
+  {
+    this.in = in;
+    this.connection = connection;
+    this.pool = pool;
+    this.timing = timing;
+    this.control = control;
+
+    if (in instanceof FixedLengthInputStream) length = ((FixedLengthInputStream)in).remaining();
+  }
+
+  /**
+   * @return length The number of bytes in the body, or -1 if the server didn't say.
+   */
+  long getLength()
+  {
+    return length;
+  }
+
+  /**
+   * @return finished True if the whole body has been read.
+   */
+  boolean isFinished()
+  {
+    return at_end;
+  }
+
+  /**
+   * When a chunked body's data has been read, read the chunk that ends it.
+   * If it is the end, the connection is done with.
+   *
+   * @return finished True if the whole body has been read.
+   * @throws IOException Thrown if there was a problem reading the next chunk.
+   */
+  boolean finishChunks() throws IOException
+  {
+    if (done || !(in instanceof ChunkedInputStream)) return at_end;
+
+    try
+    {
+      if (((ChunkedInputStream)in).isLastChunk()) finished();
+      return at_end;
+    }
+    catch (IOException iox)
+    {
+      close();
+      throw control == null ? iox : control.translate(iox);
+    }
+  }
+
+  public int read() throws IOException
+  {
+    if (done) return -1;
+
+    try
+    {
+      int c = in.read();
+      if (c == -1 || allRead()) finished();
+      return c;
+    }
+    catch (IOException iox)
+    {
+      close();
+      throw control == null ? iox : control.translate(iox);
+    }
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    if (done) return -1;
+
+    try
+    {
+      int n = in.read(b, off, len);
+      if (n == -1 || allRead()) finished();
+      return n;
+    }
+    catch (IOException iox)
+    {
+      close();
+      throw control == null ? iox : control.translate(iox);
+    }
+  }
+
+  public int available() throws IOException
+  {
+    if (done) return 0;
+    return in.available();
+  }
+
+  /**
+   * Stop reading the body.  If the body hasn't been read in full, the
+   * connection is closed.
+   */
+  public void close()
+  {
+    if (done) return;
+    done = true;
+    timing.setBytesReceived(connection.getBytesReceived());
+    if (control != null) control.detach();
+    connection.close();
+  }
+
+  /**
+   * When we know the length of the body we can tell we've read it all without
+   * waiting for the end of the stream, and so release the connection sooner.
+   *
+   * @return all_read True if every byte of a body of known length has been read.
+   */
+  private boolean allRead()
+  {
+    return length != -1 && ((FixedLengthInputStream)in).remaining() == 0;
+  }
+
+  /**
+   * We've reached the end of the body, so we're done with the connection.
+   */
+  private void finished()
+  {
+    if (done) return;
+    done = true;
+    at_end = true;
+
+    timing.setBody(System.nanoTime());
+    timing.setBytesReceived(connection.getBytesReceived());
+
+    // Before the connection can go to another request.  If it was closed
+    // just as the body ended, it can't.
+    boolean reusable = control == null || control.detach();
+
+    if (pool != null && reusable)
+      pool.release(connection);
+    else
+      connection.close();
+  }
+
+}
@@ -0,0 +1,118 @@
+package com.dallaway.jsptest;
+
+import java.io.*;
+
+/**
+ * Reads a HTTP/1.1 "Transfer-Encoding: chunked" body, returning just the
+ * content of the chunks.
+ *
+ * <p>
+ * End of stream is reported after the last (zero length) chunk and any
+ * trailer headers have been read, leaving the underlying stream positioned at
+ * the start of the next response.  The underlying stream is never closed.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+class ChunkedInputStream extends InputStream
+{
+
+  private InputStream in;
+
+  private int remaining = 0;  // bytes left in the current chunk
+  private boolean eof = false;
+
+  /**
+   * @param in The stream positioned at the start of the chunked body.
+   */
+  ChunkedInputStream(InputStream in)
+  {
+    this.in = in;
+  }
+
+  public int read() throws IOException
+  {
+    if (!nextChunk()) return -1;
+
+    int c = in.read();
+    if (c == -1) throw new EOFException("Connection closed inside a chunk");
+    remaining--;
+    return c;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    if (len == 0) return 0;
+    if (!nextChunk()) return -1;
+
+    int n = in.read(b, off, Math.min(len, remaining));
+    if (n == -1) throw new EOFException("Connection closed inside a chunk");
+    remaining -= n;
+    return n;
+  }
+
+  public int available() throws IOException
+  {
+    if (eof) return 0;
+    return Math.min(in.available(), remaining);
+  }
+
+  /**
+   * Once the current chunk has been read, read the size of the next one, so
+   * the end of the body is seen without another read.
+   *
+   * @return last True if there are no more chunks.
+   * @throws IOException Thrown if the chunk framing was bad.
+   */
+  boolean isLastChunk() throws IOException
+  {
+    return remaining == 0 && !nextChunk();
+  }
+
+  /**
+   * Make sure there is something left to read in the current chunk,
+   * moving on to the next chunk if needed.
+   *
+   * @return more False if we have reached the end of the body.
+   * @throws IOException Thrown if the chunk framing was bad.
+   */
+  private boolean nextChunk() throws IOException
+  {
+    if (eof) return false;
+    if (remaining > 0) return true;
+
+    String line = Connection.readLine(in);
+
+    // Every chunk after the first is preceeded by the CR LF ending the previous one.
+    if (line != null && line.length() == 0) line = Connection.readLine(in);
+    if (line == null) throw new EOFException("Connection closed before end of chunked body");
+
+    int semi = line.indexOf(';'); // Ignore any chunk extensions.
+    if (semi != -1) line = line.substring(0, semi);
+
+    try
+    {
+      remaining = Integer.parseInt(line.trim(), 16);
+    }
+    catch (NumberFormatException nfx)
+    {
+      throw new IOException("Bad chunk size: "+line);
+    }
+
+    if (remaining == 0)
+    {
+      // Skip trailer headers up to the blank line ending the body.
+      while (true)
+      {
+        line = Connection.readLine(in);
+        if (line == null || line.length() == 0) break;
+      }
+
+      eof = true;
+      return false;
+    }
+
+    return true;
+  }
+
+}
@@ -0,0 +1,398 @@
+package com.dallaway.jsptest;
+
+import java.net.*;
+import java.io.*;
+
+/**
+ * A client socket to a HTTP server, together with the buffered streams
+ * wrapped around it.
+ *
+ * <p>
+ * Connections are handed out by a <code>ConnectionPool</code>.  Once a
+ * response has been read in full the connection can be given back to the
+ * pool, which is how HTTP/1.1 keep-alive re-uses a socket for many requests.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+class Connection
+{
+
+  private static final int BUFSIZ = 8192;
+
+  private Socket socket;
+  private InputStream in;
+  private OutputStream out;
+
+  /** Counts the bytes coming off the socket, below the buffering. */
+  private Meter meter;
+
+  /** Parses each response head, re-used for every response. */
+  private HeadParser head = new HeadParser();
+
+  /** When the host name was resolved, and the socket connected (System.nanoTime). */
+  private long resolved;
+  private long connected;
+
+  /** The pool key ("host:port") this connection belongs to. */
+  private String key;
+
+  /** When this connection was last handed back to a pool (ms). */
+  private long last_used;
+
+  /** True once this connection has carried at least one request. */
+  private boolean reused = false;
+
+  /** The socket's read timeout (ms), zero for none. */
+  private int read_timeout = 0;
+
+  /**
+   * Open a new connection.
+   *
+   * @param host The host to connect to.
+   * @param port The port to connect to.
+   * @throws IOException Thrown if the connection could not be made.
+   */
+  Connection(String host, int port) throws IOException
+  {
+    this(host, port, 0);
+  }
+
+  /**
+   * Open a new connection, giving up if it takes too long.
+   *
+   * @param host The host to connect to.
+   * @param port The port to connect to.
+   * @param connect_timeout How long to wait, in milliseconds, or zero to wait as long as it takes.
+   * @throws RequestTimeoutException Thrown if the connection took too long.
+   * @throws IOException Thrown if the connection could not be made.
+   */
+  Connection(String host, int port, int connect_timeout) throws IOException
+  {
+    InetAddress address = Resolver.getShared().resolve(host);
+    resolved = System.nanoTime();
+    socket = new Socket();
+    try
+    {
+      socket.connect(new InetSocketAddress(address, port), connect_timeout);
+    }
+    catch (SocketTimeoutException stx)
+    {
+      socket.close();
+      throw new RequestTimeoutException(RequestTimeoutException.CONNECT, "No connection to "+host+":"+port+" after "+connect_timeout+"ms");
+    }
+    connected = System.nanoTime();
+
+    meter = new Meter(socket.getInputStream());
+    in = new ReceiveBuffer(meter, BUFSIZ);
+    out = new BufferedOutputStream(socket.getOutputStream(), BUFSIZ);
+    key = ConnectionPool.key(host, port);
+    last_used = System.currentTimeMillis();
+  }
+
+  /**
+   * @return in The (buffered) stream of bytes from the server.
+   */
+  InputStream getInputStream()
+  {
+    return in;
+  }
+
+  /**
+   * @return out The (buffered) stream of bytes to the server.
+   */
+  OutputStream getOutputStream()
+  {
+    return out;
+  }
+
+  /**
+   * @return head The parser for response heads on this connection.
+   */
+  HeadParser getHeadParser()
+  {
+    return head;
+  }
+
+  /**
+   * @return key The "host:port" key used to pool this connection.
+   */
+  String getKey()
+  {
+    return key;
+  }
+
+  /**
+   * @return reused True if this connection has already carried a request.
+   */
+  boolean isReused()
+  {
+    return reused;
+  }
+
+  /**
+   * @return resolved When the host name was resolved, as a <code>System.nanoTime()</code> value.
+   */
+  long getResolvedTime()
+  {
+    return resolved;
+  }
+
+  /**
+   * @return connected When the socket was connected, as a <code>System.nanoTime()</code> value.
+   */
+  long getConnectedTime()
+  {
+    return connected;
+  }
+
+  /**
+   * Set how long a read waits for the server to send something.
+   *
+   * @param millis The timeout in milliseconds, zero for none.
+   * @throws IOException Thrown if the socket won't take the timeout.
+   */
+  void setReadTimeout(int millis) throws IOException
+  {
+    if (millis == read_timeout) return;
+    socket.setSoTimeout(millis);
+    read_timeout = millis;
+  }
+
+  /**
+   * Start counting the bytes of a new response.
+   */
+  void startResponse()
+  {
+    meter.count = 0;
+    meter.first_byte = -1;
+  }
+
+  /**
+   * @return bytes The number of bytes read from the server since <code>startResponse()</code>.
+   */
+  long getBytesReceived()
+  {
+    return meter.count;
+  }
+
+  /**
+   * @return when When the first byte arrived after <code>startResponse()</code>
+   * (from <code>System.nanoTime()</code>), or -1 if nothing has arrived.
+   */
+  long getFirstByteTime()
+  {
+    return meter.first_byte;
+  }
+
+  /**
+   * Note that this connection has been returned to a pool, ready for the
+   * next request.
+   */
+  void released()
+  {
+    reused = true;
+    last_used = System.currentTimeMillis();
+  }
+
+  /**
+   * Has this connection been sitting idle for longer than a given time?
+   *
+   * @param timeout The idle time allowed, in milliseconds.
+   * @param now The current time, in milliseconds.
+   * @return expired True if the connection has been idle too long.
+   */
+  boolean isExpired(long timeout, long now)
+  {
+    return now - last_used > timeout;
+  }
+
+  /**
+   * Check whether the server has closed (or is about to close) an idle connection.
+   * <p>
+   * We can't tell this from the socket state alone, so we briefly try
+   * to read from it: an idle HTTP connection should have nothing to read, so
+   * end-of-stream (or any data at all) means the connection can't be used.
+   *
+   * @return stale True if the connection should not be used for a new request.
+   */
+  boolean isStale()
+  {
+    if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown())
+      return true;
+
+    try
+    {
+      if (in.available() > 0) return true; // Unexpected bytes, we'd be out of step.
+
+      int timeout = socket.getSoTimeout();
+      socket.setSoTimeout(1);
+      try
+      {
+        // End of stream, or data we didn't ask for: either way it's no use.
+        in.read();
+        return true;
+      }
+      catch (SocketTimeoutException stx)
+      {
+        return false; // Nothing to read: the connection is alive and idle.
+      }
+      finally
+      {
+        if (!socket.isClosed()) socket.setSoTimeout(timeout);
+      }
+    }
+    catch (IOException iox)
+    {
+      return true;
+    }
+  }
+
+  /**
+   * Read a single line from a HTTP byte stream.  Header lines are
+   * ISO-8859-1 text, ended by CR LF (or a bare LF from less careful servers).
+   *
+   * @param in The stream to read from.
+   * @return line The line, without the line ending, or null if the stream ended first.
+   * @throws IOException Thrown if there was an error reading from the stream.
+   */
+  static String readLine(InputStream in) throws IOException
+  {
+    StringBuffer line = new StringBuffer();
+
+    while (true)
+    {
+      int c = in.read();
+      if (c == -1)
+      {
+        if (line.length() == 0) return null;
+        break;
+      }
+
+      if (c == '\n') break;
+      if (c != '\r') line.append((char)c);
+    }
+
+    return line.toString();
+  }
+
+  /**
+   * Close the connection.  Errors are ignored: we're done with the socket
+   * either way.
+   */
+  void close()
+  {
+    try
+    {
+      socket.close();
+    }
+    catch (IOException iox)
+    {
+      // Nothing more we can do.
+    }
+  }
+
+  /**
+   * A buffer over the bytes from the socket.  Unlike a
+   * <code>BufferedInputStream</code> it doesn't lock on every read, which
+   * matters as response heads are parsed a byte at a time.  Only one thread
+   * reads from a connection at once.
+   */
+  private static class ReceiveBuffer extends InputStream
+  {
+
+    private InputStream in;
+    private byte[] buf;
+    private int pos = 0;
+    private int limit = 0;
+
+    ReceiveBuffer(InputStream in, int size)
+    {
+      this.in = in;
+      this.buf = new byte[size];
+    }
+
+    public int read() throws IOException
+    {
+      if (pos == limit && !fill()) return -1;
+      return buf[pos++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      if (len == 0) return 0;
+
+      if (pos == limit)
+      {
+        // Big reads skip the buffer.
+        if (len >= buf.length) return in.read(b, off, len);
+        if (!fill()) return -1;
+      }
+
+      int n = Math.min(len, limit - pos);
+      System.arraycopy(buf, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+
+    public int available() throws IOException
+    {
+      return (limit - pos) + in.available();
+    }
+
+    public void close() throws IOException
+    {
+      in.close();
+    }
+
+    /**
+     * @return filled False if the stream has ended.
+     */
+    private boolean fill() throws IOException
+    {
+      int n = in.read(buf, 0, buf.length);
+      if (n <= 0) return false;
+      pos = 0;
+      limit = n;
+      return true;
+    }
+
+  }
+
+  /**
+   * Counts the bytes read from the socket, and notes when the first arrived.
+   */
+  private static class Meter extends FilterInputStream
+  {
+
+    long count = 0;
+    long first_byte = -1;
+
+    Meter(InputStream in)
+    {
+      super(in);
+    }
+
+    public int read() throws IOException
+    {
+      int c = in.read();
+      if (c != -1) counted(1);
+      return c;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      int n = in.read(b, off, len);
+      if (n > 0) counted(n);
+      return n;
+    }
+
+    private void counted(int n)
+    {
+      if (first_byte == -1) first_byte = System.nanoTime();
+      count += n;
+    }
+
+  }
+
+}
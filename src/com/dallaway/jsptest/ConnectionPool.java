@@ -0,0 +1,195 @@
+package com.dallaway.jsptest;
+
+import java.util.Hashtable;
+import java.util.Enumeration;
+import java.util.Vector;
+
+import java.io.*;
+
+/**
+ * Idle HTTP/1.1 connections, grouped by host and port.
+ *
+ * <p>
+ * A session asks the pool for a connection, makes its request, and (if the
+ * server agreed to keep the connection alive) hands it back.  At most
+ * <code>max_idle</code> connections are kept per host, and connections idle for
+ * longer than the idle timeout are closed rather than re-used.  A connection
+ * that has been idle for a while is checked before re-use in case the server
+ * has closed it in the meantime.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+class ConnectionPool
+{
+
+  /** Default maximum number of idle connections kept per host. */
+  static final int DEFAULT_MAX_IDLE = 4;
+
+  /** Default time an idle connection is kept for, in milliseconds. */
+  static final long DEFAULT_IDLE_TIMEOUT = 15000;
+
+  /** Connections idle for less than this (ms) are re-used without a stale check. */
+  private static final long STALE_CHECK_AFTER = 1000;
+
+  private Hashtable idle = new Hashtable(); // "host:port" -> Vector of Connection
+
+  private int max_idle = DEFAULT_MAX_IDLE;
+  private long idle_timeout = DEFAULT_IDLE_TIMEOUT;
+
+  /**
+   * Build the key used to group connections.
+   *
+   * @param host The host name.
+   * @param port The port number.
+   * @return key The key, e.g., "127.0.0.1:8080".
+   */
+  static String key(String host, int port)
+  {
+    return host + ":" + port;
+  }
+
+  /**
+   * Get a connection to a server, re-using an idle one if possible.
+   *
+   * @param host The host to connect to.
+   * @param port The port to connect to.
+   * @return connection An open connection.
+   * @throws IOException Thrown if a new connection could not be made.
+   */
+  Connection get(String host, int port) throws IOException
+  {
+    return get(host, port, 0);
+  }
+
+  /**
+   * Get a connection to a host, re-using an idle one if we have it.
+   *
+   * @param host The host to connect to.
+   * @param port The port to connect to.
+   * @param connect_timeout How long to wait for a new connection, in milliseconds, or zero for no limit.
+   * @return connection A connection, re-used or new.
+   * @throws IOException Thrown if a new connection could not be made.
+   */
+  Connection get(String host, int port, int connect_timeout) throws IOException
+  {
+    String key = key(host, port);
+
+    while (true)
+    {
+      Connection c = poll(key);
+      if (c == null) break;
+
+      // Checked outside the lock, as the stale check touches the network.
+      // The check costs a millisecond or so, so for a connection that was in
+      // use moments ago we skip it and rely on retrying a failed request.
+      long now = System.currentTimeMillis();
+      if (c.isExpired(idle_timeout, now) || (c.isExpired(STALE_CHECK_AFTER, now) && c.isStale()))
+      {
+        c.close();
+        continue;
+      }
+
+      return c;
+    }
+
+    return new Connection(host, port, connect_timeout);
+  }
+
+  /**
+   * Take the most recently used idle connection for a host.
+   *
+   * @param key The "host:port" key.
+   * @return connection An idle connection, or null if there are none.
+   */
+  private synchronized Connection poll(String key)
+  {
+    Vector connections = (Vector)idle.get(key);
+    if (connections == null || connections.size() == 0) return null;
+
+    int last = connections.size() - 1;
+    Connection c = (Connection)connections.elementAt(last);
+    connections.removeElementAt(last);
+    return c;
+  }
+
+  /**
+   * Hand back a connection that is ready for another request.  If we already
+   * have enough idle connections for the host, the connection is closed.
+   *
+   * @param c The connection to return to the pool.
+   */
+  synchronized void release(Connection c)
+  {
+    Vector connections = (Vector)idle.get(c.getKey());
+    if (connections == null)
+    {
+      connections = new Vector();
+      idle.put(c.getKey(), connections);
+    }
+
+    if (connections.size() >= max_idle)
+    {
+      c.close();
+      return;
+    }
+
+    c.released();
+    connections.addElement(c);
+  }
+
+  /**
+   * Set the maximum number of idle connections kept for each host.
+   *
+   * @param max_idle The number of connections, zero to disable re-use.
+   */
+  synchronized void setMaxIdle(int max_idle)
+  {
+    this.max_idle = max_idle;
+  }
+
+  /**
+   * @return max_idle The maximum number of idle connections kept for each host.
+   */
+  synchronized int getMaxIdle()
+  {
+    return max_idle;
+  }
+
+  /**
+   * Set how long an idle connection is kept before being closed.
+   *
+   * @param millis The idle timeout, in milliseconds.
+   */
+  synchronized void setIdleTimeout(long millis)
+  {
+    this.idle_timeout = millis;
+  }
+
+  /**
+   * @return millis How long an idle connection is kept for, in milliseconds.
+   */
+  synchronized long getIdleTimeout()
+  {
+    return idle_timeout;
+  }
+
+  /**
+   * Close all idle connections.
+   */
+  synchronized void close()
+  {
+    Enumeration e = idle.elements();
+    while (e.hasMoreElements())
+    {
+      Vector connections = (Vector)e.nextElement();
+      for (int i=0; i<connections.size(); i++)
+      {
+        ((Connection)connections.elementAt(i)).close();
+      }
+    }
+
+    idle.clear();
+  }
+
+}
@@ -1,20 +1,22 @@
 package com.dallaway.jsptest;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
 /**
  * Container for a HTTP cookie.
  *
  * <p>
- * Note that this is an incomplete implementation for use in JSP Test.  In
- * particular we do not yet implement domain, path or expiry.
- *
- * <p>
- * We will need to add expiry if your application replies on removing
- * cookies by setting an expiry date that has passed.
- * <p>
+ * The Domain, Path, Expires and Max-Age attributes of a Set-Cookie line are
+ * understood, so a session only sends a cookie to the hosts and paths it
+ * belongs to, and forgets it when it expires.  Other attributes (such as
+ * Secure) are ignored.
  *
  * <p>
- * Don't use this in a real client application because we don't even check domain
- * when sending cookies.
+ * A cookie made with <code>Cookie(name, value)</code> has no domain or path,
+ * and is sent with every request.
  *
  * @author  $Author: richard $
  * @version $Revision: 1.2 $  $Date: 2000/08/18 09:22:49 $
@@ -26,10 +28,25 @@ public class Cookie
   private String name;
   private String value;
 
+  private String domain = null;   // lower case, without a leading dot
+  private boolean host_only = false; // only for the host that set it, not its sub-domains
+  private String path = null;
+  private long expires = -1;      // ms since 1970, or -1 for the end of the session
+
+  /** The date formats seen in Expires attributes. */
+  private static final String[] DATE_FORMATS =
+  {
+    "EEE, dd MMM yyyy HH:mm:ss zzz",  // RFC 1123
+    "EEE, dd-MMM-yyyy HH:mm:ss zzz",  // Netscape
+    "EEEE, dd-MMM-yy HH:mm:ss zzz",   // RFC 850
+    "EEE MMM d HH:mm:ss yyyy"         // asctime
+  };
+
   /**
    * Construct a new cookie from a HTTP response "set-cookie:" header.
    * <p>
-   * Note that expiry and path attributes are ignored.
+   * Max-Age takes priority over Expires, and a cookie whose expiry has passed
+   * tells the session to forget any cookie of the same name, domain and path.
    *
    * @param set_line  The HTTP response, excluding the "set-cookie" part.
    */
@@ -54,6 +71,48 @@ public class Cookie
 
     name = assignment.substring(0, q);
     value = assignment.substring(q+1);
+
+    // The attributes: ; name=value ; name ...
+    boolean max_age_set = false;
+    while (e < set_line.length())
+    {
+      int s = e + 1;
+      e = set_line.indexOf(";", s);
+      if (e == -1) e = set_line.length();
+
+      String attribute = set_line.substring(s, e);
+      int eq = attribute.indexOf("=");
+      String attr_name = (eq == -1 ? attribute : attribute.substring(0, eq)).trim().toLowerCase();
+      String attr_value = eq == -1 ? "" : attribute.substring(eq+1).trim();
+
+      if ("domain".equals(attr_name) && attr_value.length() > 0)
+      {
+        domain = attr_value.toLowerCase();
+        if (domain.startsWith(".")) domain = domain.substring(1);
+      }
+      else if ("path".equals(attr_name) && attr_value.startsWith("/"))
+      {
+        path = attr_value;
+      }
+      else if ("max-age".equals(attr_name))
+      {
+        try
+        {
+          long seconds = Long.parseLong(attr_value);
+          expires = seconds <= 0 ? 0 : System.currentTimeMillis() + seconds * 1000;
+          max_age_set = true;
+        }
+        catch (NumberFormatException nfx)
+        {
+          // Ignore a Max-Age we can't read.
+        }
+      }
+      else if ("expires".equals(attr_name) && !max_age_set)
+      {
+        long when = parseDate(attr_value);
+        if (when != -1) expires = when;
+      }
+    }
   }
 
   /**
@@ -91,6 +150,150 @@ public class Cookie
   }
 
 
+  /**
+   * Get the domain this cookie is sent to.
+   *
+   * @return domain The domain (e.g., "example.com"), or null if the cookie is sent to every host.
+   */
+  public String getDomain()
+  {
+    return domain;
+  }
+
+
+  /**
+   * Get the path this cookie is sent to.
+   *
+   * @return path The path (e.g., "/shop"), or null if the cookie is sent for every path.
+   */
+  public String getPath()
+  {
+    return path;
+  }
+
+
+  /**
+   * Get the time this cookie expires.
+   *
+   * @return expires The expiry time, in milliseconds since 1970, or -1 if the
+   * cookie lasts as long as the session.
+   */
+  public long getExpires()
+  {
+    return expires;
+  }
+
+
+  /**
+   * Has this cookie expired?
+   *
+   * @param now The current time, in milliseconds since 1970.
+   * @return expired True if the cookie should no longer be sent.
+   */
+  public boolean isExpired(long now)
+  {
+    return expires != -1 && expires <= now;
+  }
+
+
+  /**
+   * Fill in the domain and path for a cookie set by a server without them.
+   * Without a Domain the cookie only goes back to the host that set it, and
+   * without a Path it goes to the "directory" of the request that set it.
+   *
+   * @param host The host of the request that set the cookie.
+   * @param request_path The path of the request that set the cookie.
+   */
+  void setDefaults(String host, String request_path)
+  {
+    if (domain == null)
+    {
+      domain = host.toLowerCase();
+      host_only = true;
+    }
+
+    if (path == null)
+    {
+      int slash = request_path == null ? -1 : request_path.lastIndexOf('/');
+      path = slash <= 0 ? "/" : request_path.substring(0, slash);
+    }
+  }
+
+
+  /**
+   * Should this cookie be sent to a host?  The cookie must be for the
+   * host, or (unless only for the host that set it) a domain the host is in.
+   *
+   * @param host The host, in lower case.
+   * @return match True if the cookie belongs to the host.
+   */
+  boolean domainMatches(String host)
+  {
+    if (domain == null || domain.equals(host)) return true;
+    if (host_only) return false;
+    return host.endsWith(domain) && host.charAt(host.length() - domain.length() - 1) == '.';
+  }
+
+
+  /**
+   * Is this cookie the same as another in every way: name, value, domain,
+   * path and expiry?
+   *
+   * @param c The other cookie.
+   * @return same True if adding one in place of the other would change nothing.
+   */
+  boolean sameAs(Cookie c)
+  {
+    return name.equals(c.name) && same(value, c.value) && same(domain, c.domain)
+      && host_only == c.host_only && same(path, c.path) && expires == c.expires;
+  }
+
+  private static boolean same(String a, String b)
+  {
+    return a == null ? b == null : a.equals(b);
+  }
+
+
+  /**
+   * Should this cookie be sent with a request for a path?
+   *
+   * @param request_path The path of the request, e.g., "/shop/basket.jsp".
+   * @return match True if the cookie path is the request path, or a "directory" above it.
+   */
+  boolean pathMatches(String request_path)
+  {
+    if (path == null || path.equals(request_path)) return true;
+    if (!request_path.startsWith(path)) return false;
+    return path.endsWith("/") || request_path.charAt(path.length()) == '/';
+  }
+
+
+  /**
+   * Parse the date of an Expires attribute.
+   *
+   * @param date The date text.
+   * @return when The time in milliseconds since 1970, or -1 if the date can't be read.
+   */
+  private static long parseDate(String date)
+  {
+    for (int i=0; i<DATE_FORMATS.length; i++)
+    {
+      SimpleDateFormat format = new SimpleDateFormat(DATE_FORMATS[i], Locale.US);
+      format.setTimeZone(TimeZone.getTimeZone("GMT"));
+      try
+      {
+        return format.parse(date).getTime();
+      }
+      catch (ParseException px)
+      {
+        // Try the next format.
+      }
+    }
+
+    return -1;
+  }
+
+
   /**
    * Convert the (name,value) pair into a string suitable for
    * sending to the server.
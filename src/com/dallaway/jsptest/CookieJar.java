@@ -0,0 +1,314 @@
+package com.dallaway.jsptest;
+
+import java.util.Hashtable;
+import java.util.Enumeration;
+import java.util.Vector;
+
+/**
+ * The cookies held by a session.
+ *
+ * <p>
+ * Cookies are filed by registrable domain (roughly, the last two labels of
+ * the host name, so "www.example.com" and "shop.example.com" share a bucket),
+ * then by path.  Finding the cookies for a request means looking in one
+ * bucket for each "directory" of the request path, rather than checking
+ * every cookie.  Cookies without a domain (added by hand) are sent to every
+ * host.
+ *
+ * <p>
+ * Expired cookies are skipped when looking up cookies, and dropped by
+ * <code>evictExpired()</code>, rather than by a timer.
+ *
+ * <p>
+ * A jar is only changed before it is shared.  To change the cookies the
+ * session changes a copy and then publishes that, so any number of threads
+ * can read a jar without locking.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+class CookieJar
+{
+
+  /** The bucket for cookies sent to every host. */
+  private static final String ANY_HOST = "";
+
+  private Hashtable domains = new Hashtable(); // registrable domain -> (path -> Vector of Cookie)
+  private Vector all = new Vector();           // every cookie, newest first
+
+  /** The earliest expiry time of any cookie in the jar (ms), or Long.MAX_VALUE. */
+  private long next_expiry = Long.MAX_VALUE;
+
+  /**
+   * @return jar A copy of this jar, which can be changed without changing this one.
+   */
+  CookieJar copy()
+  {
+    CookieJar jar = new CookieJar();
+    jar.all = (Vector)all.clone();
+    jar.next_expiry = next_expiry;
+
+    Enumeration d = domains.keys();
+    while (d.hasMoreElements())
+    {
+      Object domain = d.nextElement();
+      Hashtable paths = (Hashtable)domains.get(domain);
+      Hashtable copy = new Hashtable();
+
+      Enumeration p = paths.keys();
+      while (p.hasMoreElements())
+      {
+        Object path = p.nextElement();
+        copy.put(path, ((Vector)paths.get(path)).clone());
+      }
+
+      jar.domains.put(domain, copy);
+    }
+
+    return jar;
+  }
+
+  /**
+   * @return when The earliest time (ms) any cookie in the jar expires, or
+   * <code>Long.MAX_VALUE</code> if none do.
+   */
+  long nextExpiry()
+  {
+    return next_expiry;
+  }
+
+  /**
+   * Add a cookie, replacing any with the same name, domain and path.  An
+   * already expired cookie just removes the one it replaces.
+   *
+   * @param c The cookie to add.
+   */
+  void add(Cookie c)
+  {
+    Hashtable paths = (Hashtable)domains.get(bucket(c));
+    if (paths == null)
+    {
+      paths = new Hashtable();
+      domains.put(bucket(c), paths);
+    }
+
+    String path = c.getPath() == null ? "/" : c.getPath();
+    Vector cookies = (Vector)paths.get(path);
+    if (cookies == null)
+    {
+      cookies = new Vector();
+      paths.put(path, cookies);
+    }
+
+    for (int i=0; i<cookies.size(); i++)
+    {
+      Cookie old = (Cookie)cookies.elementAt(i);
+      if (old.getName().equals(c.getName()) && same(old.getDomain(), c.getDomain()))
+      {
+        cookies.removeElementAt(i);
+        all.removeElement(old);
+        break;
+      }
+    }
+
+    if (c.isExpired(System.currentTimeMillis())) return;
+
+    cookies.insertElementAt(c, 0);
+    all.insertElementAt(c, 0);
+    if (c.getExpires() != -1 && c.getExpires() < next_expiry) next_expiry = c.getExpires();
+  }
+
+  /**
+   * @param c A cookie.
+   * @return held True if the jar already has the cookie, with the same value
+   * and expiry, so adding it would change nothing.
+   */
+  boolean holds(Cookie c)
+  {
+    Hashtable paths = (Hashtable)domains.get(bucket(c));
+    if (paths == null) return false;
+
+    Vector cookies = (Vector)paths.get(c.getPath() == null ? "/" : c.getPath());
+    if (cookies == null) return false;
+
+    for (int i=0; i<cookies.size(); i++)
+    {
+      Cookie old = (Cookie)cookies.elementAt(i);
+      if (old.getName().equals(c.getName()) && same(old.getDomain(), c.getDomain())) return old.sameAs(c);
+    }
+
+    return false;
+  }
+
+  /**
+   * @param now The current time (ms).
+   * @return cookies Every cookie in the jar, newest first.
+   */
+  Cookie[] getCookies(long now)
+  {
+    Vector live = new Vector();
+    for (int i=0; i<all.size(); i++)
+    {
+      Cookie c = (Cookie)all.elementAt(i);
+      if (!c.isExpired(now)) live.addElement(c);
+    }
+
+    Cookie[] toRet = new Cookie[live.size()];
+    live.copyInto(toRet);
+    return toRet;
+  }
+
+  /**
+   * Find a cookie by name.
+   *
+   * @param name The name of the cookie.
+   * @param now The current time (ms).
+   * @return cookie The newest cookie with the name, or null if there isn't one.
+   */
+  Cookie get(String name, long now)
+  {
+    for (int i=0; i<all.size(); i++)
+    {
+      Cookie c = (Cookie)all.elementAt(i);
+      if (c.getName().equals(name) && !c.isExpired(now)) return c;
+    }
+
+    return null;
+  }
+
+  /**
+   * Build the value of the Cookie: header for a request.  Cookies with longer
+   * paths come first.
+   *
+   * @param host The host the request is for.
+   * @param path The path of the request, e.g., "/shop/basket.jsp".
+   * @param now The current time (ms).
+   * @return line The cookies, e.g., "a=1; b=2", or null if there are none to send.
+   */
+  String getCookieLine(String host, String path, long now)
+  {
+    host = host.toLowerCase();
+    Hashtable for_host = (Hashtable)domains.get(registrableDomain(host));
+    Hashtable for_any = (Hashtable)domains.get(ANY_HOST);
+    if (for_host == null && for_any == null) return null;
+
+    StringBuffer line = new StringBuffer();
+
+    // Each "directory" of the path, longest first: "/a/b", "/a/", "/a", "/".
+    String prefix = path;
+    int end = path.length();
+    while (true)
+    {
+      append(line, for_host, prefix, host, path, now);
+      append(line, for_any, prefix, host, path, now);
+
+      if (end == 0) break;
+
+      int slash = path.lastIndexOf('/', end - 1);
+      if (slash == -1) break;
+
+      String dir = path.substring(0, slash + 1);
+      if (!dir.equals(prefix))
+      {
+        append(line, for_host, dir, host, path, now);
+        append(line, for_any, dir, host, path, now);
+      }
+
+      end = slash;
+      prefix = path.substring(0, slash);
+      if (end == 0) break;
+    }
+
+    return line.length() == 0 ? null : line.toString();
+  }
+
+  /**
+   * Drop any cookies that have expired.  This only looks at the cookies when
+   * one of them is due to expire.  Only call this on a jar that isn't shared.
+   *
+   * @param now The current time (ms).
+   * @return changed True if any cookies were dropped.
+   */
+  boolean evictExpired(long now)
+  {
+    if (now < next_expiry) return false;
+
+    boolean changed = false;
+    next_expiry = Long.MAX_VALUE;
+
+    for (int i=all.size()-1; i>=0; i--)
+    {
+      Cookie c = (Cookie)all.elementAt(i);
+      if (c.isExpired(now))
+      {
+        all.removeElementAt(i);
+        Hashtable paths = (Hashtable)domains.get(bucket(c));
+        ((Vector)paths.get(c.getPath() == null ? "/" : c.getPath())).removeElement(c);
+        changed = true;
+      }
+      else if (c.getExpires() != -1 && c.getExpires() < next_expiry)
+      {
+        next_expiry = c.getExpires();
+      }
+    }
+
+    return changed;
+  }
+
+  /**
+   * The registrable part of a host name, used to group cookies.  We keep it
+   * simple and take the last two labels, which groups a few hosts too many
+   * under (say) "co.uk", but as each cookie's domain is still checked that
+   * only costs a little time.
+   *
+   * @param host The host name, e.g., "www.example.com", or an IP address.
+   * @return domain The registrable domain, e.g., "example.com".  IP addresses are
+   * returned as they are.
+   */
+  static String registrableDomain(String host)
+  {
+    if (host.indexOf(':') != -1) return host; // IPv6
+
+    int last = host.lastIndexOf('.');
+    if (last == -1) return host;
+
+    // An IPv4 address ends in a number; no top level domain does.
+    if (Character.isDigit(host.charAt(host.length() - 1))) return host;
+
+    int second = host.lastIndexOf('.', last - 1);
+    return second == -1 ? host : host.substring(second + 1);
+  }
+
+  /**
+   * Add the cookies filed under a path that should be sent with a request.
+   */
+  private static void append(StringBuffer line, Hashtable paths, String prefix, String host, String path, long now)
+  {
+    if (paths == null) return;
+
+    Vector cookies = (Vector)paths.get(prefix);
+    if (cookies == null) return;
+
+    for (int i=0; i<cookies.size(); i++)
+    {
+      Cookie c = (Cookie)cookies.elementAt(i);
+      if (!c.domainMatches(host) || !c.pathMatches(path) || c.isExpired(now)) continue;
+      if (line.length() > 0) line.append("; ");
+      line.append(c.toCookieString());
+    }
+  }
+
+  /**
+   * @return bucket The key a cookie is filed under.
+   */
+  private static String bucket(Cookie c)
+  {
+    return c.getDomain() == null ? ANY_HOST : registrableDomain(c.getDomain());
+  }
+
+  private static boolean same(String a, String b)
+  {
+    return a == null ? b == null : a.equals(b);
+  }
+
+}
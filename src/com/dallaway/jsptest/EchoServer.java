@@ -2,6 +2,8 @@ package com.dallaway.jsptest;
 
 import java.net.*;
 import java.io.*;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Starts up a server which simply echos to STDOUT anything it receives.
@@ -11,6 +13,21 @@ import java.io.*;
  * to be sure you're sending the right things.  Designed to work
  * with HTTP, SMTP and similar text protocols.
  *
+ * <p>
+ * By default one connection is handled at a time, which is all you need to
+ * look at a single request.  In concurrent mode (<code>setConcurrent()</code>,
+ * or <code>-c</code> on the command line) every connection gets its own
+ * thread, so a load test can be pointed at the server.  The bytes received
+ * are then written by a single background thread, in batches, and each run
+ * of bytes is headed with the connection it came from, e.g.,
+ * <code>--- #3 ---</code>, so interleaved requests can still be read.
+ *
+ * <p>
+ * To keep what was received, for replaying later with a <code>Replayer</code>,
+ * set a capture file (<code>setCapture()</code>, or <code>-f file</code> on the
+ * command line).  Every read from every connection is appended to the file,
+ * with the time and the connection it came from.
+ *
  * @author  $Author: richard $
  * @version $Revision: 1.2 $  $Date: 2000/08/18 09:22:49 $
  */
@@ -20,6 +37,19 @@ public class EchoServer
   private static final int BUFSIZ = 1024;
   int port = 80;
 
+  /** Bytes read per socket read in concurrent mode. */
+  private static final int CONCURRENT_BUFSIZ = 8192;
+
+  /** Most bytes waiting to be written in concurrent mode, before connections wait for the writer. */
+  private static final int MAX_QUEUED = 1024 * 1024;
+
+  private boolean concurrent = false;
+  private OutputStream out = System.out;
+  private File capture_file = null;
+
+  private volatile ServerSocket server;
+  private AtomicInteger connections = new AtomicInteger();
+
   /**
    * Construct a new echoing server on the given port.
    *
@@ -31,7 +61,50 @@ public class EchoServer
   }
 
   /**
-   * Start listening forever.
+   * Handle many connections at once, rather than one after another.
+   *
+   * @param concurrent True for a thread per connection and batched output.
+   */
+  public void setConcurrent(boolean concurrent)
+  {
+    this.concurrent = concurrent;
+  }
+
+  /**
+   * Set where the bytes received go in concurrent mode.  The default is
+   * <code>System.out</code>.
+   *
+   * @param out The stream to write to, or null to write nothing (when
+   * capturing to a file, say).
+   */
+  public void setOutput(OutputStream out)
+  {
+    this.out = out;
+  }
+
+  /**
+   * Capture everything received to a file, as well as echoing it.
+   *
+   * @param file The file to write, which is replaced, or null to not capture.
+   * @see Replayer
+   */
+  public void setCapture(File file)
+  {
+    this.capture_file = file;
+  }
+
+  /**
+   * @return port The port being listened on, which is useful if the server
+   * was started on port 0, or -1 if the server isn't listening yet.
+   */
+  public int getPort()
+  {
+    ServerSocket ss = server;
+    return ss == null ? -1 : ss.getLocalPort();
+  }
+
+  /**
+   * Start listening, until <code>stop()</code> is called.
    *
    * @throws IOException Thrown if there were any network errors.
    */
@@ -42,27 +115,117 @@ public class EchoServer
 
     // Start listening for requests
     ServerSocket ss = new ServerSocket(port);
+    server = ss;
+
+    Printer printer = concurrent && out != null ? new Printer(out) : null;
+    RecordLog log = null;
 
-    while (true)
+    try
     {
+      if (capture_file != null) log = new RecordLog(capture_file);
 
-      try
-      {
-        // Accept an incoming request...
-        Socket request = ss.accept();
-        // Note that we don't bother firing off a new thread, as this is just
-        // intended for debugging single requests
-        handle(request);
-        // Start listening again...
-      }
-      catch (IOException iox)
+      while (!ss.isClosed())
       {
-        error("Error accepting request", iox);
+
+        try
+        {
+          // Accept an incoming request...
+          Socket request = ss.accept();
+
+          if (concurrent)
+            start(request, printer, log);
+          else
+            // Just for debugging single requests, so no new thread.
+            handle(request, log);
+          // Start listening again...
+        }
+        catch (IOException iox)
+        {
+          if (!ss.isClosed()) error("Error accepting request", iox);
+        }
+
       }
+    }
+    finally
+    {
+      if (printer != null) printer.close();
+      if (log != null) log.close();
+    }
+
+  }
+
 
+  /**
+   * Stop listening.  Connections already accepted are left to finish, and
+   * in concurrent mode <code>go()</code> returns once everything received so
+   * far has been written.  Nothing more is captured.
+   */
+  public void stop()
+  {
+    ServerSocket ss = server;
+    if (ss == null) return;
+
+    try
+    {
+      ss.close();
     }
+    catch (IOException iox)
+    {
+      error("Error closing server", iox);
+    }
+  }
 
 
+  /**
+   * Handle a connection on a thread of its own, passing what it sends to
+   * the printer.
+   *
+   * @param request The accepted socket.
+   * @param printer Where the output goes, or null.
+   * @param log Where to capture to, or null.
+   */
+  private void start(final Socket request, final Printer printer, final RecordLog log)
+  {
+    final int id = connections.incrementAndGet();
+
+    Runnable task = new Runnable()
+    {
+      public void run()
+      {
+        if (printer != null) printer.write(id, ("connected from "+request.getRemoteSocketAddress()).getBytes(), 0, -1);
+        try
+        {
+          InputStream in = request.getInputStream();
+          byte[] buffer = new byte[CONCURRENT_BUFSIZ];
+
+          int num_read;
+          while ((num_read = in.read(buffer)) != -1)
+          {
+            if (log != null) log.append(id, buffer, 0, num_read);
+            if (printer != null) printer.write(id, buffer, 0, num_read);
+          }
+        }
+        catch (IOException iox)
+        {
+          if (printer != null) printer.write(id, ("error: "+iox.getMessage()).getBytes(), 0, -1);
+          else error("Error reading connection #"+id, iox);
+        }
+        finally
+        {
+          try
+          {
+            request.close();
+          }
+          catch (IOException iox)
+          {
+            // Already done with it.
+          }
+          if (printer != null) printer.write(id, "closed".getBytes(), 0, -1);
+        }
+      }
+    };
+
+    Threads.newThread(task, "EchoServer #"+id).start();
   }
 
 
@@ -70,10 +233,12 @@ public class EchoServer
    * Hande a single request by echoing to stdout.
    *
    * @param request The socket request to read and echo.
+   * @param log Where to capture to, or null.
    * @throws IOException Thrown if there was any errors reading the request.
    */
-  private void handle (Socket request) throws IOException
+  private void handle (Socket request, RecordLog log) throws IOException
   {
+    int id = connections.incrementAndGet();
     InputStream in = request.getInputStream();
     byte[] buffer = new byte[BUFSIZ];
 
@@ -83,6 +248,8 @@ public class EchoServer
 
         if (num_read == -1) break;  // end of data
 
+        if (log != null) log.append(id, buffer, 0, num_read);
+
         output(new String(buffer, 0 , num_read));
 
       }
@@ -115,17 +282,180 @@ public class EchoServer
   public static void main(String[] args) throws IOException
   {
 
-    if (args.length != 1)
+    boolean concurrent = false;
+    File capture = null;
+
+    int a = 0;
+    for (; a < args.length - 1; a++)
+    {
+      if (args[a].equals("-c")) concurrent = true;
+      else if (args[a].equals("-f") && a < args.length - 2) capture = new File(args[++a]);
+      else break;
+    }
+
+    if (a != args.length - 1)
     {
-      System.err.println("Usage: ServerEcho port-num");
+      System.err.println("Usage: ServerEcho [-c] [-f capture-file] port-num");
       System.exit(0);
     }
 
-    EchoServer echo = new EchoServer(Integer.parseInt(args[0]));
+    EchoServer echo = new EchoServer(Integer.parseInt(args[a]));
+    echo.setConcurrent(concurrent);
+    echo.setCapture(capture);
 
     echo.go();
   }
 
 
+  /**
+   * Writes what the connections receive, from a thread of its own.
+   * Connection threads queue copies of their bytes and carry on reading; the
+   * printer takes everything queued in one go, writes it with a heading
+   * whenever the connection changes, and flushes once per batch.
+   */
+  private static class Printer implements Runnable
+  {
+    private OutputStream out;
+    private Vector queue = new Vector(); // Object[] { Integer id, byte[] bytes, Boolean event }
+    private int queued = 0; // bytes in the queue
+    private boolean closed = false;
+    private Thread thread;
+
+    private int last_id = -1;
+    private boolean at_line_start = true;
+
+    Printer(OutputStream out)
+    {
+      this.out = new BufferedOutputStream(out, CONCURRENT_BUFSIZ);
+      thread = new Thread(this, "EchoServer writer");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    /**
+     * Queue bytes from a connection.  If the writer is too far behind, wait
+     * for it to catch up, which slows the connection down rather than
+     * filling the heap.
+     *
+     * @param id The connection number.
+     * @param b The bytes.
+     * @param off Where they start.
+     * @param len How many there are, or -1 if this is a note about the
+     * connection (such as it closing) rather than bytes it sent.
+     */
+    void write(int id, byte[] b, int off, int len)
+    {
+      byte[] copy = b;
+      if (len != -1)
+      {
+        copy = new byte[len];
+        System.arraycopy(b, off, copy, 0, len);
+      }
+
+      synchronized (this)
+      {
+        while (queued > MAX_QUEUED && !closed)
+        {
+          try
+          {
+            wait();
+          }
+          catch (InterruptedException ix)
+          {
+            Thread.currentThread().interrupt();
+            break;
+          }
+        }
+
+        queue.addElement(new Object[] { Integer.valueOf(id), copy, Boolean.valueOf(len == -1) });
+        if (len != -1) queued += len;
+        if (queue.size() == 1) notifyAll();
+      }
+    }
+
+    /**
+     * Write anything still queued and stop.
+     */
+    void close()
+    {
+      synchronized (this)
+      {
+        closed = true;
+        notifyAll();
+      }
+
+      try
+      {
+        thread.join();
+      }
+      catch (InterruptedException ix)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    public void run()
+    {
+      while (true)
+      {
+        Vector batch;
+        synchronized (this)
+        {
+          while (queue.size() == 0 && !closed)
+          {
+            try
+            {
+              wait();
+            }
+            catch (InterruptedException ix)
+            {
+              return;
+            }
+          }
+
+          if (queue.size() == 0) return;
+          batch = queue;
+          queue = new Vector();
+          queued = 0;
+          notifyAll(); // connections waiting for room
+        }
+
+        try
+        {
+          for (int i=0; i<batch.size(); i++)
+          {
+            Object[] item = (Object[])batch.elementAt(i);
+            write(((Integer)item[0]).intValue(), (byte[])item[1], ((Boolean)item[2]).booleanValue());
+          }
+          out.flush();
+        }
+        catch (IOException iox)
+        {
+          System.err.println("Error writing output: "+iox.getMessage());
+        }
+      }
+    }
+
+    /**
+     * Write one queued item, with a heading if it's from a different
+     * connection to the last one.
+     */
+    private void write(int id, byte[] b, boolean event) throws IOException
+    {
+      if (event || id != last_id)
+      {
+        if (!at_line_start) out.write('\n');
+        out.write(("--- #"+id+(event ? " "+new String(b) : "")+" ---\n").getBytes());
+        at_line_start = true;
+        last_id = id;
+        if (event) return;
+      }
+
+      out.write(b);
+      if (b.length > 0) at_line_start = b[b.length-1] == '\n';
+    }
+  }
+
+
 }
 
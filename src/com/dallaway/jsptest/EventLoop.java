@@ -0,0 +1,188 @@
+package com.dallaway.jsptest;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+/**
+ * A single thread, shared by every session in the JVM, that drives
+ * asynchronous requests over non-blocking socket channels.
+ *
+ * <p>
+ * Requests are handed to the loop with <code>submit()</code>, and from then on
+ * all their network work happens on the loop thread: no thread is tied up
+ * waiting for any one server.  Only network work: parsing a finished
+ * response and completing its future (which runs the caller's callbacks)
+ * happen on a worker thread, so one big body or slow callback doesn't hold
+ * up every other request.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+class EventLoop implements Runnable
+{
+
+  private static final int BUFSIZ = 64 * 1024;
+
+  /** Longest wait after the selector fails, before trying it again (ms). */
+  private static final long MAX_BACKOFF = 1000;
+
+  private static EventLoop instance;
+
+  private Selector selector;
+
+  /** Requests submitted but not yet registered with the selector. */
+  private ConcurrentLinkedQueue pending = new ConcurrentLinkedQueue();
+
+  /** Other work to do on the loop thread, such as stopping a request that's out of time. */
+  private ConcurrentLinkedQueue tasks = new ConcurrentLinkedQueue();
+
+  /** Read buffer shared by all requests: only the loop thread uses it. */
+  private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFSIZ);
+
+  /**
+   * Get the event loop, starting it if this is the first time it is needed.
+   *
+   * @return loop The shared event loop.
+   * @throws IOException Thrown if the selector could not be opened.
+   */
+  static synchronized EventLoop getInstance() throws IOException
+  {
+    if (instance == null)
+    {
+      instance = new EventLoop();
+      Thread thread = new Thread(instance, "jsptest-event-loop");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    return instance;
+  }
+
+  private EventLoop() throws IOException
+  {
+    selector = Selector.open();
+  }
+
+  /**
+   * Start a request.  It is picked up by the loop thread on its next pass.
+   *
+   * @param request The request to run.
+   */
+  void submit(AsyncRequest request)
+  {
+    pending.add(request);
+    selector.wakeup();
+  }
+
+  /**
+   * Run a task on the loop thread, on its next pass.
+   *
+   * @param task The task.
+   */
+  void execute(Runnable task)
+  {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * @return workers Where finished responses are parsed and handed over,
+   * away from the loop thread.
+   */
+  static Executor getWorkers()
+  {
+    return ForkJoinPool.commonPool();
+  }
+
+  /**
+   * Run the loop forever.
+   */
+  public void run()
+  {
+    int failures = 0;
+
+    while (true)
+    {
+      try
+      {
+        selector.select();
+        failures = 0;
+      }
+      catch (IOException iox)
+      {
+        // A broken selector fails straight away every time, so wait a
+        // little longer each time rather than spin.
+        if (failures++ == 0) System.err.println("jsptest event loop: select failed: "+iox.getMessage());
+        backOff(failures);
+        continue;
+      }
+
+      // Register anything that's been submitted since we last looked.
+      AsyncRequest request;
+      while ((request = (AsyncRequest)pending.poll()) != null)
+      {
+        try
+        {
+          request.start(selector);
+        }
+        catch (RuntimeException rx)
+        {
+          request.abort(rx);
+        }
+      }
+
+      Runnable task;
+      while ((task = (Runnable)tasks.poll()) != null)
+      {
+        try
+        {
+          task.run();
+        }
+        catch (RuntimeException rx)
+        {
+          System.err.println("jsptest event loop: task failed: "+rx);
+        }
+      }
+
+      Iterator keys = selector.selectedKeys().iterator();
+      while (keys.hasNext())
+      {
+        SelectionKey key = (SelectionKey)keys.next();
+        keys.remove();
+
+        // One request going wrong mustn't stop the loop for the rest.
+        request = (AsyncRequest)key.attachment();
+        try
+        {
+          request.ready(key, buffer);
+        }
+        catch (RuntimeException rx)
+        {
+          request.abort(rx);
+        }
+      }
+    }
+  }
+
+  /**
+   * Wait after the selector has failed some number of times in a row.
+   */
+  private static void backOff(int failures)
+  {
+    try
+    {
+      Thread.sleep(Math.min(MAX_BACKOFF, 10L << Math.min(failures, 10)));
+    }
+    catch (InterruptedException ix)
+    {
+      // Carry on.
+    }
+  }
+
+}
@@ -0,0 +1,425 @@
+package com.dallaway.jsptest;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Extracts text between many pairs of start and end strings in a single pass
+ * over a page.
+ *
+ * <p>
+ * This gives the same results as calling <code>Response.getBetweens()</code>
+ * for each pair, but instead of scanning the body once per pair, all the start
+ * and end strings are compiled into one automaton (Aho-Corasick) which finds
+ * every one of them in one scan.  That matters when you check dozens of values
+ * on a large page.  E.g.,
+ *
+ * <pre>
+ * Extractor extractor = new Extractor(
+ *   new String[] { "Order id: ", "Total: ", "&lt;title&gt;" },
+ *   new String[] { ".",          "&lt;",      "&lt;/title&gt;" });
+ *
+ * String[][] found = extractor.extract(response);
+ * String order_id = found[0].length &gt; 0 ? found[0][0] : null;
+ * </pre>
+ *
+ * <p>
+ * An extractor doesn't change once it is built, so build it once and share it
+ * between threads and responses.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ * @see Response#getBetweens
+ */
+public class Extractor
+{
+
+  private String[] start_texts;
+  private String[] end_texts;
+
+  // The distinct strings we look for, and which pairs use each as a start or end.
+  private int[] pattern_length;
+  private int[][] starts_of;  // pattern -> pairs it starts
+  private int[][] ends_of;    // pattern -> pairs it ends
+
+  // Characters used by the patterns, mapped to a column in the transition table.
+  // Column zero is for any other character.
+  private int[] ascii_column = new int[128];
+  private char[] other_chars;     // sorted, non-ASCII
+  private int[] other_columns;
+  private int width;
+
+  /** Transitions: next state is delta[state * width + column]. */
+  private int[] delta;
+
+  /** The patterns that end at each state (null if none). */
+  private int[][] matches;
+
+  /**
+   * Compile an extractor for pairs of start and end text.
+   *
+   * @param start_texts The start text of each pair.
+   * @param end_texts The end text of each pair, in the same order.
+   * @throws IllegalArgumentException Thrown if the arrays are different lengths
+   * or any of the strings are null or empty.
+   */
+  public Extractor(String[] start_texts, String[] end_texts)
+  {
+    if (start_texts == null || end_texts == null || start_texts.length != end_texts.length)
+      throw new IllegalArgumentException("Need the same number of start and end texts");
+
+    for (int i=0; i<start_texts.length; i++)
+    {
+      if (start_texts[i] == null || end_texts[i] == null || "".equals(start_texts[i]) || "".equals(end_texts[i]))
+        throw new IllegalArgumentException("Start and end texts can't be null or empty (pair "+i+")");
+    }
+
+    this.start_texts = start_texts.clone();
+    this.end_texts = end_texts.clone();
+
+    compile();
+  }
+
+  /**
+   * @return size The number of (start, end) pairs.
+   */
+  public int size()
+  {
+    return start_texts.length;
+  }
+
+  /**
+   * @param pair The pair index.
+   * @return start The start text of a pair.
+   */
+  public String getStartText(int pair)
+  {
+    return start_texts[pair];
+  }
+
+  /**
+   * @param pair The pair index.
+   * @return end The end text of a pair.
+   */
+  public String getEndText(int pair)
+  {
+    return end_texts[pair];
+  }
+
+  /**
+   * Extract the text between every pair from the body of a response.
+   *
+   * @param response The response to search.
+   * @return found For each pair (in the order given to the constructor), the
+   * matches in the order they appear.  Each array can be zero length.  Null if
+   * the response has no body.
+   */
+  public String[][] extract(Response response)
+  {
+    String body = response.getBody();
+    if (body == null) return null;
+    return extract(body);
+  }
+
+  /**
+   * Extract the text between every pair from some text.
+   *
+   * @param text The text to search.
+   * @return found For each pair (in the order given to the constructor), the
+   * matches in the order they appear.  Each array can be zero length.
+   */
+  public String[][] extract(String text)
+  {
+    Scan scan = new Scan(size());
+    scan(scan, text, 0, text.length());
+    return scan.getFound();
+  }
+
+  /**
+   * Carry on scanning some text.  The text can arrive a piece at a time: each
+   * call scans from <code>start</code> to <code>end</code>, and the text before
+   * <code>start</code> must be the text already scanned.
+   *
+   * @param scan Where the scan has got to, updated by the call.
+   * @param text All the text so far.
+   * @param start Where to carry on scanning.
+   * @param end Where to stop scanning.
+   */
+  void scan(Scan scan, CharSequence text, int start, int end)
+  {
+    int state = scan.state;
+    boolean[] in_match = scan.in_match;
+    int[] from = scan.from;
+
+    for (int i=start; i<end; i++)
+    {
+      state = delta[state * width + column(text.charAt(i))];
+
+      int[] ending = matches[state];
+      if (ending == null) continue;
+
+      for (int m=0; m<ending.length; m++)
+      {
+        int pattern = ending[m];
+        int begin = i - pattern_length[pattern] + 1; // where this occurrence starts
+
+        int[] pairs_ended = ends_of[pattern];
+        for (int j=0; j<pairs_ended.length; j++)
+        {
+          int p = pairs_ended[j];
+          if (in_match[p] && begin >= from[p])
+          {
+            scan.found(p, text.subSequence(from[p], begin).toString());
+            in_match[p] = false;
+            from[p] = i + 1;
+          }
+        }
+
+        int[] pairs_started = starts_of[pattern];
+        for (int j=0; j<pairs_started.length; j++)
+        {
+          int p = pairs_started[j];
+          if (!in_match[p] && begin >= from[p])
+          {
+            in_match[p] = true;
+            from[p] = i + 1;
+          }
+        }
+      }
+    }
+
+    scan.state = state;
+  }
+
+  /**
+   * The column in the transition table for a character.
+   *
+   * @param c The character.
+   * @return column The column, or zero if no pattern uses the character.
+   */
+  private int column(char c)
+  {
+    if (c < 128) return ascii_column[c];
+
+    int i = java.util.Arrays.binarySearch(other_chars, c);
+    return i < 0 ? 0 : other_columns[i];
+  }
+
+  /**
+   * Build the automaton.
+   */
+  private void compile()
+  {
+    // The distinct strings, and their roles.
+    Hashtable ids = new Hashtable();
+    Vector patterns = new Vector();
+    Vector starts = new Vector();
+    Vector ends = new Vector();
+
+    for (int p=0; p<start_texts.length; p++)
+    {
+      role(start_texts[p], p, ids, patterns, starts, ends, true);
+      role(end_texts[p], p, ids, patterns, starts, ends, false);
+    }
+
+    int count = patterns.size();
+    pattern_length = new int[count];
+    starts_of = new int[count][];
+    ends_of = new int[count][];
+    for (int i=0; i<count; i++)
+    {
+      pattern_length[i] = ((String)patterns.elementAt(i)).length();
+      starts_of[i] = toArray((Vector)starts.elementAt(i));
+      ends_of[i] = toArray((Vector)ends.elementAt(i));
+    }
+
+    // Give each character used a column.
+    StringBuffer chars = new StringBuffer();
+    for (int i=0; i<count; i++) chars.append((String)patterns.elementAt(i));
+
+    Hashtable columns = new Hashtable();
+    Vector others = new Vector();
+    width = 1;
+    for (int i=0; i<chars.length(); i++)
+    {
+      Character c = Character.valueOf(chars.charAt(i));
+      if (columns.containsKey(c)) continue;
+      columns.put(c, Integer.valueOf(width));
+      if (c.charValue() < 128) ascii_column[c.charValue()] = width;
+      else others.addElement(c);
+      width++;
+    }
+
+    other_chars = new char[others.size()];
+    for (int i=0; i<other_chars.length; i++) other_chars[i] = ((Character)others.elementAt(i)).charValue();
+    java.util.Arrays.sort(other_chars);
+    other_columns = new int[other_chars.length];
+    for (int i=0; i<other_chars.length; i++)
+      other_columns[i] = ((Integer)columns.get(Character.valueOf(other_chars[i]))).intValue();
+
+    // The trie of patterns. -1 for no edge.
+    int max_states = chars.length() + 1;
+    int[] trie = new int[max_states * width];
+    java.util.Arrays.fill(trie, -1);
+    int[] terminal = new int[max_states];
+    java.util.Arrays.fill(terminal, -1);
+    int states = 1;
+
+    for (int i=0; i<count; i++)
+    {
+      String pattern = (String)patterns.elementAt(i);
+      int s = 0;
+      for (int j=0; j<pattern.length(); j++)
+      {
+        int col = column(pattern.charAt(j));
+        if (trie[s * width + col] == -1) trie[s * width + col] = states++;
+        s = trie[s * width + col];
+      }
+      terminal[s] = i;
+    }
+
+    // Breadth first, work out the failure links and fill in the missing
+    // transitions, so every step of a scan is a single table lookup.
+    delta = new int[states * width];
+    int[] fail = new int[states];
+    Vector[] outputs = new Vector[states];
+    int[] queue = new int[states];
+    int head = 0;
+    int tail = 0;
+
+    for (int col=0; col<width; col++)
+    {
+      int t = trie[col];
+      if (t == -1)
+      {
+        delta[col] = 0;
+      }
+      else
+      {
+        delta[col] = t;
+        fail[t] = 0;
+        queue[tail++] = t;
+      }
+    }
+
+    while (head < tail)
+    {
+      int s = queue[head++];
+
+      outputs[s] = new Vector();
+      if (terminal[s] != -1) outputs[s].addElement(Integer.valueOf(terminal[s]));
+      if (outputs[fail[s]] != null)
+      {
+        Vector inherited = outputs[fail[s]];
+        for (int k=0; k<inherited.size(); k++) outputs[s].addElement(inherited.elementAt(k));
+      }
+
+      for (int col=0; col<width; col++)
+      {
+        int t = trie[s * width + col];
+        if (t == -1)
+        {
+          delta[s * width + col] = delta[fail[s] * width + col];
+        }
+        else
+        {
+          delta[s * width + col] = t;
+          fail[t] = delta[fail[s] * width + col];
+          queue[tail++] = t;
+        }
+      }
+    }
+
+    matches = new int[states][];
+    for (int s=1; s<states; s++)
+    {
+      if (outputs[s] != null && outputs[s].size() > 0) matches[s] = toArray(outputs[s]);
+    }
+  }
+
+  /**
+   * Note that a string is the start (or end) text of a pair.
+   */
+  private static void role(String text, int pair, Hashtable ids, Vector patterns, Vector starts, Vector ends, boolean is_start)
+  {
+    Integer id = (Integer)ids.get(text);
+    if (id == null)
+    {
+      id = Integer.valueOf(patterns.size());
+      ids.put(text, id);
+      patterns.addElement(text);
+      starts.addElement(new Vector());
+      ends.addElement(new Vector());
+    }
+
+    Vector roles = (Vector)(is_start ? starts : ends).elementAt(id.intValue());
+    roles.addElement(Integer.valueOf(pair));
+  }
+
+  private static int[] toArray(Vector v)
+  {
+    int[] a = new int[v.size()];
+    for (int i=0; i<a.length; i++) a[i] = ((Integer)v.elementAt(i)).intValue();
+    return a;
+  }
+
+
+  /**
+   * How far a scan has got, so it can be carried on as more text arrives.
+   */
+  static class Scan
+  {
+
+    int state = 0;
+    boolean[] in_match; // seen the start, looking for the end
+    int[] from;         // where the match, or next start, can begin
+
+    private Vector[] found;
+    private int pairs_found = 0;
+
+    /**
+     * @param pairs The number of pairs being extracted.
+     */
+    Scan(int pairs)
+    {
+      in_match = new boolean[pairs];
+      from = new int[pairs];
+      found = new Vector[pairs];
+      for (int p=0; p<pairs; p++) found[p] = new Vector();
+    }
+
+    /**
+     * Record a match.
+     */
+    void found(int pair, String text)
+    {
+      if (found[pair].size() == 0) pairs_found++;
+      found[pair].addElement(text);
+    }
+
+    /**
+     * @return satisfied True once every pair has at least one match.
+     */
+    boolean isSatisfied()
+    {
+      return pairs_found == found.length;
+    }
+
+    /**
+     * @return found The matches so far, for each pair.
+     */
+    String[][] getFound()
+    {
+      String[][] toRet = new String[found.length][];
+      for (int p=0; p<found.length; p++)
+      {
+        toRet[p] = new String[found[p].size()];
+        found[p].copyInto(toRet[p]);
+      }
+
+      return toRet;
+    }
+
+  }
+
+}
@@ -0,0 +1,63 @@
+package com.dallaway.jsptest;
+
+import java.io.*;
+
+/**
+ * Reads exactly <code>Content-Length</code> bytes of a HTTP body, then
+ * reports end of stream.  The underlying stream is left positioned at the
+ * start of the next response and is never closed.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+class FixedLengthInputStream extends InputStream
+{
+
+  private InputStream in;
+  private long remaining;
+
+  /**
+   * @param in The stream positioned at the start of the body.
+   * @param length The number of bytes in the body.
+   */
+  FixedLengthInputStream(InputStream in, long length)
+  {
+    this.in = in;
+    this.remaining = length;
+  }
+
+  public int read() throws IOException
+  {
+    if (remaining <= 0) return -1;
+
+    int c = in.read();
+    if (c == -1) throw new EOFException("Connection closed with "+remaining+" bytes of body unread");
+    remaining--;
+    return c;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    if (len == 0) return 0;
+    if (remaining <= 0) return -1;
+
+    int n = in.read(b, off, (int)Math.min(len, remaining));
+    if (n == -1) throw new EOFException("Connection closed with "+remaining+" bytes of body unread");
+    remaining -= n;
+    return n;
+  }
+
+  /**
+   * @return remaining The number of body bytes not yet read.
+   */
+  long remaining()
+  {
+    return remaining;
+  }
+
+  public int available() throws IOException
+  {
+    return (int)Math.min(in.available(), remaining);
+  }
+
+}
@@ -0,0 +1,178 @@
+package com.dallaway.jsptest;
+
+import java.io.*;
+
+/**
+ * Reads the head of a HTTP response (the status line and headers) as bytes.
+ *
+ * <p>
+ * The head is copied into a buffer and, as each line arrives, the status
+ * code and the start and end of each header name and value are noted.  No
+ * strings are made: <code>getHeaders()</code> hands the bytes and offsets to a
+ * <code>HeaderTable</code>, which only makes a string when a header is asked
+ * for.
+ *
+ * <p>
+ * A parser is re-used for every response on a connection, so its buffers
+ * are only allocated once.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+class HeadParser
+{
+
+  private byte[] head = new byte[1024];
+  private int length;
+
+  /** For each header: name start, name end, value start, value end. */
+  private int[] offsets = new int[64];
+  private int count;
+
+  private int status_end; // head[0..status_end) is the status line, -1 until read
+  private int status;
+  private boolean http11;
+
+  /**
+   * Read a response head, up to and including the blank line that ends it.
+   * The previous head read by this parser is forgotten.
+   *
+   * @param in The stream to read from, positioned at the start of a response.
+   * @return parsed True if a head was read, false if the stream ended before
+   * any of it arrived.
+   * @throws IOException Thrown if there was an error reading from the stream.
+   */
+  boolean parse(InputStream in) throws IOException
+  {
+    length = 0;
+    count = 0;
+    status_end = -1;
+    status = -1;
+    http11 = false;
+
+    int line_start = 0;
+    while (true)
+    {
+      int b = in.read();
+      if (b == -1)
+      {
+        if (length == 0 && status_end == -1) return false;
+        if (length > line_start) endLine(line_start);
+        return true;
+      }
+
+      if (b == '\r') continue;
+      if (b != '\n')
+      {
+        if (length == head.length)
+        {
+          byte[] bigger = new byte[length * 2];
+          System.arraycopy(head, 0, bigger, 0, length);
+          head = bigger;
+        }
+        head[length++] = (byte)b;
+        continue;
+      }
+
+      // A blank line ends the head, unless it comes before the status line.
+      if (length == line_start)
+      {
+        if (status_end == -1) continue;
+        return true;
+      }
+
+      endLine(line_start);
+      line_start = length;
+    }
+  }
+
+  /**
+   * @return status The status code, or -1 if the status line couldn't be read.
+   */
+  int getStatusCode()
+  {
+    return status;
+  }
+
+  /**
+   * @return http11 True if the server answered with HTTP/1.1.
+   */
+  boolean isHTTP11()
+  {
+    return http11;
+  }
+
+  /**
+   * @return headers The head just read, as a table of its own which isn't
+   * touched when the parser is re-used.
+   */
+  HeaderTable getHeaders()
+  {
+    byte[] raw = new byte[length];
+    System.arraycopy(head, 0, raw, 0, length);
+    int[] offs = new int[count * 4];
+    System.arraycopy(offsets, 0, offs, 0, count * 4);
+
+    return new HeaderTable(raw, status_end == -1 ? 0 : status_end, offs, count);
+  }
+
+  /**
+   * Note a complete line, head[line_start..length).
+   */
+  private void endLine(int line_start)
+  {
+    if (status_end == -1)
+    {
+      status_end = length;
+      parseStatus();
+      return;
+    }
+
+    int colon = line_start;
+    while (colon < length && head[colon] != ':') colon++;
+    if (colon == length) return; // Not a header.
+
+    int v = colon + 1;
+    while (v < length && (head[v] == ' ' || head[v] == '\t')) v++;
+    int e = length;
+    while (e > v && (head[e-1] == ' ' || head[e-1] == '\t')) e--;
+
+    if (count * 4 == offsets.length)
+    {
+      int[] more = new int[offsets.length * 2];
+      System.arraycopy(offsets, 0, more, 0, offsets.length);
+      offsets = more;
+    }
+
+    int i = count * 4;
+    offsets[i] = line_start;
+    offsets[i+1] = colon;
+    offsets[i+2] = v;
+    offsets[i+3] = e;
+    count++;
+  }
+
+  /**
+   * Read the version and code from a status line such as "HTTP/1.1 200 OK".
+   */
+  private void parseStatus()
+  {
+    http11 = status_end >= 8 && head[0] == 'H' && head[5] == '1' && head[6] == '.' && head[7] == '1';
+
+    int i = 0;
+    while (i < status_end && head[i] != ' ') i++;
+    while (i < status_end && head[i] == ' ') i++;
+
+    int code = 0;
+    int digits = 0;
+    while (i < status_end && head[i] >= '0' && head[i] <= '9')
+    {
+      code = code * 10 + (head[i] - '0');
+      digits++;
+      i++;
+    }
+
+    if (digits > 0 && digits < 10 && (i == status_end || head[i] == ' ')) status = code;
+  }
+
+}
@@ -0,0 +1,321 @@
+package com.dallaway.jsptest;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * The headers of a HTTP response, in the order they were sent.
+ *
+ * <p>
+ * A table read from a server holds the bytes of the response head and the
+ * offsets of each name and value (from <code>HeadParser</code>).  Strings are
+ * only made for the headers that are asked for, and are then kept.  A table
+ * built up with <code>add()</code> holds strings from the start.
+ *
+ * <p>
+ * A header sent more than once (such as Set-Cookie) keeps every value.
+ * Names are looked up ignoring case, as HTTP says they should be, without
+ * making lower case copies.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+class HeaderTable
+{
+
+  private byte[] raw;     // the response head, or null
+  private int[] offsets;  // header i: name start, name end, value start, value end at 4i
+  private int status_end; // raw[0..status_end) is the status line
+
+  private String[] names;  // made when first needed, if we have the raw bytes
+  private String[] values;
+  private int size = 0;
+
+  /**
+   * An empty table.
+   */
+  HeaderTable()
+  {
+    names = new String[16];
+    values = new String[16];
+  }
+
+  /**
+   * A table holding the headers from a <code>Hashtable</code> of names to
+   * values, where each value is a <code>String</code> or a <code>Vector</code>
+   * of strings.
+   *
+   * @param headers The headers, which can be null.
+   */
+  HeaderTable(Hashtable headers)
+  {
+    this();
+    if (headers == null) return;
+
+    Enumeration e = headers.keys();
+    while (e.hasMoreElements())
+    {
+      String name = (String)e.nextElement();
+      Object value = headers.get(name);
+      if (value instanceof Vector)
+      {
+        Vector v = (Vector)value;
+        for (int i=0; i<v.size(); i++) add(name, (String)v.elementAt(i));
+      }
+      else
+      {
+        add(name, (String)value);
+      }
+    }
+  }
+
+  /**
+   * A table over the raw bytes of a response head.
+   *
+   * @param raw The head, which the table now owns.
+   * @param status_end Where the status line ends.
+   * @param offsets For each header, the name start and end and value start and end.
+   * @param count The number of headers.
+   */
+  HeaderTable(byte[] raw, int status_end, int[] offsets, int count)
+  {
+    this.raw = raw;
+    this.status_end = status_end;
+    this.offsets = offsets;
+    this.size = count;
+  }
+
+  /**
+   * Add a header.
+   *
+   * @param name The header name.
+   * @param value The header value.
+   */
+  void add(String name, String value)
+  {
+    if (names == null || size == names.length)
+    {
+      int capacity = Math.max(16, size * 2);
+      String[] n = new String[capacity];
+      String[] v = new String[capacity];
+      for (int i=0; i<size; i++)
+      {
+        n[i] = getName(i);
+        v[i] = getValue(i);
+      }
+      names = n;
+      values = v;
+    }
+
+    names[size] = name;
+    values[size] = value;
+    size++;
+  }
+
+  /**
+   * Add a header from a raw header line, such as "Content-Length: 42".  The
+   * name and value are cut straight out of the bytes (as ISO-8859-1) with the
+   * spaces around the value trimmed.
+   *
+   * @param line The bytes holding the line.
+   * @param start Where the line starts.
+   * @param end Where the line ends, not including the CR LF.
+   * @return added True if the line was a header, false if it had no colon.
+   */
+  boolean add(byte[] line, int start, int end)
+  {
+    int colon = start;
+    while (colon < end && line[colon] != ':') colon++;
+    if (colon == end) return false;
+
+    int v = colon + 1;
+    while (v < end && (line[v] == ' ' || line[v] == '\t')) v++;
+    int e = end;
+    while (e > v && (line[e-1] == ' ' || line[e-1] == '\t')) e--;
+
+    add(latin1(line, start, colon), latin1(line, v, e));
+    return true;
+  }
+
+  /**
+   * @return size The number of headers, counting each value of a repeated header.
+   */
+  int size()
+  {
+    return size;
+  }
+
+  /**
+   * @return line The status line, if the table was read from a server, or null.
+   */
+  String getStatusLine()
+  {
+    return raw == null ? null : latin1(raw, 0, status_end);
+  }
+
+  /**
+   * @param i The header index, from zero to <code>size()-1</code>.
+   * @return name The name of a header, as the server sent it.
+   */
+  String getName(int i)
+  {
+    if (names == null) names = new String[size];
+    if (names[i] == null) names[i] = latin1(raw, offsets[i*4], offsets[i*4+1]);
+    return names[i];
+  }
+
+  /**
+   * @param i The header index, from zero to <code>size()-1</code>.
+   * @return value The value of a header.
+   */
+  String getValue(int i)
+  {
+    if (values == null) values = new String[size];
+    if (values[i] == null) values[i] = latin1(raw, offsets[i*4+2], offsets[i*4+3]);
+    return values[i];
+  }
+
+  /**
+   * Does a header have a given name?
+   *
+   * @param i The header index, from zero to <code>size()-1</code>.
+   * @param name The name, in any case.
+   * @return is True if the header has the name.
+   */
+  boolean nameIs(int i, String name)
+  {
+    if (names != null && names[i] != null) return name.equalsIgnoreCase(names[i]);
+
+    int s = offsets[i*4];
+    int e = offsets[i*4+1];
+    if (e - s != name.length()) return false;
+
+    for (int k=0; k<name.length(); k++)
+    {
+      if (lower(raw[s+k] & 0xff) != lower(name.charAt(k))) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Find the first value of a header.
+   *
+   * @param name The header name, in any case.
+   * @return value The first value sent, or null if the header was not sent.
+   */
+  String get(String name)
+  {
+    for (int i=0; i<size; i++)
+    {
+      if (nameIs(i, name)) return getValue(i);
+    }
+    return null;
+  }
+
+  /**
+   * Find every value of a header.
+   *
+   * @param name The header name, in any case.
+   * @return values The values in the order they were sent, or null if the header was not sent.
+   */
+  Vector getAll(String name)
+  {
+    Vector found = null;
+    for (int i=0; i<size; i++)
+    {
+      if (!nameIs(i, name)) continue;
+      if (found == null) found = new Vector(2);
+      found.addElement(getValue(i));
+    }
+    return found;
+  }
+
+  /**
+   * Read a header as a number, such as Content-Length, without making a string.
+   *
+   * @param name The header name, in any case.
+   * @return value The number, or -1 if the header wasn't sent or isn't a number.
+   */
+  long getLong(String name)
+  {
+    for (int i=0; i<size; i++)
+    {
+      if (!nameIs(i, name)) continue;
+
+      if (raw == null || (values != null && values[i] != null))
+      {
+        try
+        {
+          return Long.parseLong(getValue(i).trim());
+        }
+        catch (NumberFormatException nfx)
+        {
+          return -1;
+        }
+      }
+
+      int s = offsets[i*4+2];
+      int e = offsets[i*4+3];
+      if (s == e || e - s > 18) return -1;
+
+      long n = 0;
+      for (int k=s; k<e; k++)
+      {
+        if (raw[k] < '0' || raw[k] > '9') return -1;
+        n = n * 10 + (raw[k] - '0');
+      }
+      return n;
+    }
+    return -1;
+  }
+
+  /**
+   * Does any value of a header contain a word, such as "chunked" in
+   * Transfer-Encoding or "close" in Connection?  Case is ignored.
+   *
+   * @param name The header name, in any case.
+   * @param word The word to look for, in lower case.
+   * @return contains True if the word is in one of the header's values.
+   */
+  boolean contains(String name, String word)
+  {
+    for (int i=0; i<size; i++)
+    {
+      if (!nameIs(i, name)) continue;
+
+      if (raw == null || (values != null && values[i] != null))
+      {
+        if (getValue(i).toLowerCase().indexOf(word) != -1) return true;
+        continue;
+      }
+
+      int s = offsets[i*4+2];
+      int e = offsets[i*4+3] - word.length();
+      for (int k=s; k<=e; k++)
+      {
+        int j = 0;
+        while (j < word.length() && lower(raw[k+j] & 0xff) == word.charAt(j)) j++;
+        if (j == word.length()) return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Lower case for ASCII letters, which is all HTTP header names use.
+   */
+  private static int lower(int c)
+  {
+    return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+  }
+
+  /**
+   * Make a string from ISO-8859-1 bytes.
+   */
+  private static String latin1(byte[] b, int start, int end)
+  {
+    return new String(b, start, end - start, java.nio.charset.StandardCharsets.ISO_8859_1);
+  }
+
+}
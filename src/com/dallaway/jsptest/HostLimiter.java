@@ -0,0 +1,142 @@
+package com.dallaway.jsptest;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Caps how many requests are made to each host at once, however many
+ * sessions are making them.
+ *
+ * <p>
+ * Give the same limiter to every session that should share the cap, with
+ * <code>Session.setHostLimiter()</code>.  A request waits until fewer than
+ * the cap are being made to its host (and port), so a suite run with many
+ * threads doesn't swamp one server while the others sit idle.
+ *
+ * <p>
+ * Waiting on a <code>ForkJoinPool</code> thread lets the pool run other work
+ * (such as requests to other hosts) in the meantime.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+public class HostLimiter
+{
+
+  private int max_per_host;
+
+  /** "host:port" -> Semaphore */
+  private ConcurrentHashMap hosts = new ConcurrentHashMap();
+
+  /**
+   * @param max_per_host The most requests to make to a host at once.
+   */
+  public HostLimiter(int max_per_host)
+  {
+    if (max_per_host < 1) throw new IllegalArgumentException("At least one request per host is needed: "+max_per_host);
+    this.max_per_host = max_per_host;
+  }
+
+  /**
+   * @return max_per_host The most requests made to a host at once.
+   */
+  public int getMaxPerHost()
+  {
+    return max_per_host;
+  }
+
+  /**
+   * @param u A URL on the host.
+   * @return active The number of requests being made to the URL's host now.
+   */
+  public int getActive(URL u)
+  {
+    Semaphore s = (Semaphore)hosts.get(key(u));
+    return s == null ? 0 : max_per_host - s.availablePermits();
+  }
+
+  /**
+   * Wait for a turn to make a request.
+   *
+   * @param url The URL to be requested.
+   * @return u The URL, parsed, to give back to <code>release()</code>.
+   * @throws IOException Thrown if the URL is badly formed, or we were interrupted waiting.
+   */
+  URL acquire(String url) throws IOException
+  {
+    URL u = Resolver.getShared().parse(url);
+    String key = key(u);
+
+    Semaphore s = (Semaphore)hosts.get(key);
+    if (s == null)
+    {
+      Semaphore made = new Semaphore(max_per_host, true);
+      s = (Semaphore)hosts.putIfAbsent(key, made);
+      if (s == null) s = made;
+    }
+
+    if (s.tryAcquire()) return u;
+
+    try
+    {
+      ForkJoinPool.managedBlock(new Waiter(s));
+    }
+    catch (InterruptedException ix)
+    {
+      throw new InterruptedIOException("Interrupted waiting for a turn at "+key);
+    }
+    return u;
+  }
+
+  /**
+   * Finish a request, letting another have its turn.
+   *
+   * @param u The URL returned by <code>acquire()</code>.
+   */
+  void release(URL u)
+  {
+    ((Semaphore)hosts.get(key(u))).release();
+  }
+
+  private static String key(URL u)
+  {
+    int port = u.getPort();
+    return u.getHost().toLowerCase() + ":" + (port < 0 ? 80 : port);
+  }
+
+
+  /**
+   * Waits for a permit, so the pool knows the thread is blocked.
+   */
+  private static class Waiter implements ForkJoinPool.ManagedBlocker
+  {
+    private Semaphore s;
+    private boolean acquired = false;
+
+    Waiter(Semaphore s)
+    {
+      this.s = s;
+    }
+
+    public boolean block() throws InterruptedException
+    {
+      if (!acquired)
+      {
+        s.acquire();
+        acquired = true;
+      }
+      return true;
+    }
+
+    public boolean isReleasable()
+    {
+      if (!acquired) acquired = s.tryAcquire();
+      return acquired;
+    }
+  }
+
+}
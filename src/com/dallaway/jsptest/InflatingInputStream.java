@@ -0,0 +1,311 @@
+package com.dallaway.jsptest;
+
+import java.io.*;
+import java.util.Vector;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses a gzip or deflate encoded body as it is read.
+ *
+ * <p>
+ * This does the job of <code>GZIPInputStream</code> and
+ * <code>InflaterInputStream</code>, but takes its <code>Inflater</code> from
+ * a pool and hands it back at the end of the body, rather than making (and
+ * freeing the native memory of) a new one for every response.
+ *
+ * <p>
+ * Once the compressed data ends, the rest of the body is read so that the
+ * connection is released.  The gzip trailer is checked, and a body that
+ * doesn't match it is an error.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+class InflatingInputStream extends InputStream
+{
+
+  private static final int BUFSIZ = 8192;
+
+  /** The most inflaters of each kind kept for re-use. */
+  private static final int MAX_POOLED = 32;
+
+  /** Idle inflaters, for zlib wrapped and raw deflate data. */
+  private static final Vector zlib_pool = new Vector();
+  private static final Vector raw_pool = new Vector();
+
+  private InputStream in;
+  private boolean gzip;
+  private boolean nowrap;
+  private Inflater inflater;
+  private CRC32 crc;
+
+  private byte[] buf = new byte[BUFSIZ];
+  private int buf_len = 0; // bytes in buf, last given to the inflater
+
+  private boolean started = false;
+  private boolean eof = false;
+  private boolean at_end = false; // reached the end of the body, rather than closed early
+
+  private long bytes_in = 0;
+  private long bytes_out = 0;
+
+  /**
+   * @param in The encoded body.
+   * @param gzip True for a gzip body, false for deflate (zlib wrapped, or raw
+   * as some servers send it).
+   */
+  InflatingInputStream(InputStream in, boolean gzip)
+  {
+    this.in = in;
+    this.gzip = gzip;
+  }
+
+  /**
+   * @return bytes The number of encoded bytes read so far.
+   */
+  long getBytesIn()
+  {
+    return bytes_in;
+  }
+
+  /**
+   * @return bytes The number of decoded bytes returned so far.
+   */
+  long getBytesOut()
+  {
+    return bytes_out;
+  }
+
+  /**
+   * @return finished True if the whole body has been read.
+   */
+  boolean isFinished()
+  {
+    return at_end;
+  }
+
+  public int read() throws IOException
+  {
+    byte[] one = new byte[1];
+    int n = read(one, 0, 1);
+    return n == -1 ? -1 : one[0] & 0xff;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    if (!started) start();
+    if (eof) return -1;
+    if (len == 0) return 0;
+
+    while (true)
+    {
+      int n;
+      try
+      {
+        n = inflater.inflate(b, off, len);
+      }
+      catch (DataFormatException dfx)
+      {
+        close();
+        throw new ZipException("Corrupt compressed body: "+dfx.getMessage());
+      }
+
+      if (n > 0)
+      {
+        bytes_out += n;
+        if (crc != null) crc.update(b, off, n);
+
+        // Finish as soon as we can, to release the connection.
+        if (inflater.finished()) finish();
+        return n;
+      }
+
+      if (inflater.finished())
+      {
+        finish();
+        return -1;
+      }
+
+      if (inflater.needsDictionary())
+      {
+        close();
+        throw new ZipException("Compressed body needs a preset dictionary");
+      }
+
+      if (inflater.needsInput())
+      {
+        if (!fill()) throw new EOFException("Compressed body ended early");
+        inflater.setInput(buf, 0, buf_len);
+      }
+    }
+  }
+
+  /**
+   * Stop reading.  The inflater goes back to the pool and the body is closed.
+   */
+  public void close() throws IOException
+  {
+    eof = true;
+    started = true;
+    giveBack();
+    in.close();
+  }
+
+  /**
+   * Read the gzip header, or work out which kind of deflate data we have,
+   * and get an inflater.
+   */
+  private void start() throws IOException
+  {
+    started = true;
+
+    int first = in.read();
+    if (first == -1)
+    {
+      eof = true; // No body at all, e.g., a 304.
+      at_end = true;
+      return;
+    }
+    bytes_in++;
+
+    if (gzip)
+    {
+      if (first != 0x1f || readByte() != 0x8b) throw new ZipException("Body is not in gzip format");
+      if (readByte() != 8) throw new ZipException("Unsupported gzip compression method");
+      int flags = readByte();
+      for (int i=0; i<6; i++) readByte(); // time, extra flags, OS
+
+      if ((flags & 4) != 0)
+      {
+        int extra = readByte() | (readByte() << 8);
+        for (int i=0; i<extra; i++) readByte();
+      }
+      if ((flags & 8) != 0) while (readByte() != 0) ;   // file name
+      if ((flags & 16) != 0) while (readByte() != 0) ;  // comment
+      if ((flags & 2) != 0) { readByte(); readByte(); } // header CRC
+
+      nowrap = true;
+      crc = new CRC32();
+      inflater = borrow(nowrap);
+    }
+    else
+    {
+      // A zlib header is a CM of 8 and a check that makes the first two bytes a multiple of 31.
+      int second = readByte();
+      nowrap = !((first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0);
+      inflater = borrow(nowrap);
+
+      buf[0] = (byte)first;
+      buf[1] = (byte)second;
+      buf_len = 2;
+      inflater.setInput(buf, 0, buf_len);
+    }
+  }
+
+  /**
+   * The compressed data has ended: check the gzip trailer, hand back the
+   * inflater and read to the end of the body.
+   */
+  private void finish() throws IOException
+  {
+    eof = true;
+    int pos = buf_len - inflater.getRemaining();
+    giveBack();
+
+    if (gzip)
+    {
+      long[] trailer = new long[8];
+      for (int i=0; i<8; i++) trailer[i] = pos < buf_len ? buf[pos++] & 0xff : readByte();
+
+      long sent_crc = trailer[0] | (trailer[1] << 8) | (trailer[2] << 16) | (trailer[3] << 24);
+      long sent_size = trailer[4] | (trailer[5] << 8) | (trailer[6] << 16) | (trailer[7] << 24);
+      if (sent_crc != crc.getValue() || sent_size != (bytes_out & 0xffffffffL))
+      {
+        in.close();
+        throw new ZipException("Compressed body doesn't match its gzip trailer");
+      }
+    }
+
+    // Anything after the compressed data is ignored, but read, so the
+    // connection can be re-used.
+    int n;
+    while ((n = in.read(buf, 0, buf.length)) != -1) bytes_in += n;
+    in.close();
+    at_end = true;
+  }
+
+  /**
+   * Read the next lot of encoded bytes.
+   *
+   * @return read False if the body has ended.
+   */
+  private boolean fill() throws IOException
+  {
+    int n = in.read(buf, 0, buf.length);
+    if (n == -1) return false;
+    buf_len = n;
+    bytes_in += n;
+    return true;
+  }
+
+  private int readByte() throws IOException
+  {
+    int b = in.read();
+    if (b == -1) throw new EOFException("Compressed body ended early");
+    bytes_in++;
+    return b;
+  }
+
+  /**
+   * Hand our inflater back to the pool, if we still have it.
+   */
+  private void giveBack()
+  {
+    if (inflater == null) return;
+
+    Inflater i = inflater;
+    inflater = null;
+    i.reset();
+
+    Vector pool = poolFor(nowrap);
+    synchronized (pool)
+    {
+      if (pool.size() < MAX_POOLED)
+      {
+        pool.addElement(i);
+        return;
+      }
+    }
+
+    i.end();
+  }
+
+  /**
+   * Take an inflater from the pool, or make one.
+   */
+  private static Inflater borrow(boolean nowrap)
+  {
+    Vector pool = poolFor(nowrap);
+    synchronized (pool)
+    {
+      int last = pool.size() - 1;
+      if (last >= 0)
+      {
+        Inflater i = (Inflater)pool.elementAt(last);
+        pool.removeElementAt(last);
+        return i;
+      }
+    }
+
+    return new Inflater(nowrap);
+  }
+
+  private static Vector poolFor(boolean nowrap)
+  {
+    return nowrap ? raw_pool : zlib_pool;
+  }
+
+}
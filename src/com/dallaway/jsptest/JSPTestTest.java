@@ -10,7 +10,14 @@ import junit.framework.*;
  * want to even look at this unless you plan to change the code.
  *
  * <p>
- * If you do want to run this, you will need to be running a local
+ * By default the tests that make requests are answered by a
+ * <code>StandInServer</code>, started on a free port, with pages that behave
+ * like the ones in the wwwtest folder.  To test against a real server instead,
+ * set the jsptest.server system property, e.g.,
+ * <code>-Djsptest.server=http://127.0.0.1:8787</code>.
+ *
+ * <p>
+ * If you do want to run against a real server, you will need to be running a local
  * webserver on port 8787 with the /test/ mapped to the wwwtest/test folder of this project
  * (or copy the files into your server root...whatever).  You can change this port and
  * server set up by modifying the TEST_SERVER string.
@@ -49,8 +56,50 @@ public class JSPTestTest extends TestCase
 
   // The server and port to hit to request the test files used in
   // this test class.  Map /test at this address to the
-  // wwwtest folder of this project.
-  private static final String TEST_SERVER = "http://127.0.0.1:8787";
+  // wwwtest folder of this project, or leave the jsptest.server
+  // property unset to use a stand-in.
+  private static final String TEST_SERVER = startServer();
+
+
+  /**
+   * Find the server to test against, starting a stand-in if we haven't
+   * been given one.
+   *
+   * @return url The server's URL, without a trailing slash.
+   */
+  private static String startServer()
+  {
+    String server = System.getProperty("jsptest.server");
+    if (server != null) return server;
+
+    StandInServer stand_in = new StandInServer(0);
+    stand_in.addTestPages();
+
+    // A bigger page, for compression and streaming.
+    StringBuffer big = new StringBuffer();
+    for (int i=0; i<2000; i++) big.append('x');
+    big.append("Order id: 42.");
+
+    StandInServer.Page page = new StandInServer.Page(big.toString());
+    page.setCompressible(true);
+    stand_in.add("/test/big", page);
+
+    page = new StandInServer.Page(big.toString());
+    page.setCompressible(true);
+    page.setChunkSize(7);
+    stand_in.add("/test/big-chunked", page);
+
+    try
+    {
+      stand_in.start();
+    }
+    catch (java.io.IOException iox)
+    {
+      throw new RuntimeException("Can't start the stand-in server: "+iox.getMessage());
+    }
+
+    return "http://127.0.0.1:"+stand_in.getPort();
+  }
 
 
   /**
@@ -160,6 +209,99 @@ public class JSPTestTest extends TestCase
   }
 
 
+  /**
+   * Test that cookies are only sent to their own domain and path, and are
+   * forgotten when they expire.
+   */
+  public void testCookieJar()
+  {
+
+    Cookie c = new Cookie("id=42; Domain=.Example.com; Path=/shop; Max-Age=3600; Secure");
+    assertEquals("Value", "42", c.getValue());
+    assertEquals("Domain", "example.com", c.getDomain());
+    assertEquals("Path", "/shop", c.getPath());
+    assert("Not expired", !c.isExpired(System.currentTimeMillis()));
+    assert("Expired", new Cookie("old=x; expires=Thu, 01-Jan-1970 00:00:01 GMT").isExpired(System.currentTimeMillis()));
+
+    long now = System.currentTimeMillis();
+    CookieJar jar = new CookieJar();
+    jar.add(c);
+    jar.add(new Cookie("any", "where"));
+
+    Cookie host_only = new Cookie("basket=7; path=/shop/basket");
+    host_only.setDefaults("shop.example.com", "/shop/basket/add.jsp");
+    jar.add(host_only);
+
+    assertEquals("Longest path first", "basket=7; id=42; any=where", jar.getCookieLine("shop.example.com", "/shop/basket/view.jsp", now));
+    assertEquals("Sub-domain", "id=42; any=where", jar.getCookieLine("www.example.com", "/shop", now));
+    assertEquals("Not under path", "any=where", jar.getCookieLine("www.example.com", "/shopping", now));
+    assertEquals("Other domain", "any=where", jar.getCookieLine("example.org", "/shop", now));
+
+    // An expired cookie removes the cookie it replaces.
+    jar.add(new Cookie("id=gone; Domain=example.com; Path=/shop; Max-Age=0"));
+    assertEquals("Removed", "any=where", jar.getCookieLine("www.example.com", "/shop/", now));
+    assertEquals("Cookies", 2, jar.getCookies(now).length);
+
+  }
+
+
+  /**
+   * Test that cookies and headers added from many threads at once are all kept.
+   */
+  public void testSharedSession() throws InterruptedException
+  {
+
+    final Session s = new Session();
+    Thread[] threads = new Thread[8];
+    for (int t=0; t<threads.length; t++)
+    {
+      final int id = t;
+      threads[t] = new Thread()
+      {
+        public void run()
+        {
+          for (int i=0; i<100; i++)
+          {
+            s.addCookie(new Cookie("c"+id+"_"+i, "v"));
+            s.setHeader("X-Thread-"+id, String.valueOf(i));
+          }
+        }
+      };
+      threads[t].start();
+    }
+
+    for (int t=0; t<threads.length; t++) threads[t].join();
+
+    assertEquals("Cookies", 800, s.getCookies().length);
+    assertEquals("Value", "v", s.getCookieValue("c7_99"));
+
+  }
+
+
+  /**
+   * Test that a forked session starts with its parent's cookies and headers,
+   * and then goes its own way.
+   */
+  public void testFork()
+  {
+
+    Session parent = new Session();
+    parent.addCookie(new Cookie("login", "fred"));
+
+    Session child = parent.fork();
+    assertEquals("Inherited", "fred", child.getCookieValue("login"));
+
+    child.addCookie(new Cookie("basket", "1"));
+    parent.addCookie(new Cookie("login", "barney"));
+
+    assertEquals("Child kept its own", "fred", child.getCookieValue("login"));
+    assertEquals("Child cookies", 2, child.getCookies().length);
+    assertNull("Parent unchanged", parent.getCookieValue("basket"));
+    assertEquals("Parent cookies", 1, parent.getCookies().length);
+
+  }
+
+
   /**
    * A simple http request.
    */
@@ -185,6 +327,982 @@ public class JSPTestTest extends TestCase
   }
 
 
+  /**
+   * Test that headers are looked up ignoring case, and repeated headers
+   * keep every value.
+   */
+  public void testHeaders()
+  {
+
+    java.util.Vector cookies = new java.util.Vector();
+    cookies.addElement("a=1");
+    cookies.addElement("b=2");
+    java.util.Hashtable h = new java.util.Hashtable();
+    h.put("Set-Cookie", cookies);
+    h.put("Content-Type", "text/html");
+
+    Response r = new Response("", h, "HTTP/1.1 200 OK");
+    assertEquals("Case", "text/html", r.getHeader("content-type", 0));
+    assertEquals("Second value", "b=2", r.getHeader("SET-COOKIE", 1));
+    assertNull("No third value", r.getHeader("Set-Cookie", 2));
+    assertNull("Missing", r.getHeader("Server"));
+
+    byte[] raw = "Via: proxy1\r\nvia:  proxy2 \r\nnot a header".getBytes();
+    HeaderTable t = new HeaderTable();
+    assert("First", t.add(raw, 0, 11));
+    assert("Second", t.add(raw, 13, 26));
+    assert("No colon", !t.add(raw, 28, raw.length));
+    assertEquals("Values", 2, t.getAll("VIA").size());
+    assertEquals("Trimmed", "proxy2", t.getAll("Via").elementAt(1));
+
+  }
+
+
+  /**
+   * Test parsing a response head from bytes, re-using the parser.
+   */
+  public void testHeadParser() throws java.io.IOException
+  {
+
+    String text =
+      "HTTP/1.1 404 Not Found\r\nContent-Length:  12 \r\nset-cookie: a=1\r\nSet-Cookie: b=2\r\n" +
+      "Transfer-Encoding: gzip, Chunked\r\n\r\nbody\r\n" +
+      "HTTP/1.0 200 OK\nConnection: Keep-Alive\n\n";
+    java.io.InputStream in = new java.io.ByteArrayInputStream(text.getBytes("ISO-8859-1"));
+
+    HeadParser p = new HeadParser();
+    assert("First", p.parse(in));
+    assertEquals("Status", 404, p.getStatusCode());
+    assert("HTTP/1.1", p.isHTTP11());
+
+    HeaderTable h = p.getHeaders();
+    assertEquals("Headers", 4, h.size());
+    assertEquals("Length", 12, h.getLong("content-length"));
+    assert("Chunked", h.contains("Transfer-Encoding", "chunked"));
+    assertEquals("Cookies", 2, h.getAll("Set-Cookie").size());
+    assertEquals("Status line", "HTTP/1.1 404 Not Found", h.getStatusLine());
+    assertEquals("Body follows", "body", Connection.readLine(in));
+
+    assert("Second", p.parse(in));
+    assertEquals("Status", 200, p.getStatusCode());
+    assert("HTTP/1.0", !p.isHTTP11());
+    assert("Keep alive", p.getHeaders().contains("Connection", "keep-alive"));
+    assertEquals("First table unchanged", "a=1", h.get("SET-COOKIE"));
+
+    assert("End of stream", !p.parse(in));
+
+  }
+
+
+  /**
+   * Test decompressing gzip and deflate bodies as they are read.
+   */
+  public void testInflating() throws java.io.IOException
+  {
+
+    StringBuffer page = new StringBuffer();
+    for (int i=0; i<2000; i++) page.append("<tr><td>Row ").append(i).append("</td></tr>\n");
+    byte[] plain = page.toString().getBytes("ISO-8859-1");
+
+    java.io.ByteArrayOutputStream gz = new java.io.ByteArrayOutputStream();
+    java.util.zip.GZIPOutputStream out = new java.util.zip.GZIPOutputStream(gz);
+    out.write(plain);
+    out.close();
+
+    java.io.ByteArrayOutputStream zlib = new java.io.ByteArrayOutputStream();
+    java.util.zip.DeflaterOutputStream dout = new java.util.zip.DeflaterOutputStream(zlib);
+    dout.write(plain);
+    dout.close();
+
+    java.io.ByteArrayOutputStream raw = new java.io.ByteArrayOutputStream();
+    dout = new java.util.zip.DeflaterOutputStream(raw, new java.util.zip.Deflater(9, true));
+    dout.write(plain);
+    dout.close();
+
+    java.nio.charset.Charset latin1 = java.nio.charset.Charset.forName("ISO-8859-1");
+    byte[][] bodies = { gz.toByteArray(), zlib.toByteArray(), raw.toByteArray() };
+    for (int b=0; b<bodies.length; b++)
+    {
+      java.io.InputStream in = new InflatingInputStream(new java.io.ByteArrayInputStream(bodies[b]), b == 0);
+      Response r = new Response(in, latin1, new HeaderTable(), 200);
+      assertEquals("Body "+b, page.toString(), r.getBody());
+      assertEquals("Compressed "+b, bodies[b].length, r.getCompressedBytes());
+      assertEquals("Decompressed "+b, plain.length, r.getDecompressedBytes());
+    }
+
+    byte[] corrupt = gz.toByteArray();
+    corrupt[corrupt.length - 8] ^= 1; // the CRC
+    Response r = new Response(new InflatingInputStream(new java.io.ByteArrayInputStream(corrupt), true), latin1, new HeaderTable(), 200);
+    try
+    {
+      r.getBody();
+      fail("Bad CRC not spotted");
+    }
+    catch (java.io.UncheckedIOException expected)
+    {
+    }
+
+    r = new Response(new InflatingInputStream(new java.io.ByteArrayInputStream(new byte[0]), true), latin1, new HeaderTable(), 304);
+    assertEquals("Empty", "", r.getBody());
+
+  }
+
+
+  /**
+   * Test asking the server for a compressed body.
+   */
+  public void testCompression() throws Exception
+  {
+
+    Session s = new Session();
+    s.setHTTPVersion("HTTP/1.1");
+    assert("Off by default", !s.getCompression());
+
+    Response plain = s.request(TEST_SERVER+"/test/big");
+    assertEquals("Not compressed", plain.getCompressedBytes(), plain.getDecompressedBytes());
+
+    s.setCompression(true);
+    assert("On", s.getCompression());
+
+    String[] urls = { "/test/big", "/test/big-chunked" };
+    for (int i=0; i<urls.length; i++)
+    {
+      Response r = s.request(TEST_SERVER+urls[i]);
+      assertEquals("Encoding", "gzip", r.getHeader("Content-Encoding", 0));
+      assertEquals("Same body", plain.getBody(), r.getBody());
+      assert("Smaller", r.getCompressedBytes() < r.getDecompressedBytes());
+      assertEquals("Decompressed", plain.getDecompressedBytes(), r.getDecompressedBytes());
+    }
+
+    Extractor rules = new Extractor(new String[] { "Order id: " }, new String[] { "." });
+    Response r = s.request(TEST_SERVER+"/test/big", rules);
+    assertEquals("Extracted", "42", r.getExtracted()[0]);
+    assert("Read to the end", !r.isTruncated());
+
+    s.setCompression(false);
+
+    // Found in the last chunk, with the chunk ending the body still unread.
+    r = s.request(TEST_SERVER+"/test/big-chunked", rules);
+    assertEquals("Extracted from chunks", "42", r.getExtracted()[0]);
+    assert("Last chunk read to the end", !r.isTruncated());
+    assertNull("Off again", s.request(TEST_SERVER+"/test/simple.html").getHeader("Content-Encoding"));
+
+  }
+
+
+  /**
+   * Test caching parsed URLs and host addresses.
+   */
+  public void testResolver() throws Exception
+  {
+
+    Resolver r = new Resolver();
+    assert("Same URL", r.parse(TEST_SERVER+"/test/simple.html") == r.parse(TEST_SERVER+"/test/simple.html"));
+    assert("Same address", r.resolve("localhost") == r.resolve("localhost"));
+
+    r.setTTL(0);
+    r.clear();
+    assertEquals("Looked up again", r.resolve("localhost"), r.resolve("localhost"));
+
+    try
+    {
+      r.parse("not a url");
+      fail("Bad URL parsed");
+    }
+    catch (java.net.MalformedURLException expected)
+    {
+    }
+
+  }
+
+
+  /**
+   * Test opening connections before the first request.
+   */
+  public void testWarmUp() throws Exception
+  {
+
+    Session s = new Session();
+    s.setHTTPVersion("HTTP/1.1");
+    java.net.URL server = new java.net.URL(TEST_SERVER);
+    s.warmUp(server.getHost(), server.getPort(), 2);
+
+    for (int i=0; i<2; i++)
+    {
+      Response r = s.request(TEST_SERVER+"/test/simple.html");
+      assertEquals("Status", 200, r.getStatusCode());
+      assertEquals("Already connected", 0, r.getTiming().getConnectedNanos());
+    }
+
+    s.close();
+
+  }
+
+
+  /**
+   * Test the echo server handling several connections at once.
+   */
+  public void testConcurrentEchoServer() throws Exception
+  {
+
+    final EchoServer echo = new EchoServer(0);
+    echo.setConcurrent(true);
+    java.io.ByteArrayOutputStream captured = new java.io.ByteArrayOutputStream();
+    echo.setOutput(captured);
+
+    Thread server = new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          echo.go();
+        }
+        catch (java.io.IOException iox)
+        {
+        }
+      }
+    };
+    server.start();
+    while (echo.getPort() == -1) Thread.sleep(10);
+
+    // Three connections, all open at once, sending in turn.
+    java.net.Socket[] sockets = new java.net.Socket[3];
+    for (int i=0; i<sockets.length; i++) sockets[i] = new java.net.Socket("127.0.0.1", echo.getPort());
+    for (int line=0; line<2; line++)
+    {
+      for (int i=0; i<sockets.length; i++)
+      {
+        sockets[i].getOutputStream().write(("conn "+i+" line "+line+"\n").getBytes());
+        sockets[i].getOutputStream().flush();
+      }
+    }
+    for (int i=0; i<sockets.length; i++) sockets[i].close();
+
+    String out = "";
+    for (int tries=0; tries<200 && out.split("closed").length < 4; tries++)
+    {
+      Thread.sleep(10);
+      out = captured.toString();
+    }
+
+    echo.stop();
+    server.join(5000);
+    assert("Stopped", !server.isAlive());
+
+    out = captured.toString();
+    for (int i=0; i<sockets.length; i++)
+    {
+      for (int line=0; line<2; line++) assert("Received", out.indexOf("conn "+i+" line "+line+"\n") != -1);
+    }
+    for (int id=1; id<=3; id++)
+    {
+      assert("Connected", out.indexOf("--- #"+id+" connected from ") != -1);
+      assert("Closed", out.indexOf("--- #"+id+" closed ---") != -1);
+    }
+
+  }
+
+
+  /**
+   * Test the stand-in server's pages: templates, sizes, chunks and drips.
+   */
+  public void testStandInServer() throws Exception
+  {
+
+    StandInServer server = new StandInServer(0);
+
+    StandInServer.Page page = new StandInServer.Page(201, "Created", "Hi ${param.who|nobody}, ${cookie.flavour}");
+    page.addHeader("Content-Type", "text/plain");
+    page.addCookie("seen=${param.who}; path=/");
+    page.setBodySize(100);
+    page.setChunkSize(16);
+    server.add("/hello", page);
+
+    page = new StandInServer.Page("slow");
+    page.setDrip(1, 50);
+    server.add("/slow", page);
+
+    server.start();
+    String base = "http://127.0.0.1:"+server.getPort();
+
+    try
+    {
+      Session s = new Session();
+      s.setHTTPVersion("HTTP/1.1");
+      s.addCookie(new Cookie("flavour", "mint"));
+
+      Response r = s.request(base+"/hello?who=Sam+Smith");
+      assertEquals("Status", 201, r.getStatusCode());
+      assertEquals("Type", "text/plain", r.getHeader("Content-Type", 0));
+      assertEquals("Chunked", "chunked", r.getHeader("Transfer-Encoding", 0));
+      assertEquals("Size", 100, r.getBody().length());
+      assertEquals("Body", "Hi Sam Smith, mint", r.getBody().trim());
+      assertEquals("Cookie", "Sam Smith", s.getCookieValue("seen"));
+
+      assertEquals("Default", "Hi nobody, mint", s.request(base+"/hello").getBody().trim());
+      assertEquals("Not found", 404, s.request(base+"/nowhere").getStatusCode());
+
+      long start = System.currentTimeMillis();
+      assertEquals("Drip", "slow", s.request(base+"/slow").getBody());
+      assert("Dripped", System.currentTimeMillis() - start >= 150);
+
+      assertEquals("Requests", 4, server.getRequestCount());
+      s.close();
+    }
+    finally
+    {
+      server.stop();
+    }
+
+  }
+
+
+  /**
+   * Test appending to a record log past its first mapping, and reading it back.
+   */
+  public void testRecordLog() throws java.io.IOException
+  {
+
+    java.io.File f = java.io.File.createTempFile("jsptest", ".log");
+    f.deleteOnExit();
+
+    RecordLog log = new RecordLog(f, 64);
+    for (int i=0; i<100; i++) log.append(i % 3, ("record "+i).getBytes(), 0, ("record "+i).length());
+    log.close();
+    log.append(0, "too late".getBytes(), 0, 8); // dropped, not an error
+
+    RecordLog.Reader reader = new RecordLog.Reader(f);
+    long last = -1;
+    for (int i=0; i<100; i++)
+    {
+      assert("Record "+i, reader.next());
+      assertEquals("Id", i % 3, reader.getId());
+      assertEquals("Data", "record "+i, new String(reader.getData()));
+      assert("In time order", reader.getTime() >= last);
+      last = reader.getTime();
+    }
+    assert("End", !reader.next());
+
+  }
+
+
+  /**
+   * Test capturing requests with the echo server and replaying them.
+   */
+  public void testCaptureReplay() throws Exception
+  {
+
+    java.io.File f = java.io.File.createTempFile("jsptest", ".log");
+    f.deleteOnExit();
+
+    final EchoServer echo = new EchoServer(0);
+    echo.setConcurrent(true);
+    echo.setCapture(f);
+    java.io.ByteArrayOutputStream printed = new java.io.ByteArrayOutputStream();
+    echo.setOutput(printed);
+
+    Thread server = new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          echo.go();
+        }
+        catch (java.io.IOException iox)
+        {
+        }
+      }
+    };
+    server.start();
+    while (echo.getPort() == -1) Thread.sleep(10);
+
+    // Two requests in one write, one split over two writes 200ms later, and a POST.
+    java.net.Socket a = new java.net.Socket("127.0.0.1", echo.getPort());
+    java.net.Socket b = new java.net.Socket("127.0.0.1", echo.getPort());
+    a.getOutputStream().write("GET /test/simple.jsp HTTP/1.1\r\nHost: x\r\n\r\nGET /test/echo.jsp?name=You HTTP/1.1\r\n\r\n".getBytes());
+    b.getOutputStream().write("POST /test/simple.html HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc".getBytes());
+    Thread.sleep(200);
+    b.getOutputStream().write("GET http://example.com/test/simple.html HT".getBytes());
+    b.getOutputStream().flush();
+    Thread.sleep(20);
+    b.getOutputStream().write("TP/1.1\r\n\r\n".getBytes());
+    a.close();
+    b.close();
+
+    for (int tries=0; tries<200 && printed.toString().split("closed").length < 3; tries++) Thread.sleep(10);
+    echo.stop();
+    server.join(5000);
+
+    Replayer replay = new Replayer(f);
+    assertEquals("Connections", 2, replay.getConnections());
+    assertEquals("Requests", 3, replay.getRequests());
+    assertEquals("Skipped", 1, replay.getSkipped());
+
+    replay.setSpeed(4);
+    LoadReport report = replay.run(TEST_SERVER);
+    assertEquals("Replayed", 3, report.getRequests());
+    assertEquals("Errors", 0, report.getErrors());
+    assertEquals("Status 200", 3, report.getStatusStats(200).getCount());
+    assertEquals("Echo", 1, report.getURLStats(TEST_SERVER+"/test/echo.jsp").getCount());
+    assert("Scaled gap", report.getElapsedMillis() >= 40);
+
+  }
+
+
+  /**
+   * Record responses from a server, then replay them with the server gone.
+   */
+  public void testResponseStore() throws Exception
+  {
+
+    java.io.File f = java.io.File.createTempFile("jsptest", ".responses");
+    f.deleteOnExit();
+
+    StandInServer server = new StandInServer(0);
+    server.addTestPages();
+    StandInServer.Page big = new StandInServer.Page("Order id: 42.");
+    big.setBodySize(5000);
+    big.setCompressible(true);
+    server.add("/big", big);
+    server.add("/seq", new StandInServer.Page("First"));
+    server.start();
+    String base = "http://127.0.0.1:"+server.getPort();
+
+    ResponseStore store = new ResponseStore(f, ResponseStore.RECORD);
+    Session s = new Session();
+    s.setHTTPVersion("HTTP/1.1");
+    s.setCompression(true);
+    s.setResponseStore(store);
+
+    String simple_body = s.request(base+"/test/simple.jsp").getBody();
+    String echo_body = s.request(base+"/test/echo.jsp?name=You").getBody();
+    assert("Recorded echo", echo_body.indexOf("You") != -1);
+    assertEquals("Recorded seq", "First", s.request(base+"/seq").getBody());
+    server.add("/seq", new StandInServer.Page(404, "Not Found", "Second"));
+    assertEquals("Recorded seq", "Second", s.request(base+"/seq").getBody());
+    String big_body = s.requestAsync(base+"/big").get().getBody();
+    assert("Recorded big", big_body.indexOf("Order id: 42.") != -1);
+    assertEquals("Recorded", 5, store.size());
+    store.close();
+    s.close();
+
+    long served = server.getRequestCount();
+    server.stop();
+
+    store = new ResponseStore(f, ResponseStore.REPLAY);
+    assertEquals("Replayable", 5, store.size());
+
+    Session r = new Session();
+    r.setResponseStore(store);
+
+    Response res = r.request(base+"/test/simple.jsp");
+    assertEquals("Status", 200, res.getStatusCode());
+    assertEquals("Cookie from replay", "test_value", r.getCookieValue("test_name"));
+    assertNotNull("Timing", res.getTiming());
+    assertEquals("Simple", simple_body, res.getBody());
+
+    assertEquals("Echo", echo_body, r.request(base+"/test/echo.jsp?name=You").getBody());
+    assertEquals("First", "First", r.request(base+"/seq").getBody());
+
+    res = r.request(base+"/seq");
+    assertEquals("Second", "Second", res.getBody());
+    assertEquals("Second status", 404, res.getStatusCode());
+    assertEquals("Last repeated", "Second", r.request(base+"/seq").getBody());
+
+    res = r.requestAsync(base+"/big").get();
+    assertEquals("Big, async", big_body, res.getBody());
+    assertNull("Stored decoded", res.getHeader("Content-Encoding"));
+    assertEquals("Stored length", String.valueOf(big_body.length()), res.getHeader("Content-Length", 0));
+
+    try
+    {
+      r.request(base+"/test/simple.html");
+      fail("Replayed a response never recorded");
+    }
+    catch (java.io.IOException iox)
+    {
+    }
+
+    assertEquals("No requests while replaying", served, server.getRequestCount());
+
+  }
+
+
+  /**
+   * Revalidate kept responses, and drop the least recently used.
+   */
+  public void testResponseCache() throws Exception
+  {
+
+    StandInServer server = new StandInServer(0);
+    StandInServer.Page tagged = new StandInServer.Page("Tagged");
+    tagged.addHeader("ETag", "\"v1\"");
+    server.add("/tagged", tagged);
+    StandInServer.Page dated = new StandInServer.Page("Dated");
+    dated.addHeader("Last-Modified", "Mon, 01 Jan 2001 00:00:00 GMT");
+    server.add("/dated", dated);
+    server.add("/plain", new StandInServer.Page("Plain"));
+    StandInServer.Page vary = new StandInServer.Page("Hello ${cookie.who|nobody}");
+    vary.addHeader("ETag", "\"v\"");
+    vary.addHeader("Vary", "Cookie");
+    server.add("/vary", vary);
+    StandInServer.Page login = new StandInServer.Page("Logged in");
+    login.addCookie("who=${param.who}; path=/");
+    server.add("/login", login);
+    StandInServer.Page big = new StandInServer.Page("Big");
+    big.addHeader("ETag", "\"big\"");
+    big.setBodySize(5000);
+    server.add("/big", big);
+    StandInServer.Page huge = new StandInServer.Page("Huge");
+    huge.addHeader("ETag", "\"huge\"");
+    huge.setBodySize(200000);
+    server.add("/huge", huge);
+    server.start();
+    String base = "http://127.0.0.1:"+server.getPort();
+
+    ResponseCache cache = new ResponseCache();
+    Session s = new Session();
+    s.setHTTPVersion("HTTP/1.1");
+    s.setResponseCache(cache);
+
+    assertEquals("Tagged", "Tagged", s.request(base+"/tagged").getBody());
+    assertEquals("Misses", 1, cache.getMisses());
+    assertEquals("Kept", 1, cache.size());
+
+    Response r = s.request(base+"/tagged");
+    assertEquals("Tagged again", "Tagged", r.getBody());
+    assertEquals("Status from cache", 200, r.getStatusCode());
+    assertEquals("Hits", 1, cache.getHits());
+
+    StandInServer.Page changed = new StandInServer.Page("Changed");
+    changed.addHeader("ETag", "\"v2\"");
+    server.add("/tagged", changed);
+    assertEquals("Changed", "Changed", s.request(base+"/tagged").getBody());
+    assertEquals("Changed, async", "Changed", s.requestAsync(base+"/tagged").get().getBody());
+    assertEquals("Hits", 2, cache.getHits());
+
+    s.request(base+"/dated").getBody();
+    assertEquals("Dated", "Dated", s.request(base+"/dated").getBody());
+    assertEquals("Hits", 3, cache.getHits());
+
+    s.request(base+"/plain").getBody();
+    assertEquals("Plain", "Plain", s.request(base+"/plain").getBody());
+    assertEquals("Hits", 3, cache.getHits());
+    assertEquals("Kept", 2, cache.size());
+
+    // A page that varies by cookie, shared between sessions.
+    Session a = new Session();
+    Session b = new Session();
+    a.setResponseCache(cache);
+    b.setResponseCache(cache);
+    a.request(base+"/login?who=a").getBody();
+    b.request(base+"/login?who=b").getBody();
+    assertEquals("A", "Hello a", a.request(base+"/vary").getBody());
+    assertEquals("B", "Hello b", b.request(base+"/vary").getBody());
+    assertEquals("A again", "Hello a", a.request(base+"/vary").getBody());
+    assertEquals("Hits", 4, cache.getHits());
+
+    // Least recently used goes first.
+    cache = new ResponseCache(2, ResponseCache.DEFAULT_MAX_BYTES);
+    s.setResponseCache(cache);
+    s.request(base+"/tagged").getBody();
+    s.request(base+"/dated").getBody();
+    s.request(base+"/tagged").getBody();
+    s.request(base+"/big").getBody();
+    assertEquals("Entry budget", 2, cache.size());
+    s.request(base+"/tagged").getBody();
+    assertEquals("Kept most recent", 2, cache.getHits());
+    s.request(base+"/dated").getBody();
+    assertEquals("Dropped least recent", 2, cache.getHits());
+
+    // Too big to keep at all, and only as many as fit.
+    cache = new ResponseCache(10, 1000);
+    s.setResponseCache(cache);
+    assertEquals("Big body", 5000, s.request(base+"/big").getBody().length());
+    assertEquals("Byte budget", 0, cache.size());
+    s.request(base+"/tagged").getBody();
+    s.request(base+"/dated").getBody();
+    assertEquals("Under budget", 2, cache.size());
+    assert("Bytes counted", cache.getBytes() > 0 && cache.getBytes() <= 1000);
+
+    // Kept as the body is read: a body only partly read isn't kept, and a
+    // streamed body is kept once it has been read to the end.
+    cache = new ResponseCache();
+    s.setResponseCache(cache);
+    r = s.request(base+"/huge", new Extractor(new String[] { "H" }, new String[] { "g" }));
+    assertEquals("Extracted", "u", r.getExtracted()[0]);
+    assert("Stopped early", r.isTruncated());
+    assertEquals("Partly read", 0, cache.size());
+    r = s.requestStream(base+"/huge");
+    assertEquals("Not read yet", 0, cache.size());
+    assertEquals("Streamed", 200000, Response.readBytes(r.getBodyStream()).length);
+    assertEquals("Read to the end", 1, cache.size());
+    assertEquals("Huge from cache", 200000, s.request(base+"/huge").getBody().length());
+    assertEquals("Hit", 1, cache.getHits());
+
+    // A body read a byte at a time is held to the byte budget too.
+    cache = new ResponseCache(10, 1000);
+    s.setResponseCache(cache);
+    java.io.InputStream in = s.requestStream(base+"/big").getBodyStream();
+    int n = 0;
+    while (in.read() != -1) n++;
+    in.close();
+    assertEquals("Read a byte at a time", 5000, n);
+    assertEquals("Too big to keep", 0, cache.size());
+
+    // A compressed body is kept decoded, with headers to match.
+    StandInServer.Page packed = new StandInServer.Page("Packed");
+    packed.addHeader("ETag", "\"packed\"");
+    packed.setBodySize(5000);
+    packed.setCompressible(true);
+    packed.setChunkSize(1000);
+    server.add("/packed", packed);
+    cache = new ResponseCache();
+    s.setResponseCache(cache);
+    s.setCompression(true);
+    r = s.request(base+"/packed");
+    assertEquals("Sent compressed", "gzip", r.getHeader("Content-Encoding", 0));
+    String body = r.getBody();
+    r = s.request(base+"/packed");
+    assertEquals("Packed hit", 1, cache.getHits());
+    assertEquals("Same body", body, r.getBody());
+    assertNull("No encoding", r.getHeader("Content-Encoding"));
+    assertNull("No transfer encoding", r.getHeader("Transfer-Encoding"));
+    assertEquals("Length of the kept body", String.valueOf(body.length()), r.getHeader("Content-Length", 0));
+
+    s.close();
+    server.stop();
+
+  }
+
+
+  /**
+   * Run tests in parallel, each with a session of its own, capped per host.
+   */
+  public void testParallelRunner() throws Exception
+  {
+
+    StandInServer server = new StandInServer(0);
+    StandInServer.Page login = new StandInServer.Page("Logged in");
+    login.addCookie("who=${param.who}; path=/");
+    server.add("/login", login);
+    StandInServer.Page slow = new StandInServer.Page("${cookie.who|nobody}");
+    slow.setDrip(2, 50);
+    server.add("/slow", slow);
+    server.start();
+    ParallelCase.base = "http://127.0.0.1:"+server.getPort();
+
+    // Six slow tests (two drips of 50ms each), and one that fails.
+    ParallelRunner runner = new ParallelRunner(8);
+    SuiteReport report = runner.run(new junit.framework.TestSuite(ParallelCase.class));
+    assertEquals("Run", 7, report.getResult().runCount());
+    assertEquals("Failures", 1, report.getResult().failureCount());
+    assertEquals("Errors", 0, report.getResult().errorCount());
+    assert("In parallel: "+report.getElapsedMillis(), report.getElapsedMillis() < 450);
+
+    String[] tests = report.getTests();
+    assertEquals("Timed", 7, tests.length);
+    assertEquals("Fastest last", "testFails(com.dallaway.jsptest.JSPTestTest$ParallelCase)", tests[6]);
+    assert("Slow test", report.getMillis(tests[0]) >= 90);
+    assertEquals("Not run", -1, report.getMillis("testNothing"));
+
+    // Two at a time: three rounds of slow requests.
+    runner.setMaxPerHost(2);
+    report = runner.run(new junit.framework.TestSuite(ParallelCase.class));
+    assertEquals("Capped run", 7, report.getResult().runCount());
+    assertEquals("Capped failures", 1, report.getResult().failureCount());
+    assert("Capped: "+report.getElapsedMillis(), report.getElapsedMillis() >= 250);
+    assert("Cap: "+ParallelCase.most, ParallelCase.most > 0 && ParallelCase.most <= 2);
+
+    server.stop();
+
+  }
+
+
+  /**
+   * Tests for <code>testParallelRunner()</code> to run.  Each logs in as
+   * itself, then checks its session is still itself on a slow page.
+   */
+  public static class ParallelCase extends SessionTestCase
+  {
+    static String base;
+    static int most = 0;
+
+    public ParallelCase(String name)
+    {
+      super(name);
+    }
+
+    private void check() throws Exception
+    {
+      final Session s = getSession();
+
+      // Requests still count against the limiter when the listener hears of them.
+      if (s.getHostLimiter() != null) s.setRequestListener(new RequestListener()
+      {
+        public void requestCompleted(String url, Response response, long nanos)
+        {
+          try
+          {
+            int active = s.getHostLimiter().getActive(new java.net.URL(url));
+            synchronized (ParallelCase.class)
+            {
+              most = Math.max(most, active);
+            }
+          }
+          catch (java.net.MalformedURLException mux)
+          {
+          }
+        }
+
+        public void requestFailed(String url, Exception x, long nanos)
+        {
+        }
+      });
+
+      s.request(base+"/login?who="+getName()).getBody();
+      assertEquals("Own session", getName(), s.request(base+"/slow").getBody());
+    }
+
+    public void testA() throws Exception { check(); }
+    public void testB() throws Exception { check(); }
+    public void testC() throws Exception { check(); }
+    public void testD() throws Exception { check(); }
+    public void testE() throws Exception { check(); }
+    public void testF() throws Exception { check(); }
+
+    public void testFails()
+    {
+      fail("On purpose");
+    }
+  }
+
+
+  /**
+   * Read timeouts, deadlines and cancelling stop requests to a stalled server.
+   */
+  public void testTimeouts() throws Exception
+  {
+
+    StandInServer server = new StandInServer(0);
+    StandInServer.Page stall = new StandInServer.Page("Stalled");
+    stall.setDrip(1, 5000);
+    server.add("/stall", stall);
+    StandInServer.Page trickle = new StandInServer.Page("Trickling in, a byte at a time");
+    trickle.setDrip(1, 100);
+    server.add("/trickle", trickle);
+    StandInServer.Page slow = new StandInServer.Page("ok");
+    slow.setDrip(1, 300);
+    server.add("/slow", slow);
+    server.add("/fast", new StandInServer.Page("Fast"));
+    server.start();
+    String base = "http://127.0.0.1:"+server.getPort();
+
+    Session s = new Session();
+    s.setHTTPVersion("HTTP/1.1");
+    s.setConnectTimeout(1000);
+    assertEquals("Connect timeout", "Fast", s.request(base+"/fast").getBody());
+
+    // Nothing for longer than the read timeout.
+    s.setReadTimeout(200);
+    long start = System.currentTimeMillis();
+    try
+    {
+      s.request(base+"/stall");
+      fail("Read timeout");
+    }
+    catch (RequestTimeoutException rtx)
+    {
+      assertEquals("Read", RequestTimeoutException.READ, rtx.getKind());
+      assert("Socket timeout kept", rtx.getCause() instanceof java.net.SocketTimeoutException);
+    }
+    assert("Read timed out", System.currentTimeMillis() - start < 2000);
+    assertEquals("After a timeout", "Fast", s.request(base+"/fast").getBody());
+
+    // Each read is quick enough, but the whole thing isn't.
+    s.setDeadline(300);
+    start = System.currentTimeMillis();
+    try
+    {
+      s.request(base+"/trickle");
+      fail("Deadline");
+    }
+    catch (RequestTimeoutException rtx)
+    {
+      assertEquals("Deadline", RequestTimeoutException.DEADLINE, rtx.getKind());
+    }
+    assert("Deadline passed", System.currentTimeMillis() - start < 2000);
+
+    // A deadline covers a body read later, too.
+    Response r = s.requestStream(base+"/trickle");
+    try
+    {
+      r.getBody();
+      fail("Deadline while streaming");
+    }
+    catch (java.io.UncheckedIOException uiox)
+    {
+      assert("Streaming deadline", uiox.getCause() instanceof RequestTimeoutException);
+    }
+
+    // Options for one request take the place of the session's.
+    RequestOptions patient = new RequestOptions();
+    patient.setReadTimeout(0);
+    patient.setDeadline(0);
+    assertEquals("Patient", "ok", s.request(base+"/slow", patient).getBody());
+    try
+    {
+      s.request(base+"/slow");
+      fail("Impatient");
+    }
+    catch (RequestTimeoutException rtx)
+    {
+    }
+
+    // Cancelled from another thread.
+    final RequestOptions options = new RequestOptions();
+    options.setReadTimeout(0);
+    options.setDeadline(0);
+    new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          Thread.sleep(200);
+        }
+        catch (InterruptedException ix)
+        {
+        }
+        options.cancel();
+      }
+    }.start();
+
+    start = System.currentTimeMillis();
+    try
+    {
+      s.request(base+"/stall", options);
+      fail("Cancel");
+    }
+    catch (RequestTimeoutException rtx)
+    {
+      fail("Cancelled, not timed out");
+    }
+    catch (java.io.InterruptedIOException iiox)
+    {
+    }
+    assert("Cancelled", System.currentTimeMillis() - start < 2000);
+    try
+    {
+      s.request(base+"/fast", options);
+      fail("Still cancelled");
+    }
+    catch (java.io.InterruptedIOException iiox)
+    {
+    }
+
+    // The deadline applies to asynchronous requests.
+    try
+    {
+      s.requestAsync(base+"/stall").get();
+      fail("Async deadline");
+    }
+    catch (java.util.concurrent.ExecutionException ex)
+    {
+      assert("Async deadline", ex.getCause() instanceof RequestTimeoutException);
+    }
+
+    // Cancelling an asynchronous request stops it, even with a listener between.
+    final Exception[] heard = new Exception[1];
+    s.setRequestListener(new RequestListener()
+    {
+      public void requestCompleted(String url, Response response, long nanos)
+      {
+      }
+
+      public void requestFailed(String url, Exception x, long nanos)
+      {
+        heard[0] = x;
+      }
+    });
+    s.setDeadline(0);
+    java.util.concurrent.CompletableFuture<Response> pending = s.requestAsync(base+"/stall");
+    Thread.sleep(100);
+    assert("Async cancel", pending.cancel(true));
+    assert("Cancel passed on", heard[0] instanceof java.util.concurrent.CancellationException);
+    s.setRequestListener(null);
+
+    // Counted apart from other errors.
+    LoadReport report = new LoadReport();
+    report.failed(new RequestTimeoutException(RequestTimeoutException.READ, "Slow"));
+    report.failed(new java.io.IOException("Refused"));
+    assertEquals("Timeouts", 1, report.getTimeouts());
+    assertEquals("Errors", 1, report.getErrors());
+    assertEquals("Requests", 2, report.getRequests());
+
+    s.close();
+    server.stop();
+
+  }
+
+
+  /**
+   * Test that a cookie sent again with the same value leaves the session,
+   * and the headers built from it, as they were.
+   */
+  public void testRepeatedCookie() throws Exception
+  {
+
+    Session s = new Session();
+    java.net.URL u = new java.net.URL(TEST_SERVER+"/test/simple.jsp");
+
+    s.request(TEST_SERVER+"/test/simple.jsp");
+    byte[] block = s.getHeaderBlock(u);
+    s.request(TEST_SERVER+"/test/simple.jsp");
+    assert("Same cookie, same headers", block == s.getHeaderBlock(u));
+    assertEquals("Cookie kept", "test_value", s.getCookieValue("test_name"));
+
+    s.addCookie(new Cookie("test_name", "changed"));
+    assert("Changed cookie, new headers", block != s.getHeaderBlock(u));
+
+  }
+
+
+  /**
+   * Test that the encoded request headers are re-used until a header or
+   * cookie in them changes.
+   */
+  public void testHeaderBlock() throws Exception
+  {
+
+    Session s = new Session();
+    java.net.URL u = new java.net.URL("http://localhost/test/simple.jsp");
+
+    byte[] block = s.getHeaderBlock(u);
+    assert("Re-used", block == s.getHeaderBlock(u));
+
+    s.setHeader("X-Test", "1");
+    byte[] headed = s.getHeaderBlock(u);
+    assert("Rebuilt for a header", headed != block);
+    assert("Has the header", new String(headed, "ISO-8859-1").indexOf("X-Test: 1\r\n") != -1);
+    assert("Re-used with the header", headed == s.getHeaderBlock(u));
+
+    s.addCookie(new Cookie("short=lived; Max-Age=1"));
+    byte[] cookied = s.getHeaderBlock(u);
+    assert("Rebuilt for a cookie", cookied != headed);
+    assert("Has the cookie", new String(cookied, "ISO-8859-1").indexOf("Cookie: short=lived\r\n") != -1);
+    assert("Re-used with the cookie", cookied == s.getHeaderBlock(u));
+
+    Thread.sleep(1100);
+    byte[] expired = s.getHeaderBlock(u);
+    assert("Rebuilt once the cookie expires", expired != cookied);
+    assert("Cookie gone", new String(expired, "ISO-8859-1").indexOf("short=lived") == -1);
+
+  }
+
+
   /**
    * A simple http request for a JSP that will send back a cookie.
    */
@@ -242,6 +1360,120 @@ public class JSPTestTest extends TestCase
   }
 
 
+  /**
+   * Test an asynchronous request, which should behave just like a
+   * blocking one.
+   */
+  public void testAsyncRequest()
+  {
+
+    Session s = new Session();
+    Response r = null;
+
+    try
+    {
+      r = (Response)s.requestAsync(TEST_SERVER+"/test/simple.jsp").get();
+    }
+    catch (Exception x)
+    {
+      fail("Exception requesting HTTP: "+x.getMessage());
+    }
+
+    assertEquals("Status", 200, r.getStatusCode());
+    assert("Wrong filename", r.getBody().indexOf("filename=simple.jsp") != -1);
+    assertEquals("Cookie value", "test_value", s.getCookieValue("test_name"));
+
+    // A request that can't be made fails the future, rather than being thrown.
+    try
+    {
+      s.requestAsync("http://127.0.0.1:99999/").get();
+      fail("Port out of range");
+    }
+    catch (java.util.concurrent.ExecutionException x)
+    {
+      assert("Bad port", x.getCause() instanceof IllegalArgumentException);
+    }
+    catch (InterruptedException ix)
+    {
+      fail("Interrupted");
+    }
+
+  }
+
+
+  /**
+   * Test a small load run: every request should be counted against its URL
+   * and status code.
+   */
+  public void testLoadRunner() throws InterruptedException
+  {
+
+    Scenario scenario = new Scenario()
+    {
+      public void run(Session session) throws Exception
+      {
+        session.request(TEST_SERVER+"/test/simple.html");
+        session.request(TEST_SERVER+"/test/echo.jsp?name=You");
+      }
+    };
+
+    LoadRunner runner = new LoadRunner(scenario, 3);
+    runner.setIterations(4);
+    LoadReport report = runner.run();
+
+    assertEquals("Iterations", 12, report.getIterations());
+    assertEquals("Failed iterations", 0, report.getFailedIterations());
+    assertEquals("Requests", 24, report.getRequests());
+    assertEquals("Echo requests", 12, report.getURLStats(TEST_SERVER+"/test/echo.jsp").getCount());
+    assertEquals("Status 200", 24, report.getStatusStats(200).getCount());
+    assert("Percentiles in order", report.getStats().getPercentile(50) <= report.getStats().getPercentile(99));
+
+    // A failed assertion is a failed iteration, not the end of the user.
+    runner = new LoadRunner(new Scenario()
+    {
+      public void run(Session session) throws Exception
+      {
+        assertEquals("Always fails", 200, 404);
+      }
+    }, 2);
+    runner.setIterations(3);
+    report = runner.run();
+    assertEquals("Asserted iterations", 6, report.getIterations());
+    assertEquals("Failed asserts", 6, report.getFailedIterations());
+
+  }
+
+
+  /**
+   * Test that each stage of a request is timed, in order.
+   */
+  public void testRequestTiming()
+  {
+
+    Session s = new Session();
+    Response r = null;
+
+    try
+    {
+      r = s.request(TEST_SERVER+"/test/simple.html");
+    }
+    catch (Exception x)
+    {
+      fail("Exception requesting HTTP: "+x.getMessage());
+    }
+
+    RequestTiming t = r.getTiming();
+    assert("Connect after DNS", t.getConnectedNanos() >= t.getResolvedNanos());
+    assert("Written after connect", t.getWrittenNanos() >= t.getConnectedNanos());
+    assert("First byte after written", t.getFirstByteNanos() >= t.getWrittenNanos());
+    assert("Headers after first byte", t.getHeadersNanos() >= t.getFirstByteNanos());
+    assert("Body after headers", t.getBodyNanos() >= t.getHeadersNanos());
+    assert("Bytes sent", t.getBytesSent() > 0);
+    assert("Bytes received", t.getBytesReceived() > r.getBody().length());
+
+  }
+
+
   /**
    * Test the getBetween methods of request.
    */
@@ -286,6 +1518,240 @@ public class JSPTestTest extends TestCase
 
 
 
+  /**
+   * Test reading a chunked body, and that the stream stops at the end of it.
+   */
+  public void testChunkedBody() throws java.io.IOException
+  {
+
+    String chunked = "5\r\nHello\r\n7;ext=1\r\n, world\r\n0\r\nTrailer: x\r\n\r\nNEXT";
+    java.io.InputStream raw = new java.io.ByteArrayInputStream(chunked.getBytes("ISO-8859-1"));
+    java.io.InputStream in = new ChunkedInputStream(raw);
+
+    StringBuffer body = new StringBuffer();
+    int c;
+    while ((c = in.read()) != -1) body.append((char)c);
+
+    assertEquals("Body", "Hello, world", body.toString());
+
+    // The next response starts straight after the chunked body.
+    assertEquals("Next", "NEXT", Connection.readLine(raw));
+
+  }
+
+
+
+  /**
+   * Test that connections are kept alive and re-used, but not when the
+   * server says it will close them, and that a connection the server has
+   * closed, or one idle for too long, isn't used again.
+   */
+  public void testKeepAlive() throws Exception
+  {
+
+    StandInServer server = new StandInServer(0);
+    server.add("/page", new StandInServer.Page("Page"));
+    StandInServer.Page close = new StandInServer.Page("Close");
+    close.setKeepAlive(false);
+    server.add("/close", close);
+    StandInServer.Page old = new StandInServer.Page("Old");
+    old.setVersion("HTTP/1.0");
+    server.add("/old", old);
+    server.start();
+    String base = "http://127.0.0.1:"+server.getPort();
+
+    Session s = new Session();
+    s.setHTTPVersion("HTTP/1.1");
+    for (int i=0; i<3; i++) assertEquals("Page", "Page", s.request(base+"/page").getBody());
+    assertEquals("Kept alive", 1, server.getConnectionCount());
+
+    // Connection: close is honoured.
+    assertEquals("Close", "Close", s.request(base+"/close").getBody());
+    assertEquals("Page after close", "Page", s.request(base+"/page").getBody());
+    assertEquals("Closed", 2, server.getConnectionCount());
+
+    // So is an HTTP/1.0 answer that doesn't say keep-alive.
+    assertEquals("Old", "Old", s.request(base+"/old").getBody());
+    assertEquals("Page after old", "Page", s.request(base+"/page").getBody());
+    assertEquals("Closed after HTTP/1.0", 3, server.getConnectionCount());
+
+    // The server closes the pooled connection: the request is retried on a new one.
+    long requests = server.getRequestCount();
+    server.closeConnections();
+    assertEquals("Retried", "Page", s.request(base+"/page").getBody());
+    assertEquals("New connection", 4, server.getConnectionCount());
+    assertEquals("Sent once", requests + 1, server.getRequestCount());
+
+    // Idle too long, and closed rather than re-used.
+    s.setIdleTimeout(100);
+    s.request(base+"/page").getBody();
+    assertEquals("Not idle yet", 4, server.getConnectionCount());
+    Thread.sleep(300);
+    s.request(base+"/page").getBody();
+    assertEquals("Idle timeout", 5, server.getConnectionCount());
+
+    s.close();
+    server.stop();
+
+  }
+
+
+  /**
+   * Test finding the body character set from a Content-Type header.
+   */
+  public void testCharset()
+  {
+    assertEquals("Default", "ISO-8859-1", Session.getCharset(null).name());
+    assertEquals("No charset", "ISO-8859-1", Session.getCharset("text/html").name());
+    assertEquals("UTF-8", "UTF-8", Session.getCharset("text/html; charset=utf-8").name());
+    assertEquals("Quoted", "UTF-8", Session.getCharset("text/html; charset=\"UTF-8\"; foo=bar").name());
+    assertEquals("Unknown", "ISO-8859-1", Session.getCharset("text/html; charset=no-such-thing").name());
+  }
+
+
+
+  /**
+   * Test that a streamed body is only read when asked for.
+   */
+  public void testLazyBody() throws java.io.IOException
+  {
+
+    java.nio.charset.Charset utf8 = java.nio.charset.Charset.forName("UTF-8");
+    java.io.InputStream in = new java.io.ByteArrayInputStream("caf\u00e9 animal=[dog]\r\n".getBytes(utf8));
+
+    Response r = new Response(in, utf8, new HeaderTable(), 200);
+    assertEquals("Status", 200, r.getStatusCode());
+    assertEquals("Body not read yet", 20, in.available());
+
+    assertEquals("Body", "caf\u00e9 animal=[dog]\r\n", r.getBody());
+    assertEquals("Between", "dog", r.getBetween("animal=[", "]"));
+    assertEquals("Body read", 0, in.available());
+
+    // Once taken as a stream, the body is the caller's to read.
+    Response r2 = new Response(new java.io.ByteArrayInputStream(new byte[] {'o', 'k'}), utf8, new HeaderTable(), -1);
+    java.io.InputStream body = r2.getBodyStream();
+    assertEquals("First byte", 'o', body.read());
+    assertNull("No body", r2.getBody());
+
+  }
+
+
+
+  /**
+   * Test that an extractor finds the same matches as getBetweens, for
+   * several pairs at once.
+   */
+  public void testExtractor()
+  {
+
+    String test_body =
+      "This is a test string.  animal=[dog] animal=[cat] some stuff" +
+      "more stuff animal= and animal=[] and animal=[fish] and " +
+      "animal=[ and animal=[dog] again. bestanimal=[dog]. <b>bold</b> <b>x</b>";
+
+    String[] starts = { "animal=[", "bestanimal=[", "<b>", "stuff", "|" };
+    String[] ends =   { "]",        "]",            "</b>", "stuff", "|" };
+
+    Response r = new Response(test_body, null, null);
+    String[][] found = r.getBetweens(new Extractor(starts, ends));
+
+    assertEquals("Pairs", starts.length, found.length);
+    for (int p=0; p<starts.length; p++)
+    {
+      String[] expected = r.getBetweens(starts[p], ends[p]);
+      assertEquals("Matches for pair "+p, expected.length, found[p].length);
+      for (int i=0; i<expected.length; i++)
+      {
+        assertEquals("Pair "+p+" match "+i, expected[i], found[p][i]);
+      }
+    }
+
+    assertEquals("Bold", "x", found[2][1]);
+
+  }
+
+
+
+  /**
+   * Test that extracting while reading stops once every pair is found.
+   */
+  public void testStreamingExtractor() throws java.io.IOException
+  {
+
+    java.nio.charset.Charset utf8 = java.nio.charset.Charset.forName("UTF-8");
+    StringBuffer b = new StringBuffer("<title>caf\u00e9</title> Order id: 42. ");
+    for (int i=0; i<100000; i++) b.append('x');
+    byte[] bytes = b.toString().getBytes(utf8);
+
+    Extractor rules = new Extractor(new String[] { "<title>", "Order id: " }, new String[] { "</title>", "." });
+
+    java.io.InputStream in = new java.io.ByteArrayInputStream(bytes);
+    Response r = new Response(in, utf8, new HeaderTable(), 200);
+    r.readBody(rules);
+
+    String[] found = r.getExtracted();
+    assertEquals("Title", "caf\u00e9", found[0]);
+    assertEquals("Order", "42", found[1]);
+    assert("Truncated", r.isTruncated());
+    assert("Stopped early", in.available() > 0);
+    assert("Partial body", r.getBody().length() < b.length());
+
+    // A pair that isn't there means reading the whole body.
+    rules = new Extractor(new String[] { "Order id: ", "Total: " }, new String[] { ".", "<" });
+    in = new java.io.ByteArrayInputStream(bytes);
+    r = new Response(in, utf8, new HeaderTable(), 200);
+    r.readBody(rules);
+
+    found = r.getExtracted();
+    assertEquals("Order", "42", found[0]);
+    assertNull("No total", found[1]);
+    assert("Not truncated", !r.isTruncated());
+    assertEquals("Whole body", b.toString(), r.getBody());
+
+    // Everything found in a small body already in memory (as from the cache) isn't stopping early.
+    rules = new Extractor(new String[] { "Order id: " }, new String[] { "." });
+    r = new Response(new java.io.ByteArrayInputStream("Order id: 42.".getBytes(utf8)), utf8, new HeaderTable(), 200);
+    r.readBody(rules);
+    assertEquals("Small order", "42", r.getExtracted()[0]);
+    assert("Small body not truncated", !r.isTruncated());
+
+  }
+
+
+
+  /**
+   * Test that an indexed body gives the same matches as a plain one.
+   */
+  public void testIndexedBody()
+  {
+
+    StringBuffer b = new StringBuffer();
+    for (int i=0; i<2000; i++)
+    {
+      b.append("<tr><td>row ").append(i).append("</td><td>value=[v").append(i).append("]</td></tr>\n");
+    }
+    b.append("animal=[ and animal=[dog] a=[x]");
+
+    Response plain = new Response(b.toString(), null, null);
+    Response indexed = new Response(b.toString(), null, null);
+    indexed.setIndexed(true);
+
+    String[][] pairs = { {"value=[", "]"}, {"<td>row 1999", "</tr>"}, {"animal=[", "]"}, {"a=[", "]"}, {"no such", "thing"} };
+    for (int p=0; p<pairs.length; p++)
+    {
+      String[] expected = plain.getBetweens(pairs[p][0], pairs[p][1]);
+      String[] found = indexed.getBetweens(pairs[p][0], pairs[p][1]);
+      assertEquals("Matches for pair "+p, expected.length, found.length);
+      for (int i=0; i<expected.length; i++)
+      {
+        assertEquals("Pair "+p+" match "+i, expected[i], found[i]);
+      }
+    }
+
+  }
+
+
+
   /**
    * test of sending a cookie from Session to a JSP.
    */
@@ -0,0 +1,125 @@
+package com.dallaway.jsptest;
+
+/**
+ * A set of request latencies, and the usual summaries of them.
+ *
+ * <p>
+ * All times are in nanoseconds.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+public class LatencyStats
+{
+
+  private long[] times = new long[64];
+  private int count = 0;
+  private boolean sorted = true;
+
+  /**
+   * Add a latency.
+   *
+   * @param nanos The time taken, in nanoseconds.
+   */
+  synchronized void add(long nanos)
+  {
+    if (count == times.length)
+    {
+      long[] bigger = new long[times.length * 2];
+      System.arraycopy(times, 0, bigger, 0, count);
+      times = bigger;
+    }
+
+    if (count > 0 && nanos < times[count-1]) sorted = false;
+    times[count++] = nanos;
+  }
+
+  /**
+   * Add all the latencies from another set.
+   *
+   * @param other The latencies to add.
+   */
+  synchronized void addAll(LatencyStats other)
+  {
+    long[] more;
+    int n;
+    synchronized (other)
+    {
+      more = other.times;
+      n = other.count;
+    }
+
+    for (int i=0; i<n; i++) add(more[i]);
+  }
+
+  /**
+   * @return count The number of latencies.
+   */
+  public synchronized int getCount()
+  {
+    return count;
+  }
+
+  /**
+   * @return mean The mean latency, or zero if there are none.
+   */
+  public synchronized long getMean()
+  {
+    if (count == 0) return 0;
+
+    long total = 0;
+    for (int i=0; i<count; i++) total += times[i];
+    return total / count;
+  }
+
+  /**
+   * @return max The largest latency, or zero if there are none.
+   */
+  public long getMax()
+  {
+    return getPercentile(100);
+  }
+
+  /**
+   * Find a percentile of the latencies, e.g., 50 for the median or 99 for
+   * the time 99% of requests were quicker than.
+   *
+   * @param percentile The percentile, from 0 to 100.
+   * @return nanos The latency at that percentile, or zero if there are none.
+   */
+  public synchronized long getPercentile(double percentile)
+  {
+    if (count == 0) return 0;
+
+    if (!sorted)
+    {
+      java.util.Arrays.sort(times, 0, count);
+      sorted = true;
+    }
+
+    // Nearest rank.
+    int rank = (int)Math.ceil(percentile / 100.0 * count);
+    if (rank < 1) rank = 1;
+    if (rank > count) rank = count;
+    return times[rank-1];
+  }
+
+  /**
+   * @return summary The count, mean and 50th, 90th, 99th percentile and maximum in milliseconds.
+   */
+  public String toString()
+  {
+    return "n="+getCount()
+      +" mean="+ms(getMean())
+      +" p50="+ms(getPercentile(50))
+      +" p90="+ms(getPercentile(90))
+      +" p99="+ms(getPercentile(99))
+      +" max="+ms(getMax());
+  }
+
+  private static String ms(long nanos)
+  {
+    return (nanos / 1000) / 1000.0 + "ms";
+  }
+
+}
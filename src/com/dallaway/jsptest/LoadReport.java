@@ -0,0 +1,262 @@
+package com.dallaway.jsptest;
+
+import java.util.Hashtable;
+import java.util.Enumeration;
+
+/**
+ * The results of a <code>LoadRunner</code> run: throughput, and request
+ * latencies by URL and by HTTP status code.
+ *
+ * <p>
+ * URLs are grouped without their query string, so "/search.jsp?q=dog" and
+ * "/search.jsp?q=cat" are both counted under "/search.jsp".
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+public class LoadReport
+{
+
+  private LatencyStats all = new LatencyStats();
+  private Hashtable by_url = new Hashtable();     // String -> LatencyStats
+  private Hashtable by_status = new Hashtable();  // Integer -> LatencyStats
+
+  private int errors = 0;
+  private int timeouts = 0;
+  private int iterations = 0;
+  private int failed_iterations = 0;
+  private long elapsed = 0;  // nanoseconds
+
+  /**
+   * Record a completed request.
+   *
+   * @param url The URL requested.
+   * @param status The HTTP status code of the response.
+   * @param nanos How long the request took.
+   */
+  synchronized void completed(String url, int status, long nanos)
+  {
+    all.add(nanos);
+    stats(by_url, urlKey(url)).add(nanos);
+    stats(by_status, Integer.valueOf(status)).add(nanos);
+  }
+
+  /**
+   * Record a request that failed with an exception.
+   *
+   * @param x The exception, which is counted as a timeout if it is a
+   * <code>RequestTimeoutException</code>.
+   */
+  synchronized void failed(Exception x)
+  {
+    if (x instanceof RequestTimeoutException)
+      timeouts++;
+    else
+      errors++;
+  }
+
+  /**
+   * Record the end of a scenario iteration.
+   *
+   * @param ok False if the iteration threw an exception.
+   */
+  synchronized void iteration(boolean ok)
+  {
+    iterations++;
+    if (!ok) failed_iterations++;
+  }
+
+  /**
+   * @param nanos How long the run took.
+   */
+  synchronized void setElapsed(long nanos)
+  {
+    elapsed = nanos;
+  }
+
+  /**
+   * Add another report's results to this one.
+   *
+   * @param other The report to add.
+   */
+  synchronized void merge(LoadReport other)
+  {
+    synchronized (other)
+    {
+      all.addAll(other.all);
+      mergeStats(by_url, other.by_url);
+      mergeStats(by_status, other.by_status);
+      errors += other.errors;
+      timeouts += other.timeouts;
+      iterations += other.iterations;
+      failed_iterations += other.failed_iterations;
+    }
+  }
+
+  private static void mergeStats(Hashtable to, Hashtable from)
+  {
+    Enumeration e = from.keys();
+    while (e.hasMoreElements())
+    {
+      Object key = e.nextElement();
+      stats(to, key).addAll((LatencyStats)from.get(key));
+    }
+  }
+
+  private static LatencyStats stats(Hashtable table, Object key)
+  {
+    LatencyStats s = (LatencyStats)table.get(key);
+    if (s == null)
+    {
+      s = new LatencyStats();
+      table.put(key, s);
+    }
+    return s;
+  }
+
+  /**
+   * @param url A URL.
+   * @return key The URL without any query string.
+   */
+  static String urlKey(String url)
+  {
+    int q = url.indexOf('?');
+    return q == -1 ? url : url.substring(0, q);
+  }
+
+  /**
+   * @return requests The number of requests made, including those that failed.
+   */
+  public synchronized int getRequests()
+  {
+    return all.getCount() + errors + timeouts;
+  }
+
+  /**
+   * @return errors The number of requests that failed with an exception
+   * (rather than with a HTTP error status), not counting timeouts.
+   */
+  public synchronized int getErrors()
+  {
+    return errors;
+  }
+
+  /**
+   * @return timeouts The number of requests that timed out connecting,
+   * reading, or against their deadline.
+   */
+  public synchronized int getTimeouts()
+  {
+    return timeouts;
+  }
+
+  /**
+   * @return iterations The number of scenario iterations run by all users.
+   */
+  public synchronized int getIterations()
+  {
+    return iterations;
+  }
+
+  /**
+   * @return failed The number of scenario iterations that threw an exception.
+   */
+  public synchronized int getFailedIterations()
+  {
+    return failed_iterations;
+  }
+
+  /**
+   * @return millis How long the run took, in milliseconds.
+   */
+  public synchronized long getElapsedMillis()
+  {
+    return elapsed / 1000000;
+  }
+
+  /**
+   * @return throughput Requests per second over the whole run.
+   */
+  public synchronized double getThroughput()
+  {
+    if (elapsed == 0) return 0;
+    return getRequests() * 1e9 / elapsed;
+  }
+
+  /**
+   * @return stats The latencies of all completed requests.
+   */
+  public LatencyStats getStats()
+  {
+    return all;
+  }
+
+  /**
+   * @return urls The URLs requested (without query strings).
+   */
+  public synchronized String[] getURLs()
+  {
+    String[] urls = new String[by_url.size()];
+    Enumeration e = by_url.keys();
+    for (int i=0; e.hasMoreElements(); i++) urls[i] = (String)e.nextElement();
+    java.util.Arrays.sort(urls);
+    return urls;
+  }
+
+  /**
+   * @param url The URL (without a query string).
+   * @return stats The latencies of requests for the URL, or null if it wasn't requested.
+   */
+  public synchronized LatencyStats getURLStats(String url)
+  {
+    return (LatencyStats)by_url.get(urlKey(url));
+  }
+
+  /**
+   * @return codes The HTTP status codes seen.
+   */
+  public synchronized int[] getStatusCodes()
+  {
+    int[] codes = new int[by_status.size()];
+    Enumeration e = by_status.keys();
+    for (int i=0; e.hasMoreElements(); i++) codes[i] = ((Integer)e.nextElement()).intValue();
+    java.util.Arrays.sort(codes);
+    return codes;
+  }
+
+  /**
+   * @param status A HTTP status code, e.g., 200.
+   * @return stats The latencies of requests with that status, or null if there were none.
+   */
+  public synchronized LatencyStats getStatusStats(int status)
+  {
+    return (LatencyStats)by_status.get(Integer.valueOf(status));
+  }
+
+  /**
+   * @return report A readable summary of the run.
+   */
+  public String toString()
+  {
+    StringBuffer b = new StringBuffer();
+    b.append("Requests: ").append(getRequests());
+    b.append("  Errors: ").append(getErrors());
+    b.append("  Timeouts: ").append(getTimeouts());
+    b.append("  Iterations: ").append(getIterations());
+    b.append(" (").append(getFailedIterations()).append(" failed)");
+    b.append("  Time: ").append(getElapsedMillis()).append("ms");
+    b.append("  Throughput: ").append((int)getThroughput()).append("/s\n");
+    b.append("All: ").append(all).append('\n');
+
+    String[] urls = getURLs();
+    for (int i=0; i<urls.length; i++)
+      b.append(urls[i]).append(": ").append(getURLStats(urls[i])).append('\n');
+
+    int[] codes = getStatusCodes();
+    for (int i=0; i<codes.length; i++)
+      b.append("Status ").append(codes[i]).append(": ").append(getStatusStats(codes[i])).append('\n');
+
+    return b.toString();
+  }
+
+}
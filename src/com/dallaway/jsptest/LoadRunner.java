@@ -0,0 +1,176 @@
+package com.dallaway.jsptest;
+
+/**
+ * Runs a scenario for many concurrent virtual users, to load test a site.
+ *
+ * <p>
+ * Each user has a session of its own and runs the scenario over and over,
+ * either a fixed number of times or until a time limit is reached.  Every
+ * request the users make is timed, and the results come back as a
+ * <code>LoadReport</code>.  For example:
+ *
+ * <pre>
+ * LoadRunner runner = new LoadRunner(browse, 500);
+ * runner.setDuration(60000);
+ * LoadReport report = runner.run();
+ * System.out.println(report);
+ * </pre>
+ *
+ * <p>
+ * Users start with a new session, or a fork of a session set with
+ * <code>setSession()</code> (for example, one that has already logged in).
+ * Give that session a read timeout or deadline so a stalled server can't
+ * hold users up for ever: requests that time out are counted apart from
+ * other errors, by <code>LoadReport.getTimeouts()</code>.
+ *
+ * <p>
+ * Users run on virtual threads when the Java runtime has them, and on
+ * ordinary threads otherwise.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+public class LoadRunner
+{
+
+  private Scenario scenario;
+  private int users;
+  private long duration = 0;  // milliseconds, zero for no limit
+  private int iterations = 0; // per user, zero for no limit
+  private Session base = null; // forked for each user, if set
+
+  /**
+   * Create a runner.  Set a duration, an iteration count or both before
+   * calling <code>run()</code>.
+   *
+   * @param scenario The scenario each user runs.
+   * @param users The number of concurrent users.
+   */
+  public LoadRunner(Scenario scenario, int users)
+  {
+    this.scenario = scenario;
+    this.users = users;
+  }
+
+  /**
+   * Stop the run after a given time.  Users finish the iteration they are
+   * on, so the run will take a little longer than this.
+   *
+   * @param millis How long to run for, in milliseconds.
+   */
+  public void setDuration(long millis)
+  {
+    this.duration = millis;
+  }
+
+  /**
+   * Stop each user after it has run the scenario a given number of times.
+   *
+   * @param iterations The number of iterations for each user.
+   */
+  public void setIterations(int iterations)
+  {
+    this.iterations = iterations;
+  }
+
+  /**
+   * Start each user with a fork of a session, rather than a new session.
+   *
+   * @param session The session to fork, or null for new sessions.
+   * @see Session#fork
+   */
+  public void setSession(Session session)
+  {
+    this.base = session;
+  }
+
+  /**
+   * Run the users, and wait for them all to finish.
+   *
+   * @return report The results of the run.
+   * @throws InterruptedException Thrown if we're interrupted waiting for the users.
+   * @throws IllegalStateException Thrown if neither a duration nor an iteration count was set.
+   */
+  public LoadReport run() throws InterruptedException
+  {
+    if (duration <= 0 && iterations <= 0)
+      throw new IllegalStateException("Set a duration or an iteration count before running");
+
+    long start = System.nanoTime();
+    long end = duration > 0 ? start + duration * 1000000 : Long.MAX_VALUE;
+
+    User[] user = new User[users];
+    Thread[] threads = new Thread[users];
+    for (int i=0; i<users; i++)
+    {
+      user[i] = new User(end);
+      threads[i] = Threads.newThread(user[i], "jsptest-user-"+i);
+    }
+
+    for (int i=0; i<users; i++) threads[i].start();
+    for (int i=0; i<users; i++) threads[i].join();
+
+    LoadReport report = new LoadReport();
+    for (int i=0; i<users; i++) report.merge(user[i].report);
+    report.setElapsed(System.nanoTime() - start);
+
+    return report;
+  }
+
+
+  /**
+   * A virtual user: a session, running the scenario and timing its requests.
+   */
+  private class User implements Runnable, RequestListener
+  {
+
+    private LoadReport report = new LoadReport();
+    private long end;
+
+    User(long end)
+    {
+      this.end = end;
+    }
+
+    public void run()
+    {
+      Session session = base == null ? new Session() : base.fork();
+      session.setRequestListener(this);
+
+      try
+      {
+        for (int i=0; iterations <= 0 || i < iterations; i++)
+        {
+          if (System.nanoTime() >= end) break;
+
+          try
+          {
+            scenario.run(session);
+            report.iteration(true);
+          }
+          catch (Throwable x)
+          {
+            // Including a failed JUnit assertion, which is an Error.
+            report.iteration(false);
+          }
+        }
+      }
+      finally
+      {
+        session.close();
+      }
+    }
+
+    public void requestCompleted(String url, Response response, long nanos)
+    {
+      report.completed(url, response.getStatusCode(), nanos);
+    }
+
+    public void requestFailed(String url, Exception x, long nanos)
+    {
+      report.failed(x);
+    }
+
+  }
+
+}
@@ -0,0 +1,243 @@
+package com.dallaway.jsptest;
+
+import java.util.Enumeration;
+import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import junit.framework.Test;
+import junit.framework.TestResult;
+import junit.framework.TestSuite;
+
+/**
+ * Runs the tests in a JUnit suite at the same time, rather than one after
+ * another, and times each one.
+ *
+ * <p>
+ * Page checks spend nearly all their time waiting on the server, so a
+ * suite of them runs many times faster in parallel.  The suite is split
+ * into its tests, which run on a work-stealing pool: a thread that runs out
+ * of tests takes some from a busy one.  Tests written as a
+ * <code>SessionTestCase</code> each get a session of their own, forked from
+ * the session given to <code>setSession()</code> if there is one.  To be
+ * kind to the servers, <code>setMaxPerHost()</code> caps how many requests
+ * these sessions make to each host at once.
+ *
+ * <pre>
+ * ParallelRunner runner = new ParallelRunner(32);
+ * runner.setMaxPerHost(8);
+ * SuiteReport report = runner.run(PageChecks.suite());
+ * System.out.println(report);
+ * </pre>
+ *
+ * <p>
+ * Or from the command line, with a class that has a <code>suite()</code>
+ * method or is a <code>TestCase</code>:
+ * <code>java com.dallaway.jsptest.ParallelRunner [-p threads] [-h per-host] PageChecks</code>
+ *
+ * <p>
+ * Tests that change static state, or expect to run alone, aren't safe to
+ * run this way.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+public class ParallelRunner
+{
+
+  private int parallelism;
+  private HostLimiter limiter = null;
+  private Session base = null;
+
+  /**
+   * @param parallelism The number of tests to run at once.
+   */
+  public ParallelRunner(int parallelism)
+  {
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Cap the number of requests the tests' sessions make to each host at
+   * once.  Only the sessions given to a <code>SessionTestCase</code> are capped.
+   *
+   * @param max_per_host The most requests to a host at once, or zero for no cap (the default).
+   */
+  public void setMaxPerHost(int max_per_host)
+  {
+    limiter = max_per_host > 0 ? new HostLimiter(max_per_host) : null;
+  }
+
+  /**
+   * Start each test's session with a fork of a session, rather than a new
+   * session.
+   *
+   * @param session The session to fork, or null for new sessions.
+   * @see Session#fork
+   */
+  public void setSession(Session session)
+  {
+    this.base = session;
+  }
+
+  /**
+   * Run every test in a suite, and wait for them all to finish.
+   *
+   * @param suite The tests.
+   * @return report The results of the run.
+   */
+  public SuiteReport run(Test suite)
+  {
+    return run(suite, new TestResult());
+  }
+
+  /**
+   * Run every test in a suite, and wait for them all to finish.
+   *
+   * @param suite The tests.
+   * @param result Where to collect failures and errors, with any listeners
+   * already added.  Listeners are called from many threads at once.
+   * @return report The results of the run.
+   */
+  public SuiteReport run(Test suite, TestResult result)
+  {
+    Vector tests = new Vector();
+    split(suite, tests);
+
+    SuiteReport report = new SuiteReport(result);
+    long start = System.nanoTime();
+
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try
+    {
+      pool.invoke(new Tests(tests, 0, tests.size(), result, report));
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+
+    report.setElapsed(System.nanoTime() - start);
+    return report;
+  }
+
+  /**
+   * Break a suite down into the tests in it (and in any suites inside it).
+   */
+  private static void split(Test test, Vector tests)
+  {
+    if (!(test instanceof TestSuite))
+    {
+      tests.addElement(test);
+      return;
+    }
+
+    Enumeration e = ((TestSuite)test).tests();
+    while (e.hasMoreElements()) split((Test)e.nextElement(), tests);
+  }
+
+  /**
+   * Run a test, with a session of its own if it takes one.
+   */
+  private void runTest(Test test, TestResult result, SuiteReport report)
+  {
+    if (test instanceof SessionTestCase)
+    {
+      Session session = base != null ? base.fork() : new Session();
+      if (limiter != null) session.setHostLimiter(limiter);
+      ((SessionTestCase)test).setSession(session);
+    }
+
+    long start = System.nanoTime();
+    test.run(result);
+    report.timed(test.toString(), System.nanoTime() - start);
+  }
+
+
+  /**
+   * Runs some of the tests, splitting them in two while there's more than
+   * one, so idle threads can take half.
+   */
+  private class Tests extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private Vector tests;
+    private int from;
+    private int to;
+    private TestResult result;
+    private SuiteReport report;
+
+    Tests(Vector tests, int from, int to, TestResult result, SuiteReport report)
+    {
+      this.tests = tests;
+      this.from = from;
+      this.to = to;
+      this.result = result;
+      this.report = report;
+    }
+
+    protected void compute()
+    {
+      if (to - from == 1)
+      {
+        runTest((Test)tests.elementAt(from), result, report);
+        return;
+      }
+
+      if (to - from < 1) return;
+
+      int middle = (from + to) / 2;
+      invokeAll(new Tests(tests, from, middle, result, report), new Tests(tests, middle, to, result, report));
+    }
+  }
+
+
+  /**
+   * Run a suite from the command line, printing each failure and the report.
+   *
+   * @param args [-p threads] [-h per-host] class-name
+   * @throws Exception Thrown if the class can't be loaded, or has no tests.
+   */
+  public static void main(String[] args) throws Exception
+  {
+    int threads = Runtime.getRuntime().availableProcessors() * 8;
+    int per_host = 0;
+    String name = null;
+
+    for (int i=0; i<args.length; i++)
+    {
+      if (args[i].equals("-p") && i+1 < args.length) threads = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-h") && i+1 < args.length) per_host = Integer.parseInt(args[++i]);
+      else name = args[i];
+    }
+
+    if (name == null)
+    {
+      System.err.println("Usage: java com.dallaway.jsptest.ParallelRunner [-p threads] [-h per-host] class-name");
+      System.exit(2);
+    }
+
+    Class c = Class.forName(name);
+    Test suite;
+    try
+    {
+      suite = (Test)c.getMethod("suite", new Class[0]).invoke(null, new Object[0]);
+    }
+    catch (NoSuchMethodException nsmx)
+    {
+      suite = new TestSuite(c);
+    }
+
+    ParallelRunner runner = new ParallelRunner(threads);
+    runner.setMaxPerHost(per_host);
+    SuiteReport report = runner.run(suite);
+
+    TestResult result = report.getResult();
+    for (Enumeration e = result.failures(); e.hasMoreElements(); ) System.out.println("Failure: "+e.nextElement());
+    for (Enumeration e = result.errors(); e.hasMoreElements(); ) System.out.println("Error: "+e.nextElement());
+    System.out.print(report);
+
+    System.exit(report.wasSuccessful() ? 0 : 1);
+  }
+
+}
@@ -0,0 +1,282 @@
+package com.dallaway.jsptest;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An append-only file of records, each a time, an id and some bytes,
+ * written through a memory-mapped buffer.
+ *
+ * <p>
+ * Appending is a copy into the mapping, so many threads can log (say, every
+ * read from every connection to a server) without waiting on disk writes.
+ * The mapping grows as needed.  The end of the last whole record is kept in
+ * the file header, so a log that wasn't closed properly can still be read.
+ * Records appended after the log is closed are dropped.
+ *
+ * <p>
+ * The file is: "JSPTLOG1", the end offset (long), the time the log was
+ * started (long, ms since 1970), then the records.  Each record is the time
+ * since the start (long, ns), the id (int), the length (int) and the bytes.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+class RecordLog
+{
+
+  private static final byte[] MAGIC = { 'J', 'S', 'P', 'T', 'L', 'O', 'G', '1' };
+
+  /** Where the records start. */
+  static final int HEADER = 24;
+
+  /** The fixed part of each record. */
+  static final int RECORD_HEADER = 16;
+
+  /** Default size of the first mapping, in bytes. */
+  static final int DEFAULT_CAPACITY = 16 * 1024 * 1024;
+
+  private RandomAccessFile file;
+  private FileChannel channel;
+  private MappedByteBuffer map;
+  private int end = HEADER;
+
+  private long start_nanos;
+  private long start_millis;
+
+  /**
+   * Create a new log, replacing any file already there.
+   *
+   * @param f The file to write.
+   * @throws IOException Thrown if the file can't be made.
+   */
+  RecordLog(File f) throws IOException
+  {
+    this(f, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Create a new log, replacing any file already there.
+   *
+   * @param f The file to write.
+   * @param capacity The size of the first mapping, in bytes.
+   * @throws IOException Thrown if the file can't be made.
+   */
+  RecordLog(File f, int capacity) throws IOException
+  {
+    file = new RandomAccessFile(f, "rw");
+    file.setLength(0);
+    channel = file.getChannel();
+    map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, HEADER + RECORD_HEADER));
+
+    start_nanos = System.nanoTime();
+    start_millis = System.currentTimeMillis();
+
+    map.put(MAGIC);
+    map.putLong(8, end);
+    map.putLong(16, start_millis);
+  }
+
+  /**
+   * Append a record, timed now.
+   *
+   * @param id The record id, such as a connection number.
+   * @param b The bytes.
+   * @param off Where they start.
+   * @param len How many there are.
+   * @throws IOException Thrown if the file couldn't grow.
+   */
+  void append(int id, byte[] b, int off, int len) throws IOException
+  {
+    long now = System.nanoTime();
+
+    synchronized (this)
+    {
+      // Connections can outlive the log: nothing more is captured.
+      if (map == null) return;
+
+      int size = RECORD_HEADER + len;
+      if ((long)end + size > map.capacity()) grow(size);
+
+      map.putLong(end, now - start_nanos);
+      map.putInt(end + 8, id);
+      map.putInt(end + 12, len);
+      map.position(end + RECORD_HEADER);
+      map.put(b, off, len);
+
+      end += size;
+      map.putLong(8, end);
+    }
+  }
+
+  /**
+   * @return end The size of the log so far, in bytes.
+   */
+  synchronized long size()
+  {
+    return end;
+  }
+
+  /**
+   * Map a bigger part of the file, at least doubling it.  The new mapping
+   * covers the old, so what's written so far is forced to disk by
+   * <code>close()</code>, not here while appends wait.
+   */
+  private void grow(int needed) throws IOException
+  {
+    long capacity = Math.max((long)map.capacity() * 2, (long)end + needed);
+    if (capacity > Integer.MAX_VALUE) throw new IOException("Log full");
+
+    map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+  }
+
+  /**
+   * Write everything to disk and close the file, cutting it down to the
+   * records written.
+   *
+   * @throws IOException Thrown if the file couldn't be written.
+   */
+  synchronized void close() throws IOException
+  {
+    if (map == null) return;
+
+    map.force();
+    map = null;
+
+    try
+    {
+      channel.truncate(end);
+    }
+    catch (IOException iox)
+    {
+      // Some platforms won't cut a mapped file: the header still says where it ends.
+    }
+    file.close();
+  }
+
+
+  /**
+   * Reads the records of a log in the order they were written.
+   */
+  static class Reader
+  {
+    private ByteBuffer map;
+    private long start_millis;
+    private int end;
+    private int pos = HEADER;
+
+    private long time;
+    private int id;
+    private int data_pos;
+    private int data_len;
+
+    /**
+     * @param f The log file.
+     * @throws IOException Thrown if the file can't be read, or isn't a log.
+     */
+    Reader(File f) throws IOException
+    {
+      RandomAccessFile raf = new RandomAccessFile(f, "r");
+      try
+      {
+        map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      }
+      finally
+      {
+        raf.close();
+      }
+
+      for (int i=0; i<MAGIC.length; i++)
+      {
+        if (map.capacity() < HEADER || map.get(i) != MAGIC[i]) throw new IOException("Not a record log: "+f);
+      }
+
+      end = (int)Math.min(map.getLong(8), map.capacity());
+      start_millis = map.getLong(16);
+    }
+
+    /**
+     * @return millis When the log was started, as ms since 1970.
+     */
+    long getStartMillis()
+    {
+      return start_millis;
+    }
+
+    /**
+     * Move to the next record.
+     *
+     * @return more False if there are no more records.
+     */
+    boolean next()
+    {
+      if (pos + RECORD_HEADER > end) return false;
+
+      int len = map.getInt(pos + 12);
+      if (len < 0 || pos + RECORD_HEADER + len > end) return false;
+
+      time = map.getLong(pos);
+      id = map.getInt(pos + 8);
+      data_pos = pos + RECORD_HEADER;
+      data_len = len;
+
+      pos += RECORD_HEADER + len;
+      return true;
+    }
+
+    /**
+     * @return nanos When the record was written, in ns from the start of the log.
+     */
+    long getTime()
+    {
+      return time;
+    }
+
+    /**
+     * @return id The record's id.
+     */
+    int getId()
+    {
+      return id;
+    }
+
+    /**
+     * @return data A copy of the record's bytes.
+     */
+    byte[] getData()
+    {
+      byte[] data = new byte[data_len];
+      map.position(data_pos);
+      map.get(data);
+      return data;
+    }
+
+    /**
+     * @return offset Where the record's bytes are in <code>getBuffer()</code>.
+     */
+    int getDataOffset()
+    {
+      return data_pos;
+    }
+
+    /**
+     * @return length How many bytes the record has.
+     */
+    int getDataLength()
+    {
+      return data_len;
+    }
+
+    /**
+     * @return buffer The mapped file, to read records from later without
+     * copying them first.  Only use absolute gets on it.
+     */
+    ByteBuffer getBuffer()
+    {
+      return map;
+    }
+  }
+
+}
@@ -0,0 +1,336 @@
+package com.dallaway.jsptest;
+
+import java.io.*;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Replays traffic captured by <code>EchoServer</code> against a site, through
+ * <code>Session</code>.
+ *
+ * <p>
+ * Each captured connection becomes a virtual user with a session of its own,
+ * making the requests that were sent over the connection, in order.  Requests
+ * are sent at the times they were captured, or faster or slower with
+ * <code>setSpeed()</code>, so the load has the shape of the original.
+ * Cookies come from the site being replayed against (the captured Cookie
+ * headers would be out of date), and only GET requests are replayed: others
+ * are counted by <code>getSkipped()</code>.
+ *
+ * <pre>
+ * // On the day: java com.dallaway.jsptest.EchoServer -c -f traffic.log 8080
+ * Replayer replay = new Replayer(new File("traffic.log"));
+ * replay.setSpeed(2);
+ * LoadReport report = replay.run("http://test-server:8080");
+ * </pre>
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+public class Replayer
+{
+
+  private Vector connections = new Vector(); // Vector of Request, for each connection
+  private int skipped = 0;
+
+  private double speed = 1;
+  private Session base = null;
+
+  /**
+   * Read a capture file, splitting what each connection sent into requests.
+   *
+   * @param capture The file written by <code>EchoServer</code>.
+   * @throws IOException Thrown if the file can't be read.
+   */
+  public Replayer(File capture) throws IOException
+  {
+    RecordLog.Reader reader = new RecordLog.Reader(capture);
+
+    // Put each connection's reads back together, noting when each arrived.
+    Hashtable streams = new Hashtable(); // Integer -> Capture
+    Vector order = new Vector();
+    while (reader.next())
+    {
+      Integer id = Integer.valueOf(reader.getId());
+      Capture c = (Capture)streams.get(id);
+      if (c == null)
+      {
+        c = new Capture();
+        streams.put(id, c);
+        order.addElement(c);
+      }
+      c.add(reader.getData(), reader.getTime());
+    }
+
+    for (int i=0; i<order.size(); i++)
+    {
+      Vector requests = ((Capture)order.elementAt(i)).split();
+      if (requests.size() > 0) connections.addElement(requests);
+    }
+  }
+
+  /**
+   * Set how fast to replay.  The default is 1, the speed the traffic was
+   * captured at.
+   *
+   * @param speed How many times faster than captured (0.5 for half speed), or
+   * zero to send each connection's requests as fast as possible.
+   */
+  public void setSpeed(double speed)
+  {
+    this.speed = speed;
+  }
+
+  /**
+   * Start each user with a fork of a session, rather than a new HTTP/1.1
+   * session.
+   *
+   * @param session The session to fork, or null for new sessions.
+   */
+  public void setSession(Session session)
+  {
+    this.base = session;
+  }
+
+  /**
+   * @return connections The number of connections captured.
+   */
+  public int getConnections()
+  {
+    return connections.size();
+  }
+
+  /**
+   * @return requests The number of requests that will be replayed.
+   */
+  public int getRequests()
+  {
+    int n = 0;
+    for (int i=0; i<connections.size(); i++) n += ((Vector)connections.elementAt(i)).size();
+    return n;
+  }
+
+  /**
+   * @return skipped The number of captured requests that can't be replayed,
+   * such as POSTs.
+   */
+  public int getSkipped()
+  {
+    return skipped;
+  }
+
+  /**
+   * Replay the traffic, and wait for it all to be sent.  Each connection
+   * counts as one iteration in the report.
+   *
+   * @param base_url The site to send the requests to, such as "http://127.0.0.1:8080".
+   * @return report The results of the replay.
+   * @throws InterruptedException Thrown if we're interrupted waiting for the users.
+   */
+  public LoadReport run(String base_url) throws InterruptedException
+  {
+    if (base_url.endsWith("/")) base_url = base_url.substring(0, base_url.length()-1);
+
+    // Time zero is the first request captured.
+    long first = Long.MAX_VALUE;
+    for (int i=0; i<connections.size(); i++)
+      first = Math.min(first, ((Request)((Vector)connections.elementAt(i)).elementAt(0)).time);
+
+    long start = System.nanoTime();
+
+    User[] user = new User[connections.size()];
+    Thread[] threads = new Thread[user.length];
+    for (int i=0; i<user.length; i++)
+    {
+      user[i] = new User((Vector)connections.elementAt(i), base_url, start, first);
+      threads[i] = Threads.newThread(user[i], "jsptest-replay-"+i);
+    }
+
+    for (int i=0; i<threads.length; i++) threads[i].start();
+    for (int i=0; i<threads.length; i++) threads[i].join();
+
+    LoadReport report = new LoadReport();
+    for (int i=0; i<user.length; i++) report.merge(user[i].report);
+    report.setElapsed(System.nanoTime() - start);
+
+    return report;
+  }
+
+
+  /**
+   * A captured request.
+   */
+  private static class Request
+  {
+    long time;     // ns from the start of the capture
+    String target; // the path and query
+
+    Request(long time, String target)
+    {
+      this.time = time;
+      this.target = target;
+    }
+  }
+
+
+  /**
+   * The bytes one connection sent, and when each read arrived.
+   */
+  private class Capture
+  {
+    private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private Vector reads = new Vector(); // long[] { offset, time }
+
+    void add(byte[] data, long time)
+    {
+      reads.addElement(new long[] { bytes.size(), time });
+      bytes.write(data, 0, data.length);
+    }
+
+    /**
+     * @return requests The GET requests in the bytes.
+     */
+    Vector split() throws IOException
+    {
+      byte[] all = bytes.toByteArray();
+      ByteArrayInputStream in = new ByteArrayInputStream(all);
+      HeadParser head = new HeadParser();
+      Vector requests = new Vector();
+
+      while (true)
+      {
+        long time = timeAt(all.length - in.available());
+
+        // The request line is read as if it were a status line.
+        if (!head.parse(in)) break;
+        HeaderTable headers = head.getHeaders();
+        String line = headers.getStatusLine();
+
+        // Skip any request body.
+        long length = headers.getLong("Content-Length");
+        if (length > 0) in.skip(length);
+
+        int sp1 = line.indexOf(' ');
+        int sp2 = line.lastIndexOf(' ');
+        if (sp1 == -1 || sp2 <= sp1 || !line.startsWith("GET "))
+        {
+          skipped++;
+          continue;
+        }
+
+        // A request through a proxy names the whole URL.
+        String target = line.substring(sp1+1, sp2);
+        int scheme = target.indexOf("://");
+        if (scheme != -1)
+        {
+          int slash = target.indexOf('/', scheme+3);
+          target = slash == -1 ? "/" : target.substring(slash);
+        }
+
+        requests.addElement(new Request(time, target));
+      }
+
+      return requests;
+    }
+
+    /**
+     * @return time When the byte at an offset arrived.
+     */
+    private long timeAt(int offset)
+    {
+      long time = ((long[])reads.elementAt(0))[1];
+      for (int i=0; i<reads.size(); i++)
+      {
+        long[] read = (long[])reads.elementAt(i);
+        if (read[0] > offset) break;
+        time = read[1];
+      }
+      return time;
+    }
+  }
+
+
+  /**
+   * Replays one connection's requests.
+   */
+  private class User implements Runnable, RequestListener
+  {
+    private LoadReport report = new LoadReport();
+    private Vector requests;
+    private String base_url;
+    private long start;
+    private long first;
+
+    User(Vector requests, String base_url, long start, long first)
+    {
+      this.requests = requests;
+      this.base_url = base_url;
+      this.start = start;
+      this.first = first;
+    }
+
+    public void run()
+    {
+      Session session;
+      if (base != null)
+      {
+        session = base.fork();
+      }
+      else
+      {
+        session = new Session();
+        session.setHTTPVersion("HTTP/1.1");
+      }
+      session.setRequestListener(this);
+
+      boolean ok = true;
+      try
+      {
+        for (int i=0; i<requests.size(); i++)
+        {
+          Request r = (Request)requests.elementAt(i);
+
+          if (speed > 0)
+          {
+            long due = start + (long)((r.time - first) / speed);
+            long wait = due - System.nanoTime();
+            if (wait > 0) Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+          }
+
+          try
+          {
+            session.request(base_url + r.target).getBody();
+          }
+          catch (IOException iox)
+          {
+            ok = false; // Counted by the listener; carry on with the rest.
+          }
+        }
+      }
+      catch (InterruptedException ix)
+      {
+        ok = false;
+      }
+      catch (Throwable x)
+      {
+        ok = false; // Something other than a request went wrong.
+      }
+      finally
+      {
+        report.iteration(ok);
+        session.close();
+      }
+    }
+
+    public void requestCompleted(String url, Response response, long nanos)
+    {
+      report.completed(url, response.getStatusCode(), nanos);
+    }
+
+    public void requestFailed(String url, Exception x, long nanos)
+    {
+      report.failed(x);
+    }
+  }
+
+}
@@ -0,0 +1,39 @@
+package com.dallaway.jsptest;
+
+/**
+ * Told about every request a session makes, for example to collect timings.
+ *
+ * <p>
+ * Listeners are called on the thread that made the request (or, for
+ * <code>Session.requestAsync()</code>, on the thread that completes
+ * the future, usually a <code>ForkJoinPool.commonPool()</code> worker), so
+ * they should be quick.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ * @see Session#setRequestListener
+ */
+public interface RequestListener
+{
+
+  /**
+   * A request has completed.  For <code>Session.requestStream()</code> this is
+   * when the response headers have arrived, otherwise it is when the whole
+   * body has been read.
+   *
+   * @param url The URL that was requested.
+   * @param response The response from the server.
+   * @param nanos How long the request took, in nanoseconds.
+   */
+  public void requestCompleted(String url, Response response, long nanos);
+
+  /**
+   * A request failed with an exception.
+   *
+   * @param url The URL that was requested.
+   * @param x The reason for the failure.
+   * @param nanos How long we spent on the request, in nanoseconds.
+   */
+  public void requestFailed(String url, Exception x, long nanos);
+
+}
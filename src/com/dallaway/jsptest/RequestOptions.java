@@ -0,0 +1,251 @@
+package com.dallaway.jsptest;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Timeouts for one request, in place of the session's, and a way to cancel
+ * the request while it is being made.
+ *
+ * <pre>
+ * RequestOptions options = new RequestOptions();
+ * options.setDeadline(2000);
+ * Response r = session.request("http://127.0.0.1/report.jsp", options);
+ * </pre>
+ *
+ * <p>
+ * A timeout left unset takes the session's value.  A request that times out
+ * throws a <code>RequestTimeoutException</code>; one that is cancelled
+ * throws an <code>InterruptedIOException</code>.  Options can be used for
+ * one request after another, but not for two at once, and once cancelled
+ * every request made with them fails.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ * @see Session#setDeadline
+ */
+public class RequestOptions
+{
+
+  private long connect_timeout = -1;
+  private long read_timeout = -1;
+  private long deadline = -1;
+
+  // The request in progress: the timeouts in force, and what to stop when it's over.
+  private int connect;
+  private int read;
+  private long deadline_at;
+  private Connection connection;
+  private ScheduledFuture expiry;
+  private boolean expired = false;
+  private volatile boolean cancelled = false;
+
+  /**
+   * Set how long to wait for a connection to the server.
+   *
+   * @param millis The timeout in milliseconds, zero to wait as long as it takes, or -1 for the session's.
+   */
+  public void setConnectTimeout(long millis)
+  {
+    connect_timeout = millis;
+  }
+
+  /**
+   * @return millis The connect timeout in milliseconds, zero for none, or -1 for the session's.
+   */
+  public long getConnectTimeout()
+  {
+    return connect_timeout;
+  }
+
+  /**
+   * Set how long to wait for the server to send anything, each time we
+   * wait for it.
+   *
+   * @param millis The timeout in milliseconds, zero to wait as long as it takes, or -1 for the session's.
+   */
+  public void setReadTimeout(long millis)
+  {
+    read_timeout = millis;
+  }
+
+  /**
+   * @return millis The read timeout in milliseconds, zero for none, or -1 for the session's.
+   */
+  public long getReadTimeout()
+  {
+    return read_timeout;
+  }
+
+  /**
+   * Set how long the whole request may take, from the start to the end of
+   * the body.  For a request whose body is read later (with
+   * <code>Session.requestStream()</code>) the body has to be read by then too.
+   *
+   * @param millis The deadline in milliseconds from the start of the request,
+   * zero for none, or -1 for the session's.
+   */
+  public void setDeadline(long millis)
+  {
+    deadline = millis;
+  }
+
+  /**
+   * @return millis The deadline in milliseconds, zero for none, or -1 for the session's.
+   */
+  public long getDeadline()
+  {
+    return deadline;
+  }
+
+  /**
+   * Stop the request being made with these options, from any thread.  The
+   * connection is closed, and the request throws an
+   * <code>InterruptedIOException</code>.  A request not yet started fails
+   * as soon as it starts.
+   */
+  public synchronized void cancel()
+  {
+    cancelled = true;
+
+    // Closed under the lock, so the connection can't have been detached
+    // and handed to another request in the meantime.
+    if (connection != null) connection.close();
+  }
+
+  /**
+   * @return cancelled True if <code>cancel()</code> has been called.
+   */
+  public boolean isCancelled()
+  {
+    return cancelled;
+  }
+
+  /**
+   * Start a request, working out the timeouts in force.
+   *
+   * @param session_connect The session's connect timeout, in milliseconds.
+   * @param session_read The session's read timeout, in milliseconds.
+   * @param session_deadline The session's deadline, in milliseconds.
+   * @throws IOException Thrown if the options have been cancelled.
+   */
+  void start(long session_connect, long session_read, long session_deadline) throws IOException
+  {
+    if (cancelled) throw new InterruptedIOException("Request cancelled");
+
+    connect = (int)(connect_timeout >= 0 ? connect_timeout : session_connect);
+    read = (int)(read_timeout >= 0 ? read_timeout : session_read);
+    long d = deadline >= 0 ? deadline : session_deadline;
+
+    synchronized (this)
+    {
+      connection = null;
+      expired = false;
+      deadline_at = d > 0 ? System.nanoTime() + d * 1000000 : 0;
+      expiry = d > 0 ? Watchdog.schedule(this::expire, d) : null;
+    }
+  }
+
+  /**
+   * @return millis How long to wait for a connection: the connect timeout,
+   * or what's left before the deadline if that's sooner, or zero for no limit.
+   * @throws IOException Thrown if the deadline has passed already.
+   */
+  int getConnectTimeoutNow() throws IOException
+  {
+    if (deadline_at == 0) return connect;
+
+    long left = (deadline_at - System.nanoTime()) / 1000000;
+    if (left <= 0) throw new RequestTimeoutException(RequestTimeoutException.DEADLINE, "Deadline passed before connecting");
+    return connect == 0 ? (int)Math.min(left, Integer.MAX_VALUE) : (int)Math.min(left, connect);
+  }
+
+  /**
+   * Note the connection the request is using, so it can be closed if the
+   * request is cancelled or runs out of time.
+   *
+   * @param c The connection.
+   * @throws IOException Thrown if the read timeout can't be set.
+   */
+  void attach(Connection c) throws IOException
+  {
+    boolean stop;
+    synchronized (this)
+    {
+      connection = c;
+      stop = cancelled || expired;
+    }
+
+    // The request fails on its next read or write, and says why then.
+    if (stop) c.close();
+    else c.setReadTimeout(read);
+  }
+
+  /**
+   * The request is over (or its connection has finished with it), so
+   * there's nothing to stop.
+   *
+   * @return reusable False if the connection was closed by a cancel or the
+   * deadline, so mustn't go back to the pool.
+   */
+  synchronized boolean detach()
+  {
+    boolean reusable = !cancelled && !expired;
+    connection = null;
+    if (expiry != null) expiry.cancel(false);
+    expiry = null;
+    return reusable;
+  }
+
+  /**
+   * The deadline has passed.
+   */
+  private synchronized void expire()
+  {
+    expired = true;
+    if (connection != null) connection.close();
+  }
+
+  /**
+   * Find out why a request failed.
+   *
+   * @param iox What was thrown.
+   * @return x An <code>InterruptedIOException</code> if the request was
+   * cancelled, a <code>RequestTimeoutException</code> if it timed out,
+   * otherwise <code>iox</code>.
+   */
+  IOException translate(IOException iox)
+  {
+    if (iox instanceof RequestTimeoutException && ((RequestTimeoutException)iox).getKind() != RequestTimeoutException.CONNECT)
+      return iox;
+
+    if (cancelled) return causedBy(new InterruptedIOException("Request cancelled"), iox);
+
+    boolean late;
+    synchronized (this)
+    {
+      late = expired || (deadline_at != 0 && deadline_at - System.nanoTime() <= 0);
+    }
+    if (late) return causedBy(new RequestTimeoutException(RequestTimeoutException.DEADLINE, "Request took longer than its deadline"), iox);
+
+    if (iox instanceof RequestTimeoutException) return iox;
+    if (iox instanceof SocketTimeoutException)
+      return causedBy(new RequestTimeoutException(RequestTimeoutException.READ, "Nothing from the server for "+read+"ms"), iox);
+
+    return iox;
+  }
+
+  /**
+   * @param x The exception to throw in place of the one caught.
+   * @param cause The exception caught.
+   * @return x With its cause set, so the original failure isn't lost.
+   */
+  private static IOException causedBy(IOException x, IOException cause)
+  {
+    x.initCause(cause);
+    return x;
+  }
+
+}
@@ -0,0 +1,51 @@
+package com.dallaway.jsptest;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Thrown when a request takes too long: connecting, waiting for the server
+ * to send the next bytes, or over all.
+ *
+ * <p>
+ * A load test counts these apart from other failures, as a server that is
+ * slow under load is a different problem from one that is refusing
+ * connections or sending errors.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+public class RequestTimeoutException extends SocketTimeoutException
+{
+
+  private static final long serialVersionUID = 1L;
+
+  /** The connection couldn't be made in time. */
+  public static final int CONNECT = 1;
+
+  /** The server sent nothing for longer than the read timeout. */
+  public static final int READ = 2;
+
+  /** The whole request took longer than its deadline. */
+  public static final int DEADLINE = 3;
+
+  private int kind;
+
+  /**
+   * @param kind <code>CONNECT</code>, <code>READ</code> or <code>DEADLINE</code>.
+   * @param message What timed out.
+   */
+  RequestTimeoutException(int kind, String message)
+  {
+    super(message);
+    this.kind = kind;
+  }
+
+  /**
+   * @return kind <code>CONNECT</code>, <code>READ</code> or <code>DEADLINE</code>.
+   */
+  public int getKind()
+  {
+    return kind;
+  }
+
+}
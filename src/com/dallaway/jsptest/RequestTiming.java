@@ -0,0 +1,144 @@
+package com.dallaway.jsptest;
+
+/**
+ * Where the time went in a single request.
+ *
+ * <p>
+ * Each stage is given as the nanoseconds from the start of the request to the
+ * end of that stage, so for example <code>getFirstByteNanos() - getWrittenNanos()</code>
+ * is roughly the server's think time.  A stage that hasn't happened (yet) is -1.
+ * Re-used keep-alive connections don't need a DNS lookup or a connect, so those
+ * stages are zero.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+public class RequestTiming
+{
+
+  private long start;
+
+  // Offsets from start, in nanoseconds.
+  private long resolved = -1;
+  private long connected = -1;
+  private long written = -1;
+  private long first_byte = -1;
+  private long headers = -1;
+  private long body = -1;
+
+  private long bytes_sent = 0;
+  private long bytes_received = 0;
+
+  /**
+   * @param start When the request started, from <code>System.nanoTime()</code>.
+   */
+  RequestTiming(long start)
+  {
+    this.start = start;
+  }
+
+  void setResolved(long when) { resolved = when - start; }
+  void setConnected(long when) { connected = when - start; }
+  void setWritten(long when) { written = when - start; }
+  void setFirstByte(long when) { first_byte = when - start; }
+  void setHeaders(long when) { headers = when - start; }
+  void setBody(long when) { body = when - start; }
+
+  void setBytesSent(long bytes) { bytes_sent = bytes; }
+  void setBytesReceived(long bytes) { bytes_received = bytes; }
+
+  /**
+   * @return start When the request started, as a <code>System.nanoTime()</code> value.
+   */
+  public long getStartNanos()
+  {
+    return start;
+  }
+
+  /**
+   * @return nanos Time until the server's address was known.
+   */
+  public long getResolvedNanos()
+  {
+    return resolved;
+  }
+
+  /**
+   * @return nanos Time until we were connected to the server.
+   */
+  public long getConnectedNanos()
+  {
+    return connected;
+  }
+
+  /**
+   * @return nanos Time until the request had been sent.
+   */
+  public long getWrittenNanos()
+  {
+    return written;
+  }
+
+  /**
+   * @return nanos Time until the first byte of the response arrived.
+   */
+  public long getFirstByteNanos()
+  {
+    return first_byte;
+  }
+
+  /**
+   * @return nanos Time until the status line and headers had been read.
+   */
+  public long getHeadersNanos()
+  {
+    return headers;
+  }
+
+  /**
+   * @return nanos Time until the whole body had been read, or -1 if it hasn't been.
+   */
+  public long getBodyNanos()
+  {
+    return body;
+  }
+
+  /**
+   * @return bytes The number of bytes in the request.
+   */
+  public long getBytesSent()
+  {
+    return bytes_sent;
+  }
+
+  /**
+   * @return bytes The number of bytes of response (head and body) read from the
+   * server.  Until the body has been read this only counts what has arrived so far.
+   */
+  public long getBytesReceived()
+  {
+    return bytes_received;
+  }
+
+  /**
+   * @return timings The stages in milliseconds, e.g., for logging a slow request.
+   */
+  public String toString()
+  {
+    return "dns="+ms(resolved)
+      +" connect="+ms(connected)
+      +" written="+ms(written)
+      +" first_byte="+ms(first_byte)
+      +" headers="+ms(headers)
+      +" body="+ms(body)
+      +" sent="+bytes_sent
+      +" received="+bytes_received;
+  }
+
+  private static String ms(long nanos)
+  {
+    if (nanos < 0) return "-";
+    return (nanos / 1000) / 1000.0 + "ms";
+  }
+
+}
@@ -0,0 +1,125 @@
+package com.dallaway.jsptest;
+
+import java.net.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches host name lookups and parsed URLs, shared by every session.
+ *
+ * <p>
+ * A load test requests the same few URLs from the same host over and over,
+ * so parsing each URL string and resolving the host every time is wasted
+ * work.  Addresses are kept for a time-to-live (the platform's own cache may
+ * keep them for longer, or not at all); failed lookups aren't kept.  Parsed
+ * URLs are kept until there are too many of them, as a URL never changes.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+class Resolver
+{
+
+  /** Default time an address is kept for, in milliseconds. */
+  static final long DEFAULT_TTL = 30000;
+
+  /** The most URLs (or host names) we keep, before starting again. */
+  private static final int MAX_ENTRIES = 1024;
+
+  private static final Resolver shared = new Resolver();
+
+  private final ConcurrentHashMap addresses = new ConcurrentHashMap(); // host -> Address
+  private final ConcurrentHashMap urls = new ConcurrentHashMap();      // String -> URL
+
+  private volatile long ttl = DEFAULT_TTL;
+
+  /**
+   * @return resolver The resolver shared by every session.
+   */
+  static Resolver getShared()
+  {
+    return shared;
+  }
+
+  /**
+   * Parse a URL, or find it already parsed.
+   *
+   * @param url The URL string.
+   * @return u The URL.
+   * @throws MalformedURLException Thrown if the URL is badly formed.
+   */
+  URL parse(String url) throws MalformedURLException
+  {
+    URL u = (URL)urls.get(url);
+    if (u != null) return u;
+
+    u = new URL(url);
+    if (urls.size() >= MAX_ENTRIES) urls.clear();
+    urls.put(url, u);
+    return u;
+  }
+
+  /**
+   * Find the address of a host, looking it up if we don't have it or it
+   * has been kept for longer than the time-to-live.
+   *
+   * @param host The host name (or address).
+   * @return address The address.
+   * @throws UnknownHostException Thrown if the host can't be found.
+   */
+  InetAddress resolve(String host) throws UnknownHostException
+  {
+    long now = System.currentTimeMillis();
+
+    Address a = (Address)addresses.get(host);
+    if (a != null && now < a.expires) return a.address;
+
+    InetAddress address = InetAddress.getByName(host);
+    if (addresses.size() >= MAX_ENTRIES) addresses.clear();
+    addresses.put(host, new Address(address, now + ttl));
+    return address;
+  }
+
+  /**
+   * Set how long an address is kept before it is looked up again.  Addresses
+   * already kept keep their old expiry time.
+   *
+   * @param millis The time-to-live in milliseconds, zero to look up every time.
+   */
+  void setTTL(long millis)
+  {
+    ttl = millis;
+  }
+
+  /**
+   * @return millis How long an address is kept for, in milliseconds.
+   */
+  long getTTL()
+  {
+    return ttl;
+  }
+
+  /**
+   * Forget every address and URL.
+   */
+  void clear()
+  {
+    addresses.clear();
+    urls.clear();
+  }
+
+  /**
+   * A looked-up address and when it should be looked up again.
+   */
+  private static class Address
+  {
+    final InetAddress address;
+    final long expires;
+
+    Address(InetAddress address, long expires)
+    {
+      this.address = address;
+      this.expires = expires;
+    }
+  }
+
+}
@@ -4,47 +4,527 @@ import java.util.Vector;
 import java.util.Hashtable;
 import java.net.HttpURLConnection;
 
+import java.io.*;
+import java.lang.ref.SoftReference;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
 /**
  * Container for the results from processing a HTTP request.
  *
+ * <p>
+ * A response from <code>Session.requestStream()</code> holds on to the
+ * connection until the body has been read, or the response is closed.  The
+ * body is only read when it is asked for.
+ *
  * @author  $Author: richard $
  * @version $Revision: 1.2 $  $Date: 2000/08/18 09:22:50 $
  */
 public class Response
 {
 
-  private Hashtable headers;
+  private HeaderTable headers;
   private String body;
   private String status_line = null;
 
   private int status = -1; // HTTP status code
 
+  /** The body still to be read from the server, or null if we have it all (or never will). */
+  private InputStream body_in;
+
+  /** The character set of the body. */
+  private Charset charset;
+
+  /** How long the request for this response took, if we know. */
+  private RequestTiming timing;
+
+  /** True if searches of the body should use an index. */
+  private boolean indexed = false;
+
+  /** The body index, once built.  Soft, so it goes if memory is short. */
+  private SoftReference index;
+
+  /** The first match for each pair, if the body was read with an extractor. */
+  private String[] extracted;
+
+  /** True if we stopped reading before the end of the body. */
+  private boolean truncated = false;
+
+  /** The body bytes read from the server, after any decompression, or -1 until read. */
+  private long body_bytes = -1;
+
+  /** The decompressing stream, if the server sent a compressed body. */
+  private InflatingInputStream inflated;
+
+  /** Size of the buffer first used to read a body, in bytes. */
+  private static final int BUFSIZ = 8192;
+
+  /** Largest buffer made up front for a body of known length, in bytes. */
+  private static final int MAX_FIRST_BUFFER = 256 * 1024;
+
+  /** Largest array we can ask for (some VMs reserve a few words). */
+  private static final int MAX_BUFFER = Integer.MAX_VALUE - 8;
+
   /**
    * Construct a new response from a HTTP request.
    *
    * @param body    The object containg the body of the response.
-   * @param headers Http headers.
+   * @param headers Http headers: each value a String, or a Vector of Strings.
    * @param status  The status line.
    */
   public Response(String body, Hashtable headers, String status_line)
   {
-    this.headers = headers;
+    this.headers = new HeaderTable(headers);
     this.body = body;
     this.status_line = status_line;
+    this.charset = Charset.forName("ISO-8859-1");
 
   }
 
 
+  /**
+   * Construct a new response whose body is still to be read.
+   *
+   * @param body_in The stream of body bytes from the server.
+   * @param charset The character set of the body.
+   * @param headers Http headers, including the status line.
+   * @param status  The status code, already parsed.
+   */
+  Response(InputStream body_in, Charset charset, HeaderTable headers, int status)
+  {
+    this.headers = headers;
+    this.body_in = body_in;
+    this.charset = charset;
+    this.status = status;
+
+    if (body_in instanceof InflatingInputStream) inflated = (InflatingInputStream)body_in;
+  }
+
+
   /**
    * Get the text body of the response.
+   * <p>
+   * If the body hasn't been read yet it is read now, in full.
    *
-   * @return body The string body (e.g., HTML) for the response.
+   * @return body The string body (e.g., HTML) for the response, or null if the body
+   * has been taken with <code>getBodyStream()</code>.
+   * @throws UncheckedIOException Thrown if the body had to be read, and the read failed.
    */
   public String getBody()
   {
+    try
+    {
+      readBody();
+    }
+    catch (IOException iox)
+    {
+      throw new UncheckedIOException("Failed to read response body", iox);
+    }
+
     return body;
   }
 
+
+  /**
+   * Get the body of the response as a stream of bytes, without reading it all
+   * into memory.
+   * <p>
+   * For a response from <code>Session.requestStream()</code> this is the body
+   * as it arrives from the server, and after calling this <code>getBody()</code>
+   * returns null.  Close the stream when you're done with it.
+   *
+   * @return in The bytes of the body.
+   */
+  public InputStream getBodyStream()
+  {
+    if (body_in != null)
+    {
+      InputStream in = body_in;
+      body_in = null;
+      return in;
+    }
+
+    if (body == null) return new ByteArrayInputStream(new byte[0]);
+    return new ByteArrayInputStream(body.getBytes(charset));
+  }
+
+
+  /**
+   * Get the body of the response as a channel.
+   *
+   * @return channel The bytes of the body.
+   * @see #getBodyStream
+   */
+  public ReadableByteChannel getBodyChannel()
+  {
+    return Channels.newChannel(getBodyStream());
+  }
+
+
+  /**
+   * The character set used to turn the body bytes into text.
+   *
+   * @return charset The body character set (from the Content-Type header).
+   */
+  public Charset getCharset()
+  {
+    return charset;
+  }
+
+
+  /**
+   * How long each stage of the request took, from DNS lookup to the end
+   * of the body, and how many bytes were sent and received.
+   *
+   * @return timing The timings, or null if this response didn't come from a session.
+   */
+  public RequestTiming getTiming()
+  {
+    return timing;
+  }
+
+
+  /**
+   * @param timing The timings of the request for this response.
+   */
+  void setTiming(RequestTiming timing)
+  {
+    this.timing = timing;
+  }
+
+
+  /**
+   * The text found by the extractor given to <code>Session.request(String, Extractor)</code>.
+   *
+   * @return extracted For each pair, the first match, or null if the pair wasn't
+   * found.  Null if the body wasn't read with an extractor.
+   */
+  public String[] getExtracted()
+  {
+    return extracted;
+  }
+
+
+  /**
+   * Did we stop reading before the end of the body?  This happens when the
+   * body is read with an extractor, and every pair is found before the end.
+   *
+   * @return truncated True if <code>getBody()</code> is only the start of the body.
+   */
+  public boolean isTruncated()
+  {
+    return truncated;
+  }
+
+
+  /**
+   * Index the body to speed up repeated calls to <code>getBetween()</code> and
+   * <code>getBetweens()</code>.
+   * <p>
+   * This is worth it for large pages searched many times.  The index is built
+   * the first time the body is searched, and takes about four bytes per
+   * character of body.  Bodies over 16M characters are never indexed, and the
+   * index may be thrown away (and rebuilt when next needed) if memory runs short.
+   *
+   * @param indexed True to index the body, false to stop indexing and drop any index.
+   */
+  public void setIndexed(boolean indexed)
+  {
+    this.indexed = indexed;
+    if (!indexed) index = null;
+  }
+
+
+  /**
+   * Find text in the body, using the index if there is one.
+   *
+   * @param body The body.
+   * @param text The text to find.
+   * @param from Where to start looking.
+   * @return index The position of the text, or -1 if it wasn't found.
+   */
+  private int indexOf(String body, String text, int from)
+  {
+    if (!indexed || body.length() > BodyIndex.MAX_LENGTH) return body.indexOf(text, from);
+
+    BodyIndex i = index == null ? null : (BodyIndex)index.get();
+    if (i == null)
+    {
+      i = new BodyIndex(body);
+      index = new SoftReference(i);
+    }
+
+    return i.indexOf(text, from);
+  }
+
+
+  /**
+   * Release the connection this response is being read from.  If the body
+   * hasn't been read in full it is abandoned.  Any index of the body is
+   * dropped.
+   */
+  public void close()
+  {
+    index = null;
+    if (body_in == null) return;
+
+    try
+    {
+      body_in.close();
+    }
+    catch (IOException iox)
+    {
+      // We're discarding the body anyway.
+    }
+
+    body_in = null;
+  }
+
+
+  /**
+   * Read the rest of the body, if there is any left to read.
+   *
+   * @throws IOException Thrown if there was any problem reading the body.
+   */
+  void readBody() throws IOException
+  {
+    if (body_in == null) return;
+
+    InputStream in = body_in;
+    body_in = null;
+
+    try
+    {
+      long length = -1;
+      if (in instanceof BodyInputStream) length = ((BodyInputStream)in).getLength();
+      body = readBody(in, length);
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+
+  /**
+   * Read the body, decoding it a piece at a time and looking for the
+   * extractor's pairs as we go.  We stop reading as soon as every pair has
+   * been found.
+   *
+   * @param rules The start and end text to look for.
+   * @throws IOException Thrown if there was any problem reading the body.
+   */
+  void readBody(Extractor rules) throws IOException
+  {
+    Extractor.Scan scan = new Extractor.Scan(rules.size());
+
+    if (body_in == null)
+    {
+      if (body != null) rules.scan(scan, body, 0, body.length());
+    }
+    else
+    {
+      InputStream in = body_in;
+      body_in = null;
+
+      try
+      {
+        // Not a StringBuffer: the scan calls charAt() for every character.
+        StringBuilder text = new StringBuilder();
+        CountingInputStream counted = new CountingInputStream(in);
+        Reader reader = new InputStreamReader(counted, charset);
+        char[] buffer = new char[BUFSIZ];
+
+        while (!scan.isSatisfied())
+        {
+          int n = reader.read(buffer);
+          if (n == -1) break;
+
+          int from = text.length();
+          text.append(buffer, 0, n);
+          rules.scan(scan, text, from, text.length());
+        }
+
+        // Finding everything in the last piece of the body isn't stopping
+        // early, even if the chunk that ends the body is still to be read.
+        if (scan.isSatisfied())
+          truncated = reader.ready() || !(counted.ended || isFinished(in) || finishChunks(in));
+
+        body = text.toString();
+        body_bytes = counted.count;
+      }
+      finally
+      {
+        // Leaves the connection closed if we stopped early.
+        in.close();
+      }
+    }
+
+    String[][] found = scan.getFound();
+    extracted = new String[found.length];
+    for (int p=0; p<found.length; p++)
+    {
+      if (found[p].length > 0) extracted[p] = found[p][0];
+    }
+  }
+
+
+  /**
+   * Read the content from a URL stream and convert to a string.
+   * <p>
+   * The bytes are read into a buffer sized from the length of the body, if
+   * it's known, and decoded in one go once the body is complete.
+   *
+   * @param in The stream of body bytes, ending where the body ends.
+   * @param length The length of the body, or -1 if it isn't known.
+   * @return body The string version of the content.
+   * @throws IOException Thrown if there was any problem reading the response.
+   */
+  private String readBody(InputStream in, long length) throws IOException
+  {
+
+    // When we know how big the body is we can usually read it without
+    // re-sizing, but a Content-Length alone doesn't get a huge buffer.
+    byte[] buffer = new byte[length >= 0 ? (int)Math.min(length, MAX_FIRST_BUFFER) : BUFSIZ];
+
+    int n = 0;
+    while (true)
+    {
+      if (n == buffer.length)
+      {
+        // The buffer may hold the whole body already.
+        int c = in.read();
+        if (c == -1) break;
+
+        buffer = grow(buffer);
+        buffer[n++] = (byte)c;
+      }
+
+      int num_read = in.read(buffer, n, buffer.length - n);
+      if (num_read == -1) break;
+      n += num_read;
+    }
+
+    body_bytes = n;
+    return new String(buffer, 0, n, charset);
+  }
+
+  /**
+   * @param buffer A full body buffer.
+   * @return bigger A buffer twice the size (or as big as we can make it),
+   * holding the same bytes.
+   */
+  private static byte[] grow(byte[] buffer)
+  {
+    if (buffer.length >= MAX_BUFFER) throw new OutOfMemoryError("Response body too large");
+
+    // Doubling can overflow an int, so stop at the largest array instead.
+    int size = buffer.length > MAX_BUFFER / 2 ? MAX_BUFFER : Math.max(buffer.length * 2, BUFSIZ);
+
+    byte[] bigger = new byte[size];
+    System.arraycopy(buffer, 0, bigger, 0, buffer.length);
+    return bigger;
+  }
+
+  /**
+   * @param in The body stream.
+   * @return finished True if the stream has been read to the end of the body.
+   * @throws IOException Thrown if the stream can't be checked.
+   */
+  static boolean isFinished(InputStream in) throws IOException
+  {
+    if (in instanceof InflatingInputStream) return ((InflatingInputStream)in).isFinished();
+    if (in instanceof BodyInputStream) return ((BodyInputStream)in).isFinished();
+    if (in instanceof ResponseCache.Keeper) return ((ResponseCache.Keeper)in).isFinished();
+
+    // A body already in memory: from the cache, a recording, or the event loop.
+    return in instanceof ByteArrayInputStream && in.available() == 0;
+  }
+
+  /**
+   * @param in The body stream, stopped at the end of a chunk.
+   * @return finished True if that chunk was the last of a chunked body.
+   * @throws IOException Thrown if the next chunk can't be read.
+   */
+  private static boolean finishChunks(InputStream in) throws IOException
+  {
+    return in instanceof BodyInputStream && ((BodyInputStream)in).finishChunks();
+  }
+
+  /**
+   * Read a body stream to the end, and close it.
+   *
+   * @param in The body stream.
+   * @return body The bytes read.
+   * @throws IOException Thrown if there was any problem reading the body.
+   */
+  static byte[] readBytes(InputStream in) throws IOException
+  {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = in.read(buffer)) != -1) body.write(buffer, 0, n);
+    in.close();
+    return body.toByteArray();
+  }
+
+  /**
+   * Get the size of the body as the server sent it, which is the compressed
+   * size if the body was sent gzip or deflate encoded.  This doesn't include
+   * any chunked framing.
+   *
+   * @return bytes The number of body bytes read from the server, or -1 if
+   * the body hasn't been read, or was taken with <code>getBodyStream()</code>.
+   */
+  public long getCompressedBytes()
+  {
+    if (inflated != null && body_bytes != -1) return inflated.getBytesIn();
+    return body_bytes;
+  }
+
+  /**
+   * Get the size of the body once decompressed.  This is the same as
+   * <code>getCompressedBytes()</code> if the body wasn't compressed.
+   *
+   * @return bytes The number of decompressed body bytes, or -1 if the body
+   * hasn't been read, or was taken with <code>getBodyStream()</code>.
+   */
+  public long getDecompressedBytes()
+  {
+    return body_bytes;
+  }
+
+  /**
+   * Counts the bytes read through it.
+   */
+  private static class CountingInputStream extends FilterInputStream
+  {
+    long count = 0;
+    boolean ended = false;
+
+    CountingInputStream(InputStream in)
+    {
+      super(in);
+    }
+
+    public int read() throws IOException
+    {
+      int c = in.read();
+      if (c != -1) count++;
+      else ended = true;
+      return c;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      int n = in.read(b, off, len);
+      if (n > 0) count += n;
+      else if (n == -1) ended = true;
+      return n;
+    }
+  }
+
   /**
    * Get the HTTP status code for this request.
    *
@@ -58,6 +538,7 @@ public class Response
     if (status != -1) return status;
 
     // parse the status string from "HTTP/1.1 200 OK" to get the "200" bit.
+    if (status_line == null) status_line = headers.getStatusLine();
     if (status_line == null) return -1;
 
     int l = status_line.length();
@@ -92,15 +573,25 @@ public class Response
 
 
   /**
-   * Get a HTTP header.  Examples include: status, Date, Server, Last-Modified,
-   * Content-Length, Content-Type, Set-Cookie.
+   * Get a HTTP header.  Examples include: Date, Server, Last-Modified,
+   * Content-Length, Content-Type, Set-Cookie.  Header names are not case
+   * sensitive.
    *
    * @param name    The name of the header to look up.
-   * @return values A vector of values associated with the header, or null of the header was not found.
+   * @return values A vector of values associated with the header, in the order
+   * they were sent, or null of the header was not found.
    */
   public Vector getHeader(String name)
   {
-    return (Vector)headers.get(name);
+    return headers.getAll(name);
+  }
+
+  /**
+   * @return headers All the headers, with the status line.
+   */
+  HeaderTable getHeaderTable()
+  {
+    return headers;
   }
 
   /**
@@ -113,31 +604,25 @@ public class Response
    */
   public String getHeader(String name, int index)
   {
-    Vector values = (Vector)headers.get(name);
+    if (index == 0) return headers.get(name);
+
+    Vector values = headers.getAll(name);
     if (values == null) return null;
-    if (values.size() < index) return null;
+    if (values.size() <= index) return null;
     return (String)values.elementAt(index);
   }
 
 
   /**
    * Add a new header to our list of headers.  Note that headers can have the same
-   * name, so we are storing the header values in a vector which in turn
-   * is stored in a hashtable keyed on the name of the value.
+   * name, and every value is kept.
    *
    * @param name  The name of the header (before the colon).
    * @param value The value for the header.
    */
   private void addHeader(String name, String value)
   {
-    Vector values = (Vector)headers.get("name");
-    if (values == null)
-    {
-      values = new Vector();
-      headers.put(name, values);
-    }
-
-    values.addElement(value);
+    headers.add(name, value);
   }
 
   /**
@@ -198,6 +683,7 @@ public class Response
       if (start_text == null || end_text == null || "".equals(end_text) || "".equals(start_text))
         return null;
 
+      String body = getBody();
       if (body == null) return null;
 
       // Temporary storage for anything we find.
@@ -216,13 +702,13 @@ public class Response
       {
 
         // Find the start_text
-        start_match_point = body.indexOf(start_text, start_point);
+        start_match_point = indexOf(body, start_text, start_point);
         if (start_match_point == -1) break;
 
         start_match_point += start_text_length; // Skip past the start_text itself
 
         // Find the end_text
-        end_match_point = body.indexOf(end_text, start_match_point);
+        end_match_point = indexOf(body, end_text, start_match_point);
         if (end_match_point == -1) break;
 
         // If we get here, we've got a match inside body
@@ -249,4 +735,22 @@ public class Response
    }
 
 
+   /**
+    * From the body, extract all occurances of the text between many pairs
+    * of start and end strings, in one pass over the body.
+    *
+    * @see Extractor
+    *
+    * @param  extractor The compiled start and end strings.
+    *
+    * @return betweens For each pair, the text between the end of the start text
+    * and the start of the end text for all occurances of the start text. Null if
+    * there is no body text to search.
+    */
+   public String[][] getBetweens(Extractor extractor)
+   {
+     return extractor.extract(this);
+   }
+
+
 }
\ No newline at end of file
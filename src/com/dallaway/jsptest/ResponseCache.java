@@ -0,0 +1,465 @@
+package com.dallaway.jsptest;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Vector;
+
+/**
+ * Keeps responses that the server can say are still current, so a page
+ * fetched over and over is only sent in full when it changes.
+ *
+ * <p>
+ * Give a session a cache with <code>Session.setResponseCache()</code>, or
+ * give the same cache to many sessions to share it.  A 200 response with an
+ * ETag or Last-Modified header is kept.  The next request for the URL is
+ * sent with If-None-Match and If-Modified-Since, and if the server answers
+ * 304 Not Modified the kept response is returned in its place, as a 200 with
+ * the kept body.  Responses are always checked with the server, never used
+ * without asking.
+ *
+ * <p>
+ * A response is kept as its body is read, once it has been read to the end.
+ * So a body read a piece at a time (from <code>Session.requestStream()</code>)
+ * is still streamed, and one that is only partly read (such as by
+ * <code>Session.request(url, Extractor)</code> stopping early) isn't kept.
+ *
+ * <p>
+ * Responses are kept by URL, plus the values of any request headers the
+ * response names in a Vary header (such as Cookie), so a page that differs
+ * between sessions isn't given to the wrong one.  Responses marked
+ * "Cache-Control: no-store" aren't kept.
+ *
+ * <p>
+ * When there are more responses than the entry budget, or they take more
+ * bytes than the byte budget, the least recently used are dropped.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+public class ResponseCache
+{
+
+  /** Default most responses kept. */
+  public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+  /** Default most bytes kept, counting bodies and headers. */
+  public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+  private int max_entries;
+  private long max_bytes;
+
+  /** Key -> Entry, least recently used first. */
+  private LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+
+  /** URL -> String[] of the request headers its last response varied on. */
+  private Hashtable varies = new Hashtable();
+
+  private long bytes = 0;
+  private long hits = 0;
+  private long misses = 0;
+
+  /**
+   * A cache with the default budgets.
+   */
+  public ResponseCache()
+  {
+    this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * @param max_entries The most responses to keep.
+   * @param max_bytes The most bytes to keep, counting bodies and headers.
+   */
+  public ResponseCache(int max_entries, long max_bytes)
+  {
+    this.max_entries = max_entries;
+    this.max_bytes = max_bytes;
+  }
+
+  /**
+   * @return size The number of responses kept.
+   */
+  public synchronized int size()
+  {
+    return entries.size();
+  }
+
+  /**
+   * @return bytes The bytes the kept responses take, counting bodies and headers.
+   */
+  public synchronized long getBytes()
+  {
+    return bytes;
+  }
+
+  /**
+   * @return hits The number of times the server said a kept response was
+   * still current, and it was used.
+   */
+  public synchronized long getHits()
+  {
+    return hits;
+  }
+
+  /**
+   * @return misses The number of times the server sent a response in full.
+   */
+  public synchronized long getMisses()
+  {
+    return misses;
+  }
+
+  /**
+   * Drop every response kept.
+   */
+  public synchronized void clear()
+  {
+    entries.clear();
+    varies.clear();
+    bytes = 0;
+  }
+
+  /**
+   * Find what we have for a request that is about to be made.
+   *
+   * @param url The URL to request.
+   * @param request_line The request line and Host: header, as sent.
+   * @param block The rest of the request headers, as sent.
+   * @return lookup The kept response, if any, and what we need to keep the
+   * response to the request.
+   * @throws IOException Thrown if the request headers can't be read.
+   */
+  Lookup lookup(String url, byte[] request_line, byte[] block) throws IOException
+  {
+    Lookup l = new Lookup(url, request_line, block);
+
+    synchronized (this)
+    {
+      String[] vary = (String[])varies.get(url);
+      if (vary == null) return l;
+
+      l.entry = (Entry)entries.get(l.getKey(vary));
+    }
+
+    return l;
+  }
+
+  /**
+   * Keep a response, dropping others if that takes us over budget.
+   */
+  private synchronized void put(String url, String[] vary, Entry e)
+  {
+    Entry old = (Entry)entries.remove(e.key);
+    if (old != null) bytes -= old.size;
+
+    varies.put(url, vary);
+    if (e.size > max_bytes) return;
+
+    entries.put(e.key, e);
+    bytes += e.size;
+
+    Iterator i = entries.values().iterator();
+    while ((entries.size() > max_entries || bytes > max_bytes) && i.hasNext())
+    {
+      Entry lru = (Entry)i.next();
+      i.remove();
+      bytes -= lru.size;
+    }
+  }
+
+  /**
+   * Forget a response the server no longer lets us keep.
+   */
+  private synchronized void remove(String key)
+  {
+    Entry old = (Entry)entries.remove(key);
+    if (old != null) bytes -= old.size;
+  }
+
+  private synchronized void counted(boolean hit)
+  {
+    if (hit) hits++;
+    else misses++;
+  }
+
+  /**
+   * @return cacheable True if a response can be kept.
+   */
+  static boolean isCacheable(int status, HeaderTable headers)
+  {
+    if (status != 200) return false;
+    if (headers.get("ETag") == null && headers.get("Last-Modified") == null) return false;
+    if (headers.contains("Cache-Control", "no-store")) return false;
+
+    String vary = headers.get("Vary");
+    return vary == null || vary.trim().indexOf('*') == -1;
+  }
+
+  /**
+   * @return names The request headers named in a response's Vary headers, in lower case.
+   */
+  private static String[] getVary(HeaderTable headers)
+  {
+    Vector names = new Vector();
+    Vector values = headers.getAll("Vary");
+    for (int i=0; values != null && i<values.size(); i++)
+    {
+      String[] split = ((String)values.elementAt(i)).split(",");
+      for (int j=0; j<split.length; j++)
+      {
+        String name = split[j].trim().toLowerCase();
+        if (name.length() > 0) names.addElement(name);
+      }
+    }
+
+    String[] vary = new String[names.size()];
+    names.copyInto(vary);
+    return vary;
+  }
+
+
+  /**
+   * A request about to be made, and the response we have kept for it, if any.
+   */
+  class Lookup
+  {
+    private String url;
+    private byte[] request_line;
+    private byte[] block;
+    private HeaderTable request; // parsed from request_line and block when needed
+    private Entry entry;
+
+    Lookup(String url, byte[] request_line, byte[] block)
+    {
+      this.url = url;
+      this.request_line = request_line;
+      this.block = block;
+    }
+
+    /**
+     * @return headers The If-None-Match and If-Modified-Since headers to send
+     * with the request, as bytes, or null if we have nothing kept.
+     * @throws IOException Thrown if the headers can't be encoded.
+     */
+    byte[] getConditionalHeaders() throws IOException
+    {
+      if (entry == null) return null;
+
+      StringBuffer h = new StringBuffer(128);
+      if (entry.etag != null) h.append("If-None-Match: ").append(entry.etag).append("\r\n");
+      if (entry.last_modified != null) h.append("If-Modified-Since: ").append(entry.last_modified).append("\r\n");
+      return h.toString().getBytes("ISO-8859-1");
+    }
+
+    /**
+     * Make the response to the request: the kept response if the server
+     * says it is still current, otherwise the response from the server,
+     * which is kept if it can be.
+     *
+     * @param status The status code from the server.
+     * @param headers The headers from the server.
+     * @param charset The character set of the body.
+     * @param body_in The (decoded) body from the server.
+     * @return response The response, with the body still to be read.
+     * @throws IOException Thrown if the body can't be read.
+     */
+    Response respond(int status, HeaderTable headers, Charset charset, InputStream body_in) throws IOException
+    {
+      if (status == 304 && entry != null)
+      {
+        Response.readBytes(body_in); // nothing, but it frees the connection
+        counted(true);
+        return new Response(new ByteArrayInputStream(entry.body), entry.charset, entry.headers, entry.status);
+      }
+
+      counted(false);
+
+      String[] vary = getVary(headers);
+      String key = getKey(vary);
+
+      // Whatever we had is out of date now.
+      remove(key);
+      if (!isCacheable(status, headers)) return new Response(body_in, charset, headers, status);
+
+      Keeper keeper = new Keeper(body_in, url, vary, key, status, headers, charset);
+      return new Response(keeper, charset, headers, status);
+    }
+
+    /**
+     * @param vary The request headers the response varies on.
+     * @return key The URL, plus the values of those request headers.
+     */
+    private String getKey(String[] vary) throws IOException
+    {
+      if (vary.length == 0) return url;
+
+      if (request == null)
+      {
+        HeadParser parser = new HeadParser();
+        parser.parse(new SequenceInputStream(new ByteArrayInputStream(request_line), new ByteArrayInputStream(block)));
+        request = parser.getHeaders();
+      }
+
+      StringBuffer key = new StringBuffer(url);
+      for (int i=0; i<vary.length; i++)
+      {
+        String value = request.get(vary[i]);
+        key.append('\n').append(vary[i]).append(": ").append(value == null ? "" : value);
+      }
+      return key.toString();
+    }
+  }
+
+
+  /**
+   * Passes a body on as it is read, keeping a copy, and keeps the response
+   * once the body has been read to the end.
+   */
+  class Keeper extends FilterInputStream
+  {
+    private String url;
+    private String[] vary;
+    private String key;
+    private int status;
+    private HeaderTable headers;
+    private Charset charset;
+    private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+    private boolean ended = false;
+
+    Keeper(InputStream in, String url, String[] vary, String key, int status, HeaderTable headers, Charset charset)
+    {
+      super(in);
+      this.url = url;
+      this.vary = vary;
+      this.key = key;
+      this.status = status;
+      this.headers = headers;
+      this.charset = charset;
+    }
+
+    public int read() throws IOException
+    {
+      int c = in.read();
+      if (c == -1) end();
+      else if (fits(1)) copy.write(c);
+      return c;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      int n = in.read(b, off, len);
+      if (n == -1)
+      {
+        end();
+      }
+      else if (fits(n))
+      {
+        copy.write(b, off, n);
+      }
+      return n;
+    }
+
+    /**
+     * @param n The number of bytes just read.
+     * @return fits True if we are still copying the body, and can copy them too.
+     */
+    private boolean fits(int n)
+    {
+      // Too big to keep, so don't hold on to it.
+      if (copy != null && copy.size() + n > max_bytes) copy = null;
+      return copy != null;
+    }
+
+    public long skip(long n) throws IOException
+    {
+      copy = null; // what's skipped isn't copied
+      return in.skip(n);
+    }
+
+    public boolean markSupported()
+    {
+      return false;
+    }
+
+    /**
+     * @return finished True if the body has been read to the end.
+     * @throws IOException Thrown if the body stream can't be checked.
+     */
+    boolean isFinished() throws IOException
+    {
+      return ended || Response.isFinished(in);
+    }
+
+    public void close() throws IOException
+    {
+      // The last byte of a body of known length may have been read without
+      // reading the end of the stream.
+      boolean finished = isFinished();
+      in.close();
+      if (finished) end();
+    }
+
+    private void end()
+    {
+      ended = true;
+      if (copy == null) return;
+
+      put(url, vary, new Entry(key, status, headers, charset, copy.toByteArray()));
+      copy = null;
+    }
+  }
+
+
+  /**
+   * A kept response.
+   */
+  private static class Entry
+  {
+    final String key;
+    final int status;
+    final HeaderTable headers;
+    final Charset charset;
+    final byte[] body;
+    final String etag;
+    final String last_modified;
+    final long size;
+
+    Entry(String key, int status, HeaderTable headers, Charset charset, byte[] body)
+    {
+      this.key = key;
+      this.status = status;
+      this.headers = forBody(headers, body.length);
+      this.charset = charset;
+      this.body = body;
+      this.etag = headers.get("ETag");
+      this.last_modified = headers.get("Last-Modified");
+
+      long n = body.length + key.length();
+      for (int i=0; i<this.headers.size(); i++) n += this.headers.getName(i).length() + this.headers.getValue(i).length() + 4;
+      this.size = n;
+    }
+
+    /**
+     * @param headers The headers from the server.
+     * @param length The length of the kept body.
+     * @return kept The headers to give with the kept body.
+     */
+    private static HeaderTable forBody(HeaderTable headers, int length)
+    {
+      HeaderTable kept = new HeaderTable();
+      for (int i=0; i<headers.size(); i++)
+      {
+        // The body is kept decoded, so these no longer describe it.
+        String name = headers.getName(i);
+        if (name.equalsIgnoreCase("Content-Encoding") || name.equalsIgnoreCase("Transfer-Encoding") || name.equalsIgnoreCase("Content-Length")) continue;
+        kept.add(name, headers.getValue(i));
+      }
+      kept.add("Content-Length", String.valueOf(length));
+      return kept;
+    }
+  }
+
+}
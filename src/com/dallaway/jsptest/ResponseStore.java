@@ -0,0 +1,248 @@
+package com.dallaway.jsptest;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * A file of recorded responses, so a test run can be repeated without the
+ * server.
+ *
+ * <p>
+ * Give a session a store in <code>RECORD</code> mode and every response it
+ * receives is appended to the file: the URL, status line, headers (including
+ * any Set-Cookie) and body.  Give a session the same file in
+ * <code>REPLAY</code> mode and it answers requests from the file instead of
+ * the network, at memory speed.
+ *
+ * <p>
+ * A URL requested more than once is recorded each time, in order, and
+ * replayed in the same order: the second request for a URL gets the second
+ * response recorded for it.  Once the recorded responses for a URL have all
+ * been used, the last one is repeated.  A URL that was never recorded is an
+ * error.
+ *
+ * <pre>
+ * // Once, against staging:
+ * ResponseStore store = new ResponseStore(new File("checkout.responses"), ResponseStore.RECORD);
+ * session.setResponseStore(store);
+ * runChecks(session);
+ * store.close();
+ *
+ * // From then on:
+ * session.setResponseStore(new ResponseStore(new File("checkout.responses"), ResponseStore.REPLAY));
+ * runChecks(session);
+ * </pre>
+ *
+ * <p>
+ * Bodies are stored after any compression and chunking has been undone, with
+ * headers to match: no Content-Encoding or Transfer-Encoding, and a
+ * Content-Length of the stored body.  When replaying,
+ * the file is memory-mapped and indexed by URL; a response is only read from
+ * the mapping when it is asked for.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+public class ResponseStore
+{
+
+  /** Append every response received to the file. */
+  public static final int RECORD = 1;
+
+  /** Answer requests from the file. */
+  public static final int REPLAY = 2;
+
+  private int mode;
+
+  /** The file being written, when recording. */
+  private RecordLog log;
+
+  /** The mapped file and URL -> Vector of int[] { offset, length }, when replaying. */
+  private ByteBuffer map;
+  private Hashtable index = new Hashtable();
+
+  /** URL -> how many responses have been recorded, or replayed. */
+  private Hashtable counts = new Hashtable();
+
+  private int size = 0;
+
+  /**
+   * Open a store.
+   *
+   * @param file The file: replaced when recording, read when replaying.
+   * @param mode <code>RECORD</code> or <code>REPLAY</code>.
+   * @throws IOException Thrown if the file can't be made or read.
+   */
+  public ResponseStore(File file, int mode) throws IOException
+  {
+    this.mode = mode;
+
+    if (mode == RECORD)
+    {
+      log = new RecordLog(file);
+      return;
+    }
+
+    if (mode != REPLAY) throw new IllegalArgumentException("Unknown mode: "+mode);
+
+    RecordLog.Reader reader = new RecordLog.Reader(file);
+    map = reader.getBuffer();
+
+    while (reader.next())
+    {
+      String url = readURL(map, reader.getDataOffset());
+      Vector offsets = (Vector)index.get(url);
+      if (offsets == null)
+      {
+        offsets = new Vector(1);
+        index.put(url, offsets);
+      }
+      offsets.addElement(new int[] { reader.getDataOffset(), reader.getDataLength() });
+      size++;
+    }
+  }
+
+  /**
+   * @return mode <code>RECORD</code> or <code>REPLAY</code>.
+   */
+  public int getMode()
+  {
+    return mode;
+  }
+
+  /**
+   * @return size The number of responses in the store.
+   */
+  public synchronized int size()
+  {
+    return size;
+  }
+
+  /**
+   * Finish writing the file, if recording.
+   *
+   * @throws IOException Thrown if the file couldn't be written.
+   */
+  public void close() throws IOException
+  {
+    if (log != null) log.close();
+  }
+
+  /**
+   * Add a response to the file.
+   * <p>
+   * A record is the URL (length and UTF-8 bytes), the status code, the head
+   * (length and bytes, as sent, with CR LF line ends) and the body.  The
+   * record id is its place in the sequence of responses for the URL.
+   *
+   * @param url The URL requested.
+   * @param status The status code.
+   * @param headers The response headers, with the status line.
+   * @param body The body.
+   * @throws IOException Thrown if the response couldn't be written.
+   */
+  void record(String url, int status, HeaderTable headers, byte[] body) throws IOException
+  {
+    StringBuffer head = new StringBuffer(256);
+    String status_line = headers.getStatusLine();
+    head.append(status_line == null ? "HTTP/1.1 "+status : status_line).append("\r\n");
+    for (int i=0; i<headers.size(); i++)
+    {
+      // The body is stored decoded, so these no longer describe it.
+      String name = headers.getName(i);
+      if (name.equalsIgnoreCase("Content-Encoding") || name.equalsIgnoreCase("Transfer-Encoding") || name.equalsIgnoreCase("Content-Length")) continue;
+      head.append(name).append(": ").append(headers.getValue(i)).append("\r\n");
+    }
+    head.append("Content-Length: ").append(body.length).append("\r\n");
+    head.append("\r\n");
+
+    byte[] url_bytes = url.getBytes("UTF-8");
+    byte[] head_bytes = head.toString().getBytes("ISO-8859-1");
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(12 + url_bytes.length + head_bytes.length + body.length);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(url_bytes.length);
+    out.write(url_bytes);
+    out.writeInt(status);
+    out.writeInt(head_bytes.length);
+    out.write(head_bytes);
+    out.write(body);
+    byte[] record = bytes.toByteArray();
+
+    // Appended in the same order as the sequence.
+    synchronized (this)
+    {
+      log.append(next(url), record, 0, record.length);
+      size++;
+    }
+  }
+
+  /**
+   * Find the next response for a URL.
+   *
+   * @param url The URL requested.
+   * @return response The response, with its body still to be read, or null
+   * if none was recorded for the URL.
+   * @throws IOException Thrown if the recorded head can't be read.
+   */
+  Response replay(String url) throws IOException
+  {
+    Vector offsets = (Vector)index.get(url);
+    if (offsets == null) return null;
+
+    int seq;
+    synchronized (this)
+    {
+      seq = next(url);
+    }
+    int[] where = (int[])offsets.elementAt(Math.min(seq, offsets.size() - 1));
+    int offset = where[0];
+
+    ByteBuffer b = map.duplicate();
+    int url_length = b.getInt(offset);
+    int pos = offset + 4 + url_length;
+    int status = b.getInt(pos);
+    int head_length = b.getInt(pos + 4);
+
+    byte[] head = new byte[head_length];
+    b.position(pos + 8);
+    b.get(head);
+
+    byte[] body = new byte[where[1] - 12 - url_length - head_length];
+    b.get(body);
+
+    HeadParser parser = new HeadParser();
+    parser.parse(new ByteArrayInputStream(head));
+    HeaderTable headers = parser.getHeaders();
+
+    Charset charset = Session.getCharset(headers.get("Content-Type"));
+    return new Response(new ByteArrayInputStream(body), charset, headers, status);
+  }
+
+  /**
+   * @return seq The place of this request for the URL in its sequence, counting from zero.
+   */
+  private int next(String url)
+  {
+    Integer count = (Integer)counts.get(url);
+    int seq = count == null ? 0 : count.intValue();
+    counts.put(url, Integer.valueOf(seq + 1));
+    return seq;
+  }
+
+  /**
+   * Read the URL at the start of a record.
+   */
+  private static String readURL(ByteBuffer map, int offset) throws IOException
+  {
+    ByteBuffer b = map.duplicate();
+    byte[] url = new byte[b.getInt(offset)];
+    b.position(offset + 4);
+    b.get(url);
+    return new String(url, "UTF-8");
+  }
+
+}
@@ -0,0 +1,37 @@
+package com.dallaway.jsptest;
+
+/**
+ * A scripted visit to a web site, run over and over by a <code>LoadRunner</code>.
+ *
+ * <p>
+ * Each virtual user has its own session, which is passed in on every
+ * iteration, so cookies (such as a login) carry over from one iteration to
+ * the next.  For example:
+ *
+ * <pre>
+ * Scenario browse = new Scenario()
+ * {
+ *   public void run(Session session) throws Exception
+ *   {
+ *     session.request("http://127.0.0.1/index.jsp");
+ *     session.request("http://127.0.0.1/search.jsp?q=dog");
+ *   }
+ * };
+ * </pre>
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+public interface Scenario
+{
+
+  /**
+   * Run one iteration of the scenario.
+   *
+   * @param session The virtual user's session.
+   * @throws Exception Thrown if the iteration went wrong.  It is counted as a
+   * failed iteration, and the user carries on with the next one.
+   */
+  public void run(Session session) throws Exception;
+
+}
@@ -6,6 +6,11 @@ import java.util.Vector;
 
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * HTTP session implementation for managing client state and firing off HTTP requests.
@@ -19,6 +24,14 @@ import java.io.*;
  * with a call to: <code>session.setHeader("User-Agent", "Mozilla/5.0 (Windows; U; WinNT4.0; en-US; m14) Gecko/20000419")</code>.
  * <p>
  * To support HTTP/1.1, we send the Host: header (e.g., Host: 127.0.0.1:8080).
+ * When sending HTTP/1.1 requests the session keeps connections open
+ * between requests (when the server allows), so call <code>close()</code>
+ * when you have finished with a session.
+ * <p>
+ * A session can be shared between threads, for example to make requests from
+ * many threads as one logged-in user.  The headers and cookies are kept as an
+ * unchanging snapshot which is replaced, not changed, so making a request
+ * never waits for a lock.
  * <p>
  * Other headers you might want to set and suggested values:
  * <br>
@@ -39,15 +52,41 @@ import java.io.*;
 public class Session
 {
 
-  private Hashtable cookies; // active cookies
-  private Hashtable headers; // HTTP headers
+  /** The active cookies and HTTP headers (a SessionState), swapped as a whole when they change. */
+  private AtomicReference state = new AtomicReference();
+
+  /** Told about each request, if set. */
+  private volatile RequestListener listener;
+
+  /** Idle HTTP/1.1 connections, kept for re-use. */
+  private ConnectionPool pool = new ConnectionPool();
+
+  /** Where responses are recorded to, or replayed from, if set. */
+  private volatile ResponseStore store;
+
+  /** Responses kept to revalidate with conditional requests, if set. */
+  private volatile ResponseCache cache;
+
+  /** Caps the requests made to each host at once, if set. */
+  private volatile HostLimiter limiter;
+
+  /** Timeouts for each request, in milliseconds, zero for none. */
+  private volatile long connect_timeout = 0;
+  private volatile long read_timeout = 0;
+  private volatile long deadline = 0;
 
   // Useful constants
   public static final String UA_IE_50_NT = "Mozilla/4.0 (compatible; MSIE 5.0; Windows NT; DigExt)";
   public static final String UA_MOZ_50_NT = "Mozilla/5.0 (Windows; U; WinNT4.0; en-US; m14) Gecko/20000419";
 
   /** The HTTP version we send with requests */
-  private String http_version = "HTTP/1.0";
+  private volatile String http_version = "HTTP/1.0";
+
+  /** The character set for bodies that don't say what they are. */
+  private static final Charset DEFAULT_CHARSET = Charset.forName("ISO-8859-1");
+
+  /** The encodings we ask for when compression is on. */
+  private static final String ACCEPT_ENCODING = "gzip, deflate";
 
   /** The string to send to the server to end a HTTP line. */
   private String LINE_END = "\r\n";
@@ -60,14 +99,53 @@ public class Session
     reset();
   }
 
+  /**
+   * Create a session that starts where another left off.
+   *
+   * @param parent The session to copy.
+   */
+  private Session(Session parent)
+  {
+    state.set(parent.state.get());
+    http_version = parent.http_version;
+    pool.setMaxIdle(parent.pool.getMaxIdle());
+    pool.setIdleTimeout(parent.pool.getIdleTimeout());
+    store = parent.store;
+    cache = parent.cache;
+    limiter = parent.limiter;
+    connect_timeout = parent.connect_timeout;
+    read_timeout = parent.read_timeout;
+    deadline = parent.deadline;
+  }
+
+  /**
+   * Make a new session with the same headers, cookies and settings as this
+   * one.  The two sessions then go their own ways: a cookie or header set in
+   * one doesn't change the other.
+   * <p>
+   * The new session shares this session's headers and cookies until either
+   * session changes them, so forking is quick and takes little memory.  Use
+   * this to log in once and then run many users as that logged-in user.  The
+   * new session has its own connections, and no request listener.
+   *
+   * @return session The new session.
+   */
+  public Session fork()
+  {
+    return new Session(this);
+  }
+
   /**
    * Clear the sessions.  This removes all client-side state information.
    */
   public void reset()
   {
-    cookies = new Hashtable();
-    headers = new Hashtable();
-    setHeader("User-Agent", UA_IE_50_NT);
+    pool.close();
+
+    Hashtable headers = new Hashtable();
+    headers.put("User-Agent", UA_IE_50_NT);
+    state.set(new SessionState(headers, new CookieJar()));
+
     setHTTPVersion("HTTP/1.0");
   }
 
@@ -79,41 +157,80 @@ public class Session
    */
   public void setHeader(String header_name, String header_value)
   {
-    headers.put(header_name, header_value);
+    while (true)
+    {
+      SessionState s = (SessionState)state.get();
+      if (state.compareAndSet(s, s.withHeader(header_name, header_value))) return;
+    }
   }
 
   /**
-   * The list of active cookies.
+   * Ask servers to compress response bodies, by sending
+   * <code>Accept-Encoding: gzip, deflate</code> with each request.  Off by
+   * default.
+   * <p>
+   * Whether or not this is on, a gzip or deflate encoded body is decompressed
+   * as it is read, so <code>getBody()</code> and <code>getBodyStream()</code>
+   * always give the decoded content.  <code>Response.getCompressedBytes()</code>
+   * tells you how much was sent.
    *
-   * @return cookie[] An array of Cookie objects.
+   * @param compression True to ask for compressed bodies.
    */
-  public synchronized Cookie[] getCookies()
+  public void setCompression(boolean compression)
   {
-
-    int n = cookies.size();
-    Cookie[] toRet = new Cookie[n];
-
-    Enumeration e = cookies.elements();
-    int i = 0;
-    while (e.hasMoreElements())
+    while (true)
     {
-      toRet[i] = (Cookie)e.nextElement();
-      i++;
+      SessionState s = getState();
+      SessionState changed = compression ? s.withHeader("Accept-Encoding", ACCEPT_ENCODING) : s.withoutHeader("Accept-Encoding");
+      if (state.compareAndSet(s, changed)) return;
     }
+  }
+
+  /**
+   * @return compression True if the session asks for compressed bodies.
+   */
+  public boolean getCompression()
+  {
+    return ACCEPT_ENCODING.equals(getState().getHeaders().get("Accept-Encoding"));
+  }
 
-    return toRet;
+  /**
+   * The list of active cookies, for every host, most recently set first.
+   *
+   * @return cookie[] An array of Cookie objects.
+   */
+  public Cookie[] getCookies()
+  {
+    return getState().getCookies().getCookies(System.currentTimeMillis());
   }
 
   /**
    * Add a cookie to this session.
    * <p>
+   * A cookie replaces any other with the same name, domain and path.  If the
+   * cookie has already expired, the one it replaces is just removed.  A cookie
+   * without a domain is sent to every host.
    *
    * @param cookie The cookie to add to the session.
    */
-  public synchronized void addCookie(Cookie cookie)
+  public void addCookie(Cookie cookie)
   {
-    cookies.put(cookie.getName(), cookie);
+    addCookies(new Cookie[] { cookie });
+  }
 
+  /**
+   * Add cookies to the session in one change of state, if they change it at all.
+   *
+   * @param cookies The cookies to add, in order.
+   */
+  private void addCookies(Cookie[] cookies)
+  {
+    while (true)
+    {
+      SessionState s = (SessionState)state.get();
+      SessionState changed = s.withCookies(cookies);
+      if (changed == s || state.compareAndSet(s, changed)) return;
+    }
   }
 
   /**
@@ -122,10 +239,10 @@ public class Session
    * @param name The name of the cookie to look up.
    * @return value The value associated with the cookie, or null if the cookie was not found.
    */
-  public synchronized String getCookieValue(String cookie_name)
+  public String getCookieValue(String cookie_name)
   {
 
-    Cookie c = (Cookie)cookies.get(cookie_name);
+    Cookie c = getState().getCookies().get(cookie_name, System.currentTimeMillis());
 
     if (c != null)
       return c.getValue();
@@ -146,149 +263,835 @@ public class Session
    * @throws java.io.IOException Thrown if there was any erors reading across the network.
    */
   public Response request(String url) throws MalformedURLException, java.io.IOException
+  {
+      return request(url, (RequestOptions)null);
+  }
+
+
+  /**
+   * Request a HTTP URL with timeouts of its own, or so that it can be
+   * cancelled.
+   *
+   * @param request The HTTP request to make, such as "http://127.0.0.1/hello.jsp".
+   * @param options The timeouts for this request, and the handle to cancel it.
+   * @return response The response from the server.
+   *
+   * @throws MalformedURLException Thrown if the supplied url is badly formed.
+   * @throws RequestTimeoutException Thrown if the request timed out.
+   * @throws InterruptedIOException Thrown if the request was cancelled.
+   * @throws java.io.IOException Thrown if there was any erors reading across the network.
+   */
+  public Response request(String url, RequestOptions options) throws MalformedURLException, java.io.IOException
+  {
+      return request(url, options, res -> res.readBody());
+  }
+
+
+  /**
+   * Request a HTTP URL, but leave the body of the response to be read when,
+   * and if, it is needed.
+   * <p>
+   * The returned response has its status line and headers, and any cookies
+   * have been added to the session.  The body can then be read a piece at a
+   * time from <code>Response.getBodyStream()</code>, or all at once with
+   * <code>Response.getBody()</code>.  Either way, call <code>Response.close()</code>
+   * when you have finished with the response so the connection to the server is
+   * released.
+   * <p>
+   * If the session has a <code>HostLimiter</code>, the request counts against
+   * it until the head of the response has been read, not while the body is.
+   *
+   * @param request The HTTP request to make, such as "http://127.0.0.1/report.jsp".
+   * @return response The response from the server, with the body still to be read.
+   *
+   * @throws MalformedURLException Thrown if the supplied url is badly formed.
+   * @throws java.io.IOException Thrown if there was any erors reading across the network.
+   */
+  public Response requestStream(String url) throws MalformedURLException, java.io.IOException
+  {
+      return requestStream(url, null);
+  }
+
+
+  /**
+   * Request a HTTP URL with timeouts of its own, or so that it can be
+   * cancelled, leaving the body to be read when it is needed.  A deadline
+   * covers reading the body, too.
+   *
+   * @param request The HTTP request to make, such as "http://127.0.0.1/report.jsp".
+   * @param options The timeouts for this request, and the handle to cancel it.
+   * @return response The response from the server, with the body still to be read.
+   *
+   * @throws MalformedURLException Thrown if the supplied url is badly formed.
+   * @throws RequestTimeoutException Thrown if the request timed out.
+   * @throws InterruptedIOException Thrown if the request was cancelled.
+   * @throws java.io.IOException Thrown if there was any erors reading across the network.
+   * @see #requestStream(String)
+   */
+  public Response requestStream(String url, RequestOptions options) throws MalformedURLException, java.io.IOException
+  {
+      return request(url, options, (BodyReader)null);
+  }
+
+
+  /**
+   * Request a HTTP URL, extracting text from the body as it arrives and
+   * stopping as soon as every pair of start and end text has been found.
+   * <p>
+   * For a check that only needs a few values near the top of a large page
+   * this saves reading (and holding) the rest of the page.  The values are in
+   * <code>Response.getExtracted()</code>, and <code>Response.getBody()</code>
+   * holds the body up to the point we stopped.  If we stopped before the end
+   * of the body the connection is closed rather than re-used.
+   *
+   * @param request The HTTP request to make, such as "http://127.0.0.1/order.jsp".
+   * @param rules The start and end text to look for.
+   * @return response The response from the server, with the extracted text.
+   *
+   * @throws MalformedURLException Thrown if the supplied url is badly formed.
+   * @throws java.io.IOException Thrown if there was any erors reading across the network.
+   * @see Response#isTruncated
+   */
+  public Response request(String url, Extractor rules) throws MalformedURLException, java.io.IOException
+  {
+      return request(url, null, res -> res.readBody(rules));
+  }
+
+
+  /**
+   * Reads the body of a response, or as much of it as a request needs.
+   */
+  private interface BodyReader
+  {
+    void read(Response res) throws IOException;
+  }
+
+
+  /**
+   * Make a request, taking a turn at the host limiter if there is one and
+   * telling the listener how it went.
+   *
+   * @param url The URL to request.
+   * @param options The timeouts for this request, or null for the session's.
+   * @param reader What to read of the body before the request counts as
+   * done, or null to leave the body to the caller.
+   * @return response The response from the server.
+   * @throws IOException Thrown if the request failed.
+   */
+  private Response request(String url, RequestOptions options, BodyReader reader) throws IOException
+  {
+      long start = System.nanoTime();
+      HostLimiter l = limiter;
+      URL turn = null;
+
+      try
+      {
+        if (l != null)
+        {
+          turn = l.acquire(url);
+          start = System.nanoTime();
+        }
+
+        Response res = send(url, options);
+        if (reader != null) reader.read(res);
+        completed(url, res, start);
+        return res;
+      }
+      catch (IOException iox)
+      {
+        failed(url, iox, start);
+        throw iox;
+      }
+      finally
+      {
+        if (turn != null) l.release(turn);
+      }
+  }
+
+
+  /**
+   * Request a HTTP URL without waiting for the response.
+   * <p>
+   * The request is made on a single network thread shared by all sessions, so
+   * many requests can be in flight at once without a thread for each.  As with
+   * <code>request()</code>, the response may update the session state (e.g., if
+   * cookies are sent).  The response body is read in full before the future
+   * completes, so a response over 256MB fails with an IOException: use
+   * <code>requestStream()</code> for those.
+   * <p>
+   * There are no <code>RequestOptions</code> for an asynchronous request: it
+   * takes the session's connect timeout and deadline, and the future is the
+   * way to stop it.  Cancelling the future closes the connection.
+   *
+   * @param request The HTTP request to make, such as "http://127.0.0.1/hello.jsp".
+   * @return future Completed with the response from the server, or with the
+   * exception that stopped the request (such as a MalformedURLException).
+   */
+  public CompletableFuture<Response> requestAsync(final String url)
+  {
+      final long start = System.nanoTime();
+      CompletableFuture<Response> future = new CompletableFuture<Response>();
+
+      try
+      {
+        URL u = Resolver.getShared().parse(url);
+
+        ResponseStore s = store;
+        if (s != null && s.getMode() == ResponseStore.REPLAY)
+        {
+          future.complete(replay(s, u, start));
+          return whenDone(future, url, start);
+        }
+
+        int port = u.getPort();
+        if (port < 0) port = 80;
+
+        byte[] request_line = getRequestLine(u, port);
+        byte[] block = getHeaderBlock(u);
+        ResponseCache.Lookup lookup = lookup(u, request_line, block);
+        byte[] conditional = lookup == null ? null : lookup.getConditionalHeaders();
+
+        ByteBuffer request = ByteBuffer.allocate(request_line.length + block.length + (conditional == null ? 0 : conditional.length));
+        request.put(request_line);
+        if (conditional != null) request.put(conditional);
+        request.put(block).flip();
+
+        RequestTiming timing = new RequestTiming(start);
+        InetSocketAddress address = new InetSocketAddress(Resolver.getShared().resolve(u.getHost()), port);
+        timing.setResolved(System.nanoTime());
+
+        final AsyncRequest async = new AsyncRequest(this, u, address, request, lookup, future, timing);
+        final EventLoop loop = EventLoop.getInstance();
+        loop.submit(async);
+        expireAfter(async, future, RequestTimeoutException.CONNECT, connect_timeout);
+        expireAfter(async, future, RequestTimeoutException.DEADLINE, deadline);
+
+        // If the caller cancels (or otherwise completes) the future, don't
+        // leave the connection open until the server answers.
+        future.whenComplete((res, x) ->
+        {
+          if (x != null) loop.execute(async::close);
+        });
+      }
+      catch (IOException iox)
+      {
+        future.completeExceptionally(iox);
+      }
+      catch (RuntimeException rx)
+      {
+        // Such as an IllegalArgumentException for a port out of range.
+        future.completeExceptionally(rx);
+      }
+
+      return whenDone(future, url, start);
+  }
+
+
+  /**
+   * Stop an asynchronous request if it is still going after a time.
+   *
+   * @param async The request.
+   * @param future The request's future.
+   * @param kind The timeout: <code>RequestTimeoutException.CONNECT</code> or <code>DEADLINE</code>.
+   * @param millis The time allowed, or zero for no limit.
+   */
+  private void expireAfter(final AsyncRequest async, CompletableFuture<Response> future, final int kind, long millis)
+  {
+      if (millis <= 0) return;
+
+      final ScheduledFuture task = Watchdog.schedule(() ->
+      {
+        try
+        {
+          EventLoop.getInstance().execute(() -> async.expire(kind));
+        }
+        catch (IOException iox)
+        {
+          // The loop is already running, so this can't happen.
+        }
+      }, millis);
+
+      future.whenComplete((res, x) -> task.cancel(false));
+  }
+
+
+  /**
+   * Tell the listener, if there is one, when an asynchronous request is done.
+   *
+   * @param future The request's future.
+   * @param url The URL requested.
+   * @param start When the request started, from <code>System.nanoTime()</code>.
+   * @return future The future to give the caller.
+   */
+  private CompletableFuture<Response> whenDone(CompletableFuture<Response> future, final String url, final long start)
+  {
+      if (listener == null) return future;
+
+      // Tell the listener when the request is done, before anyone else hears.
+      final CompletableFuture<Response> told = new CompletableFuture<Response>();
+      future.whenComplete((res, x) ->
+      {
+        if (x == null)
+        {
+          completed(url, res, start);
+          told.complete(res);
+        }
+        else
+        {
+          failed(url, x instanceof Exception ? (Exception)x : new Exception(x), start);
+          told.completeExceptionally(x);
+        }
+      });
+
+      // Cancelling the future the caller has must stop the request too.
+      told.whenComplete((res, x) ->
+      {
+        if (told.isCancelled()) future.cancel(false);
+      });
+      return told;
+  }
+
+
+  /**
+   * Finish a response whose head has been parsed, reading the body from a stream.
+   *
+   * @param head The parsed head.
+   * @param headers The headers from the head.
+   * @param in The stream holding the body.
+   * @param u The URL requested.
+   * @param lookup What the cache had for the request, or null if there's no cache.
+   * @return response The response, with its body read.
+   * @throws IOException Thrown if the response could not be read.
+   */
+  Response readResponse(HeadParser head, HeaderTable headers, InputStream in, URL u, ResponseCache.Lookup lookup) throws IOException
+  {
+      takeCookies(headers, u);
+      InputStream body_in = decode(bodyStream(in, head.getStatusCode(), headers), headers);
+      body_in = record(u, head.getStatusCode(), headers, body_in);
+
+      Response res = respond(lookup, head.getStatusCode(), headers, body_in);
+      res.readBody();
+      return res;
+  }
+
+
+  /**
+   * Send a request and read the response up to the start of the body.
+   *
+   * @param url The HTTP request to make.
+   * @param options The timeouts for this request, or null for the session's.
+   * @return response The response from the server, with the body still to be read.
+   * @throws MalformedURLException Thrown if the supplied url is badly formed.
+   * @throws java.io.IOException Thrown if there was any erors reading across the network.
+   */
+  private Response send(String url, RequestOptions options) throws MalformedURLException, java.io.IOException
   {
 
       // Look at http://193.2.190.78/~anton/solaris.inorg.chem.msu.ru/cs-books/java/Hacking-Java/ch6.htm#SupportingtheCookieProtocol
 
-      URL u = new URL(url);
+      URL u = Resolver.getShared().parse(url);
+
+      long start = System.nanoTime();
+
+      ResponseStore s = store;
+      if (s != null && s.getMode() == ResponseStore.REPLAY) return replay(s, u, start);
+
       int port = u.getPort();
       if (port < 0) port = 80;
 
-      Socket socket = new Socket(u.getHost(), port);
-      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-      out.writeBytes("GET ");
-      out.writeBytes(u.getFile());
-      out.writeBytes(" ");
-      out.writeBytes(http_version);
-      out.writeBytes(LINE_END);
-
-      // Add headers
-      Enumeration h = headers.keys();
-      while (h.hasMoreElements())
+      // Only HTTP/1.1 connections are kept alive; HTTP/1.0 gets a socket per request.
+      boolean keep_alive = "HTTP/1.1".equals(http_version);
+
+      // Without timeouts or a way to cancel there's nothing to watch.
+      if (options == null && connect_timeout == 0 && read_timeout == 0 && deadline == 0)
+        return send(u, port, keep_alive, start, null);
+
+      RequestOptions control = options != null ? options : new RequestOptions();
+      control.start(connect_timeout, read_timeout, deadline);
+
+      try
       {
-        String header = (String)h.nextElement();
-        String value = (String)headers.get(header);
-        out.writeBytes(header);
-        out.writeBytes(": ");
-        out.writeBytes(value);
-        out.writeBytes(LINE_END);
+        return send(u, port, keep_alive, start, control);
       }
-
-      // Add the cookies.
-      Enumeration e = cookies.elements();
-      StringBuffer cookie_string = new StringBuffer();
-      while (e.hasMoreElements())
+      catch (IOException iox)
       {
-        Cookie c = (Cookie)e.nextElement();
-        if (cookie_string.length() > 0) cookie_string.append("; ");
-        cookie_string.append(c.toCookieString());
+        control.detach();
+        throw control.translate(iox);
       }
+  }
 
-      if (cookie_string.length() > 0)
+
+  /**
+   * Send a request, on a re-used connection if we can, and read the
+   * response up to the start of the body.
+   *
+   * @param u The URL to request.
+   * @param port The port to connect to.
+   * @param keep_alive True to use a connection from the pool.
+   * @param start When the request started, from <code>System.nanoTime()</code>.
+   * @param control The timeouts in force, or null if there are none.
+   * @return response The response from the server, with the body still to be read.
+   * @throws java.io.IOException Thrown if there was any erors reading across the network.
+   */
+  private Response send(URL u, int port, boolean keep_alive, long start, RequestOptions control) throws IOException
+  {
+      int connect = control == null ? 0 : control.getConnectTimeoutNow();
+
+      boolean retry = false;
+      while (true)
       {
-        out.writeBytes("Cookie: "+cookie_string.toString());
-        out.writeBytes(LINE_END);
+        Connection connection = keep_alive && !retry ? pool.get(u.getHost(), port, connect) : new Connection(u.getHost(), port, connect);
+
+        RequestTiming timing = new RequestTiming(start);
+        if (connection.isReused())
+        {
+          timing.setResolved(start);
+          timing.setConnected(start);
+        }
+        else
+        {
+          timing.setResolved(connection.getResolvedTime());
+          timing.setConnected(connection.getConnectedTime());
+        }
+
+        try
+        {
+          if (control != null)
+            control.attach(connection);
+          else
+            connection.setReadTimeout(0);
+
+          Response res = request(connection, u, port, keep_alive, timing, control);
+          if (res != null) return res;
+        }
+        catch (IOException iox)
+        {
+          connection.close();
+
+          // Only a failure of the connection itself is worth another try.
+          if (!connection.isReused() || iox instanceof InterruptedIOException) throw iox;
+          if (control != null && (control.isCancelled() || control.translate(iox) != iox)) throw iox;
+        }
+
+        // The server closed a re-used connection before answering (it
+        // may have timed out just as we sent the request), so try again
+        // on a new connection.
+        connection.close();
+        retry = true;
+        if (control != null) connect = control.getConnectTimeoutNow();
       }
+  }
 
-      // Send the Host: header.
-      out.writeBytes("Host: ");
-      out.writeBytes(u.getHost());
-      out.writeBytes(":");
-      out.writeBytes(Integer.toString(u.getPort()));
-      out.writeBytes(LINE_END);
 
-      // End of request
-      out.writeBytes(LINE_END);
-      out.flush();
+  /**
+   * Answer a request from a response store, as if it had come from the server.
+   *
+   * @param s The store, in <code>REPLAY</code> mode.
+   * @param u The URL requested.
+   * @param start When the request started, from <code>System.nanoTime()</code>.
+   * @return response The recorded response, with the body still to be read.
+   * @throws IOException Thrown if no response was recorded for the URL.
+   */
+  private Response replay(ResponseStore s, URL u, long start) throws IOException
+  {
+      Response res = s.replay(u.toExternalForm());
+      if (res == null) throw new IOException("No recorded response for "+u);
 
+      takeCookies(res.getHeaderTable(), u);
 
-      // Start of the response.
+      // Nothing went across the network: every stage took no time at all.
+      long now = System.nanoTime();
+      RequestTiming timing = new RequestTiming(start);
+      timing.setResolved(now);
+      timing.setConnected(now);
+      timing.setWritten(now);
+      timing.setFirstByte(now);
+      timing.setHeaders(now);
+      res.setTiming(timing);
+      return res;
+  }
 
 
-      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+  /**
+   * Record a response, if there is a store in <code>RECORD</code> mode.  The
+   * body is read in full to record it, so the connection is finished with.
+   *
+   * @param u The URL requested.
+   * @param status The status code.
+   * @param headers The response headers.
+   * @param body_in The (decoded) body.
+   * @return body_in The body, still to be read.
+   * @throws IOException Thrown if the body can't be read, or recorded.
+   */
+  private InputStream record(URL u, int status, HeaderTable headers, InputStream body_in) throws IOException
+  {
+      ResponseStore s = store;
+      if (s == null || s.getMode() != ResponseStore.RECORD) return body_in;
 
-      // First line is status:
-      String status_line = in.readLine();
+      byte[] bytes = Response.readBytes(body_in);
+      s.record(u.toExternalForm(), status, headers, bytes);
+      return new ByteArrayInputStream(bytes);
+  }
 
-      // Read the headers...
-      Hashtable headers = readHeaders(in);
 
-      // Eat the body
-      String body=readBody(in);
+  /**
+   * See what the cache has for a request, if there is a cache.  While
+   * recording to a response store the cache isn't used, so the store gets
+   * every response in full.
+   *
+   * @param u The URL to request.
+   * @param request_line The request line and Host: header.
+   * @param block The rest of the request headers.
+   * @return lookup What the cache has, or null if there's no cache.
+   * @throws IOException Thrown if the request headers can't be read.
+   */
+  private ResponseCache.Lookup lookup(URL u, byte[] request_line, byte[] block) throws IOException
+  {
+      ResponseCache c = cache;
+      if (c == null) return null;
 
-      Response res = new Response(body, headers, status_line);
+      ResponseStore s = store;
+      if (s != null && s.getMode() == ResponseStore.RECORD) return null;
 
-      in.close();
-      out.close();
-      socket.close();
+      return c.lookup(u.toExternalForm(), request_line, block);
+  }
 
-      return res;
+
+  /**
+   * Make the response, from the cache if the server says what it has is
+   * still current.
+   *
+   * @param lookup What the cache had for the request, or null if there's no cache.
+   * @param status The status code.
+   * @param headers The response headers.
+   * @param body_in The (decoded) body.
+   * @return response The response, with the body still to be read.
+   * @throws IOException Thrown if the body had to be read, and the read failed.
+   */
+  private Response respond(ResponseCache.Lookup lookup, int status, HeaderTable headers, InputStream body_in) throws IOException
+  {
+      Charset charset = getCharset(headers.get("Content-Type"));
+      if (lookup == null) return new Response(body_in, charset, headers, status);
+      return lookup.respond(status, headers, charset, body_in);
   }
 
 
   /**
-   * Read the content from a URL stream and convert to a string.
+   * Build the request line and Host: header for a request.
    *
-   * @param in The Input stream to read from.
-   * @return body The string version of the content.
-   * @throws IOException Thrown if there was any problem reading the response.
+   * @param u The URL to request.
+   * @param port The port the request is sent to.
+   * @return line The start of the request as bytes.
+   * @throws IOException Thrown if the URL can't be encoded.
    */
-  private String readBody (BufferedReader in) throws IOException
+  private byte[] getRequestLine(URL u, int port) throws IOException
   {
+    StringBuffer request_line = new StringBuffer(128);
+    request_line.append("GET ").append(u.getFile()).append(' ').append(http_version).append(LINE_END);
+    request_line.append("Host: ").append(u.getHost()).append(':').append(port).append(LINE_END);
+    return request_line.toString().getBytes("ISO-8859-1");
+  }
 
-    StringBuffer toRet = new StringBuffer();
 
-    String line;
-    while (true)
+  /**
+   * Tell the listener, if there is one, that a request has completed.
+   *
+   * @param url The URL requested.
+   * @param res The response.
+   * @param start When the request started, from <code>System.nanoTime()</code>.
+   */
+  private void completed(String url, Response res, long start)
+  {
+    RequestListener l = listener;
+    if (l != null) l.requestCompleted(url, res, System.nanoTime() - start);
+  }
+
+
+  /**
+   * Tell the listener, if there is one, that a request has failed.
+   *
+   * @param url The URL requested.
+   * @param x The reason for the failure.
+   * @param start When the request started, from <code>System.nanoTime()</code>.
+   */
+  private void failed(String url, Exception x, long start)
+  {
+    RequestListener l = listener;
+    if (l != null) l.requestFailed(url, x, System.nanoTime() - start);
+  }
+
+
+  /**
+   * Get the encoded headers and cookies to send with a request, building
+   * them if the session has changed since the last request to the same host
+   * and path.
+   *
+   * @param u The URL being requested.
+   * @return block The headers, Cookie: line and final blank line as bytes.
+   * @throws IOException Thrown if the headers can't be encoded.
+   */
+  byte[] getHeaderBlock(URL u) throws IOException
+  {
+    long now = System.currentTimeMillis();
+    SessionState s = getState();
+
+    // Drop expired cookies, which also drops the blocks that included them.
+    while (now >= s.getCookies().nextExpiry())
+    {
+      SessionState evicted = s.withoutExpired(now);
+      if (state.compareAndSet(s, evicted)) s = evicted;
+      else s = getState();
+    }
+
+    String host = u.getHost();
+    String path = getPath(u);
+    String key = host + " " + path;
+
+    byte[] header_block = s.getHeaderBlock(key);
+    if (header_block != null) return header_block;
+
+    StringBuffer block = new StringBuffer();
+
+    // Add headers
+    Hashtable headers = s.getHeaders();
+    Enumeration h = headers.keys();
+    while (h.hasMoreElements())
     {
-      line = in.readLine();
-      if (line == null) break;
-      toRet.append(line);
+      String header = (String)h.nextElement();
+      block.append(header).append(": ").append((String)headers.get(header)).append(LINE_END);
     }
 
-    return toRet.toString();
+    // Add the cookies for this host and path.
+    String cookie_string = s.getCookies().getCookieLine(host, path, now);
+    if (cookie_string != null)
+      block.append("Cookie: ").append(cookie_string).append(LINE_END);
+
+    // End of request
+    block.append(LINE_END);
+
+    header_block = block.toString().getBytes("ISO-8859-1");
+    s.putHeaderBlock(key, header_block);
+    return header_block;
+  }
+
+
+  /**
+   * @return state The current headers and cookies.
+   */
+  private SessionState getState()
+  {
+    return (SessionState)state.get();
   }
 
 
   /**
-   * Read the HTTP headers from an input stream.
+   * @param u A URL.
+   * @return path The path of the URL, without any query, e.g., "/shop/basket.jsp".
+   */
+  private static String getPath(URL u)
+  {
+    String path = u.getPath();
+    return path.length() == 0 ? "/" : path;
+  }
+
+
+  /**
+   * Make a request over a given connection, and read the response up to the body.
    *
-   * @param in The input stream to read from.
-   * @param headers Hash of all the headers read from the response.
-   * @throws IOException Thrown if there was an error while reading the response.
+   * @param connection The connection to the server.
+   * @param u The URL to request.
+   * @param port The port the connection is to.
+   * @param keep_alive True if the connection can be returned to the pool afterwards.
+   * @param timing Where to record how long each stage of the request takes.
+   * @param control The timeouts in force, or null if there are none.
+   * @return response The response from the server with the body still to be read, or
+   * null if the server closed a re-used connection without sending anything.
+   * @throws java.io.IOException Thrown if there was any erors reading across the network.
    */
-  private Hashtable readHeaders(BufferedReader in) throws IOException
+  private Response request(Connection connection, URL u, int port, boolean keep_alive, RequestTiming timing, RequestOptions control) throws IOException
   {
+      connection.startResponse();
 
-      String line;
-      Hashtable headers = new Hashtable();
+      // The request line and Host: header change with every request, but
+      // the rest of the headers (and the end of the request) only change
+      // when the session does, or a cookie expires.
+      byte[] request_line = getRequestLine(u, port);
+      byte[] block = getHeaderBlock(u);
+      ResponseCache.Lookup lookup = lookup(u, request_line, block);
+      byte[] conditional = lookup == null ? null : lookup.getConditionalHeaders();
 
-      while (true)
-      {
-        line = in.readLine();
-        if (line == null || line.length() == 0) break;
+      OutputStream out = connection.getOutputStream();
+      out.write(request_line);
+      if (conditional != null) out.write(conditional);
+      out.write(block);
+      out.flush();
+
+      timing.setWritten(System.nanoTime());
+      timing.setBytesSent(request_line.length + block.length + (conditional == null ? 0 : conditional.length));
 
-        if (line.toLowerCase().startsWith("set-cookie: "))
-        {
-            addCookie(new Cookie(line.substring(12)));
-            continue;
-        }
 
-        // Regular header
-        int colon = line.indexOf(":");
+      // Start of the response.
 
-        if (colon == -1) continue;
+      // The status line and headers, parsed as bytes.
+      HeadParser head = connection.getHeadParser();
+      if (!head.parse(connection.getInputStream()) && connection.isReused()) return null;
+      if (connection.getFirstByteTime() != -1) timing.setFirstByte(connection.getFirstByteTime());
 
-        String name = line.substring(0, colon);
-        String value = line.substring(colon+1);
+      HeaderTable headers = head.getHeaders();
+      takeCookies(headers, u);
 
-        headers.put(name, value.trim()) ;
+      timing.setHeaders(System.nanoTime());
+      timing.setBytesReceived(connection.getBytesReceived());
+
+      // The body ends where the headers say it does, and we're done with
+      // the connection once it has been read.
+      InputStream framed = bodyStream(connection.getInputStream(), head.getStatusCode(), headers);
+      boolean persistent = keep_alive && framed != connection.getInputStream() && isPersistent(head, headers);
+      InputStream body_in = decode(new BodyInputStream(framed, connection, persistent ? pool : null, timing, control), headers);
+      body_in = record(u, head.getStatusCode(), headers, body_in);
+
+      Response res = respond(lookup, head.getStatusCode(), headers, body_in);
+      res.setTiming(timing);
+      return res;
+  }
+
+
+
+  /**
+   * Work out where the body of a response ends.  The body is either
+   * <code>Content-Length</code> bytes long, sent in chunks, or runs until the
+   * server closes the connection.
+   *
+   * @param in The stream positioned at the start of the body.
+   * @param status The status code of the response, or -1 if it isn't known.
+   * @param headers The response headers.
+   * @return body_in A stream that ends when the body does.  This is <code>in</code>
+   * itself if the body runs until the connection is closed.
+   */
+  private InputStream bodyStream(InputStream in, int status, HeaderTable headers)
+  {
+    if (status == -1) return in;
+
+    // Responses to a GET with these status codes never have a body.
+    if (status == 204 || status == 304)
+      return new FixedLengthInputStream(in, 0);
+
+    if (headers.contains("Transfer-Encoding", "chunked"))
+      return new ChunkedInputStream(in);
+
+    // If we can't trust the length, we read to the end of the connection.
+    long length = headers.getLong("Content-Length");
+    if (length != -1) return new FixedLengthInputStream(in, length);
+
+    return in;
+  }
+
+
+  /**
+   * Decompress a body sent with a gzip or deflate <code>Content-Encoding</code>.
+   *
+   * @param in The body as sent.
+   * @param headers The response headers.
+   * @return body_in A stream of the decoded body, or <code>in</code> itself if
+   * the body isn't encoded (or is encoded in a way we don't know).
+   */
+  private InputStream decode(InputStream in, HeaderTable headers)
+  {
+    String encoding = headers.get("Content-Encoding");
+    if (encoding == null) return in;
+
+    encoding = encoding.trim();
+    if (encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip"))
+      return new InflatingInputStream(in, true);
+    if (encoding.equalsIgnoreCase("deflate"))
+      return new InflatingInputStream(in, false);
+
+    return in;
+  }
+
+
+  /**
+   * Will the server keep the connection open after this response?
+   *
+   * @param head The parsed head of the response.
+   * @param headers The response headers.
+   * @return persistent True if another request can be sent on the same connection.
+   */
+  private boolean isPersistent(HeadParser head, HeaderTable headers)
+  {
+    if (head.getStatusCode() == -1) return false;
+    if (headers.contains("Connection", "close")) return false;
+
+    // HTTP/1.1 servers keep connections alive unless they say otherwise,
+    // HTTP/1.0 servers only if they say they will.
+    if (head.isHTTP11()) return true;
+    return headers.contains("Connection", "keep-alive");
+  }
 
-      }
 
-    return headers;
+  /**
+   * Find the character set of a response body from its
+   * <code>Content-Type</code> header, e.g., "text/html; charset=UTF-8".
+   *
+   * @param content_type The Content-Type header value, which may be null.
+   * @return charset The character set named in the header, or ISO-8859-1 (the
+   * HTTP default) if there isn't one we know about.
+   */
+  static Charset getCharset(String content_type)
+  {
+    if (content_type == null) return DEFAULT_CHARSET;
 
+    int i = content_type.toLowerCase().indexOf("charset=");
+    if (i == -1) return DEFAULT_CHARSET;
+
+    String name = content_type.substring(i+8);
+    int e = name.indexOf(';');
+    if (e != -1) name = name.substring(0, e);
+    name = name.trim();
+    if (name.length() > 1 && name.charAt(0) == '"' && name.charAt(name.length()-1) == '"')
+      name = name.substring(1, name.length()-1);
+
+    try
+    {
+      return Charset.forName(name);
+    }
+    catch (IllegalArgumentException iax)
+    {
+      // Illegal or unsupported name: best we can do is the default.
+      return DEFAULT_CHARSET;
     }
+  }
+
+
+  /**
+   * Add any cookies set by a response to the session.
+   *
+   * @param headers The response headers.
+   * @param u The URL requested, which is where any cookies come from.
+   */
+  private void takeCookies(HeaderTable headers, URL u)
+  {
+    Vector cookies = null;
+    for (int i=0; i<headers.size(); i++)
+    {
+      if (!headers.nameIs(i, "Set-Cookie")) continue;
+
+      Cookie c = new Cookie(headers.getValue(i));
+
+      // A server can only set cookies for its own domain.
+      if (c.getDomain() != null && !c.domainMatches(u.getHost().toLowerCase())) continue;
+
+      c.setDefaults(u.getHost(), getPath(u));
+      if (cookies == null) cookies = new Vector();
+      cookies.addElement(c);
+    }
+
+    if (cookies == null) return;
+
+    Cookie[] add = new Cookie[cookies.size()];
+    cookies.copyInto(add);
+    addCookies(add);
+  }
 
 
     /**
@@ -311,4 +1114,278 @@ public class Session
      {
       return this.http_version;
      }
+
+
+    /**
+     * Set the maximum number of idle connections kept open to each host.
+     * <p>
+     * Connections are only kept when sending HTTP/1.1 requests (see
+     * <code>setHTTPVersion()</code>) and the server agrees to keep them
+     * alive.  The default is 4.
+     *
+     * @param max_idle The number of connections per host, or zero to never re-use connections.
+     */
+    public void setMaxIdleConnections(int max_idle)
+    {
+      pool.setMaxIdle(max_idle);
+    }
+
+
+    /**
+     * The maximum number of idle connections kept open to each host.
+     *
+     * @return max_idle The number of connections kept per host.
+     */
+    public int getMaxIdleConnections()
+    {
+      return pool.getMaxIdle();
+    }
+
+
+    /**
+     * Set how long an idle connection is kept open before it is closed
+     * instead of being re-used.  The default is 15 seconds.
+     *
+     * @param millis The idle timeout in milliseconds.
+     */
+    public void setIdleTimeout(long millis)
+    {
+      pool.setIdleTimeout(millis);
+    }
+
+
+    /**
+     * How long an idle connection is kept open before it is closed.
+     *
+     * @return millis The idle timeout in milliseconds.
+     */
+    public long getIdleTimeout()
+    {
+      return pool.getIdleTimeout();
+    }
+
+
+    /**
+     * Open connections to a server before a test starts, so the first
+     * requests measured don't include looking up the host and connecting.
+     * <p>
+     * The connections are kept by this session as idle connections, so this
+     * only helps when sending HTTP/1.1 requests, and at most
+     * <code>getMaxIdleConnections()</code> are kept.  They are closed as usual
+     * if they sit idle for longer than the idle timeout.
+     *
+     * @param host The host to connect to.
+     * @param port The port to connect to.
+     * @param n The number of connections to open.
+     * @throws IOException Thrown if a connection could not be made.
+     */
+    public void warmUp(String host, int port, int n) throws IOException
+    {
+      n = Math.min(n, pool.getMaxIdle());
+
+      // Pooled as they're opened, so those made before a failure aren't lost.
+      for (int i=0; i<n; i++) pool.release(new Connection(host, port));
+    }
+
+
+    /**
+     * Set how long the address of a host is kept before it is looked up
+     * again.  Addresses (and parsed URLs) are shared by every session.  The
+     * default is 30 seconds.
+     *
+     * @param millis The time in milliseconds, or zero to look up the host for every new connection.
+     */
+    public static void setAddressCacheTTL(long millis)
+    {
+      Resolver.getShared().setTTL(millis);
+    }
+
+
+    /**
+     * How long the address of a host is kept before it is looked up again.
+     *
+     * @return millis The time in milliseconds.
+     */
+    public static long getAddressCacheTTL()
+    {
+      return Resolver.getShared().getTTL();
+    }
+
+
+    /**
+     * Set a listener to be told about every request this session makes.
+     *
+     * @param listener The listener, or null to stop listening.
+     */
+    public void setRequestListener(RequestListener listener)
+    {
+      this.listener = listener;
+    }
+
+
+    /**
+     * The listener told about every request this session makes.
+     *
+     * @return listener The listener, or null if there isn't one.
+     */
+    public RequestListener getRequestListener()
+    {
+      return listener;
+    }
+
+
+    /**
+     * Record every response to a store, or answer every request from one,
+     * depending on the store's mode.  Sessions forked from this one share
+     * the store.
+     *
+     * @param store The store, or null to use the network as usual.
+     * @see ResponseStore
+     */
+    public void setResponseStore(ResponseStore store)
+    {
+      this.store = store;
+    }
+
+
+    /**
+     * @return store The store responses are recorded to or replayed from, or
+     * null if there isn't one.
+     */
+    public ResponseStore getResponseStore()
+    {
+      return store;
+    }
+
+
+    /**
+     * Keep responses in a cache, and ask the server whether they are still
+     * current (rather than fetching them again) when they are requested
+     * again.  Sessions forked from this one share the cache, and a cache can
+     * be given to many sessions.
+     * <p>
+     * A response is only kept once its body has been read to the end, so
+     * <code>requestStream()</code> still streams the body, and a request
+     * with an <code>Extractor</code> that stops early isn't kept.
+     *
+     * @param cache The cache, or null to always fetch responses in full (the default).
+     * @see ResponseCache
+     */
+    public void setResponseCache(ResponseCache cache)
+    {
+      this.cache = cache;
+    }
+
+
+    /**
+     * @return cache The cache responses are kept in, or null if there isn't one.
+     */
+    public ResponseCache getResponseCache()
+    {
+      return cache;
+    }
+
+
+    /**
+     * Cap the number of requests made to each host at once, shared with every
+     * other session given the same limiter.  A request waits its turn before
+     * it is sent, and the wait isn't counted in the time given to the request
+     * listener.  Requests made with <code>requestAsync()</code> aren't capped.
+     * Sessions forked from this one share the limiter.
+     *
+     * @param limiter The limiter, or null for no cap (the default).
+     */
+    public void setHostLimiter(HostLimiter limiter)
+    {
+      this.limiter = limiter;
+    }
+
+
+    /**
+     * @return limiter The limiter capping requests to each host, or null if there isn't one.
+     */
+    public HostLimiter getHostLimiter()
+    {
+      return limiter;
+    }
+
+
+    /**
+     * Set how long to wait for a connection to the server.  Applies to every
+     * request, unless its <code>RequestOptions</code> say otherwise.
+     *
+     * @param millis The timeout in milliseconds, or zero to wait as long as it takes (the default).
+     */
+    public void setConnectTimeout(long millis)
+    {
+      connect_timeout = millis;
+    }
+
+
+    /**
+     * @return millis The connect timeout in milliseconds, or zero for none.
+     */
+    public long getConnectTimeout()
+    {
+      return connect_timeout;
+    }
+
+
+    /**
+     * Set how long to wait for the server to send anything, each time we
+     * wait for it.  A server that stops part way through a response then
+     * can't hang the request.  Applies to every request made with
+     * <code>request()</code> or <code>requestStream()</code>, unless its
+     * <code>RequestOptions</code> say otherwise.
+     *
+     * @param millis The timeout in milliseconds, or zero to wait as long as it takes (the default).
+     */
+    public void setReadTimeout(long millis)
+    {
+      read_timeout = millis;
+    }
+
+
+    /**
+     * @return millis The read timeout in milliseconds, or zero for none.
+     */
+    public long getReadTimeout()
+    {
+      return read_timeout;
+    }
+
+
+    /**
+     * Set how long a whole request may take, from sending it to the end of
+     * the body.  A server sending a response a byte at a time gets past a
+     * read timeout, but not a deadline.  Applies to every request, including
+     * <code>requestAsync()</code>, unless its <code>RequestOptions</code> say
+     * otherwise.  A request that runs out of time throws a
+     * <code>RequestTimeoutException</code>.
+     *
+     * @param millis The deadline in milliseconds, or zero for none (the default).
+     */
+    public void setDeadline(long millis)
+    {
+      deadline = millis;
+    }
+
+
+    /**
+     * @return millis The deadline for each request in milliseconds, or zero for none.
+     */
+    public long getDeadline()
+    {
+      return deadline;
+    }
+
+
+    /**
+     * Close any idle connections this session is keeping open.  The session
+     * can still be used afterwards, and will open new connections as needed.
+     */
+    public void close()
+    {
+      pool.close();
+    }
 }
\ No newline at end of file
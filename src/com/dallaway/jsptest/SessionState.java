@@ -0,0 +1,137 @@
+package com.dallaway.jsptest;
+
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The headers and cookies of a session at one moment.
+ *
+ * <p>
+ * A state never changes once made: setting a header or adding a cookie makes
+ * a new state, which the session swaps in with a compare-and-set.  So threads
+ * sharing a session can read the state (to build requests) without taking a
+ * lock, and only retry when two of them change it at the same moment.
+ *
+ * <p>
+ * Each state also caches the encoded header blocks built from it, which go
+ * when the state is replaced.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+class SessionState
+{
+
+  /** The most header blocks we keep, before starting again. */
+  private static final int MAX_HEADER_BLOCKS = 256;
+
+  private final Hashtable headers;  // never changed once the state is made
+  private final CookieJar cookies;  // never changed once the state is made
+
+  /** Encoded header blocks, keyed by "host path". */
+  private final ConcurrentHashMap blocks = new ConcurrentHashMap();
+
+  /**
+   * @param headers The headers to send with each request.
+   * @param cookies The cookies.
+   */
+  SessionState(Hashtable headers, CookieJar cookies)
+  {
+    this.headers = headers;
+    this.cookies = cookies;
+  }
+
+  /**
+   * @return headers The headers to send with each request.  Don't change them.
+   */
+  Hashtable getHeaders()
+  {
+    return headers;
+  }
+
+  /**
+   * @return cookies The cookies.  Don't change them.
+   */
+  CookieJar getCookies()
+  {
+    return cookies;
+  }
+
+  /**
+   * @param name The header name.
+   * @param value The header value.
+   * @return state A new state, the same as this one but with the header set.
+   */
+  SessionState withHeader(String name, String value)
+  {
+    Hashtable h = (Hashtable)headers.clone();
+    h.put(name, value);
+    return new SessionState(h, cookies);
+  }
+
+  /**
+   * @param name The header name.
+   * @return state A new state, the same as this one but without the header.
+   */
+  SessionState withoutHeader(String name)
+  {
+    Hashtable h = (Hashtable)headers.clone();
+    h.remove(name);
+    return new SessionState(h, cookies);
+  }
+
+  /**
+   * @param add The cookies to add, in order.
+   * @return state A new state, the same as this one but with the cookies
+   * added, or this state if it already has every one of them (as when a
+   * server sends the same session cookie with every response).
+   */
+  SessionState withCookies(Cookie[] add)
+  {
+    CookieJar jar = null;
+    for (int i=0; i<add.length; i++)
+    {
+      if (jar == null)
+      {
+        if (cookies.holds(add[i])) continue;
+        jar = cookies.copy();
+      }
+      jar.add(add[i]);
+    }
+
+    return jar == null ? this : new SessionState(headers, jar);
+  }
+
+  /**
+   * @param now The current time (ms).
+   * @return state A new state, the same as this one but without expired cookies.
+   */
+  SessionState withoutExpired(long now)
+  {
+    CookieJar jar = cookies.copy();
+    jar.evictExpired(now);
+    return new SessionState(headers, jar);
+  }
+
+  /**
+   * @param key The "host path" the block is for.
+   * @return block The encoded header block, or null if it hasn't been built.
+   */
+  byte[] getHeaderBlock(String key)
+  {
+    return (byte[])blocks.get(key);
+  }
+
+  /**
+   * Keep an encoded header block for re-use.
+   *
+   * @param key The "host path" the block is for.
+   * @param block The encoded headers.
+   */
+  void putHeaderBlock(String key, byte[] block)
+  {
+    if (blocks.size() >= MAX_HEADER_BLOCKS) blocks.clear();
+    blocks.put(key, block);
+  }
+
+}
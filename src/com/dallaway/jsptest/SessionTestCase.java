@@ -0,0 +1,78 @@
+package com.dallaway.jsptest;
+
+import junit.framework.TestCase;
+
+/**
+ * A test case whose tests each get a session of their own.
+ *
+ * <p>
+ * Tests call <code>getSession()</code> rather than making a session, and the
+ * session is closed when the test ends.  Run by <code>ParallelRunner</code>,
+ * each test's session is a fork of the runner's session, sharing its host
+ * limiter; run by any other JUnit runner it is a new session.  Either way no
+ * two tests share cookies or connections, so they can run at the same time.
+ *
+ * <pre>
+ * public class CheckoutTest extends SessionTestCase
+ * {
+ *   public CheckoutTest(String name) { super(name); }
+ *
+ *   public void testBasket() throws Exception
+ *   {
+ *     Response r = getSession().request(SITE+"/basket.jsp");
+ *     assertEquals(200, r.getStatusCode());
+ *   }
+ * }
+ * </pre>
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+public abstract class SessionTestCase extends TestCase
+{
+
+  private Session session;
+
+  public SessionTestCase(String name)
+  {
+    super(name);
+  }
+
+  /**
+   * @return session The session for this test, made the first time it is asked for.
+   */
+  protected Session getSession()
+  {
+    if (session == null) session = new Session();
+    return session;
+  }
+
+  /**
+   * Give the next test a session, rather than letting it make one.
+   *
+   * @param session The session to use.
+   */
+  void setSession(Session session)
+  {
+    this.session = session;
+  }
+
+  /**
+   * Run the test, then close its session.
+   *
+   * @throws Throwable Anything thrown by the test.
+   */
+  public void runBare() throws Throwable
+  {
+    try
+    {
+      super.runBare();
+    }
+    finally
+    {
+      if (session != null) session.close();
+      session = null;
+    }
+  }
+
+}
@@ -0,0 +1,721 @@
+package com.dallaway.jsptest;
+
+import java.net.*;
+import java.io.*;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A small HTTP server, run inside a test, that answers each path with a
+ * canned page.
+ *
+ * <p>
+ * This stands in for a real servlet container, so tests can run without one
+ * and the client can be benchmarked without also measuring the server.  Each
+ * path is given a <code>Page</code> saying what to send back: the status,
+ * headers, cookies and body, whether to send the body in chunks, compressed
+ * or a bit at a time, and so on.  <code>addTestPages()</code> sets up pages
+ * that behave like the JSPs in <code>wwwtest/test</code>.
+ *
+ * <p>
+ * A page body or Set-Cookie value can include request parameters and
+ * cookies: <code>${param.name}</code> is replaced with the "name" parameter
+ * and <code>${cookie.name}</code> with the value of the "name" cookie.  A
+ * default for when there's no such parameter or cookie follows a bar, as in
+ * <code>${cookie.test|no cookies found}</code>.
+ *
+ * <p>
+ * A page given an ETag or Last-Modified header answers a request carrying
+ * the same value in If-None-Match or If-Modified-Since with a 304 Not
+ * Modified.
+ *
+ * <p>
+ * Each connection has a thread of its own, HTTP/1.1 connections are kept
+ * alive, and pages without parameters are only built once.
+ *
+ * <pre>
+ *  StandInServer server = new StandInServer(0);
+ *  server.addTestPages();
+ *  server.start();
+ *  session.request("http://127.0.0.1:"+server.getPort()+"/test/simple.jsp");
+ *  ...
+ *  server.stop();
+ * </pre>
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+public class StandInServer
+{
+
+  private static final int BUFSIZ = 8192;
+
+  private static final byte[] CRLF = { '\r', '\n' };
+
+  private int port;
+
+  /** Path (without the query) to Page. */
+  private Hashtable pages = new Hashtable();
+
+  private Page not_found = new Page(404, "Not Found", "Not found");
+
+  private volatile ServerSocket server;
+
+  /** Open connections, closed when the server stops. */
+  private Vector sockets = new Vector();
+
+  private AtomicLong requests = new AtomicLong();
+  private AtomicLong connections = new AtomicLong();
+
+  /**
+   * @param port The port to listen on, or 0 for any free port.
+   */
+  public StandInServer(int port)
+  {
+    this.port = port;
+  }
+
+  /**
+   * Set the page sent for a path.  Any query string is ignored when
+   * matching requests to pages.
+   *
+   * @param path The path, such as "/test/simple.jsp".
+   * @param page The page to send.
+   */
+  public void add(String path, Page page)
+  {
+    pages.put(path, page);
+  }
+
+  /**
+   * Set the page sent for paths with no page of their own.  The default is
+   * a plain 404.
+   *
+   * @param page The page to send.
+   */
+  public void setNotFound(Page page)
+  {
+    not_found = page;
+  }
+
+  /**
+   * Add pages that behave like the test JSPs in <code>wwwtest/test</code>,
+   * which the JSPTest unit tests request.
+   */
+  public void addTestPages()
+  {
+    add("/test/simple.html", new Page(
+      "<!--\n\nDO NOT MODIFY THESE COMMENTS.  THEY ARE USED FOR TESTING.\n\nTEST: filename=simple.html\n\n-->\n\n\n" +
+      "<h2>This is a simple test HTML file</h2>\n"));
+
+    Page simple = new Page(
+      "<!--\n\nDO NOT MODIFY THESE COMMENTS.  THEY ARE USED FOR TESTING.\n\nTEST: filename=simple.jsp\n\n-->\n\n\n" +
+      "<h2>This is a simple test JSP file</h2>\n\nThis file will generate at least one cookie.\n");
+    simple.addCookie("test_name=test_value");
+    add("/test/simple.jsp", simple);
+
+    add("/test/echo.jsp", new Page(
+      "<!--\n\nDO NOT MODIFY THESE COMMENTS.  THEY ARE USED FOR TESTING.\n\nTEST: filename=echo.jsp\n\n" +
+      "NAME=${param.name|null}\n-->\n\n\nThis file will now echo back the value of the request\n" +
+      "parameter called \"name\".\n\n<br>\nHello ${param.name|null}.\n<br>\n"));
+
+    Page cookietest = new Page(
+      "<!--\n\nDO NOT MODIFY THESE COMMENTS.  THEY ARE USED FOR TESTING.\n\nTEST: filename=cookietest.jsp\n\n-->\n\n\n" +
+      "<h2>This is a test of cookie sending from JSPTest Session object</h2>\n");
+    cookietest.addCookie("echo=${cookie.test|no cookies found}");
+    add("/test/cookietest.jsp", cookietest);
+  }
+
+  /**
+   * Start listening, on a thread of its own.
+   *
+   * @throws IOException Thrown if the port can't be listened on.
+   */
+  public synchronized void start() throws IOException
+  {
+    if (server != null) return;
+
+    final ServerSocket ss = new ServerSocket(port, 1024);
+    server = ss;
+
+    Thread acceptor = new Thread("StandInServer "+ss.getLocalPort())
+    {
+      public void run()
+      {
+        while (!ss.isClosed())
+        {
+          try
+          {
+            final Socket socket = ss.accept();
+            connections.incrementAndGet();
+            sockets.addElement(socket);
+            Threads.newThread(new Runnable()
+            {
+              public void run()
+              {
+                serve(socket);
+              }
+            }, "StandInServer connection").start();
+          }
+          catch (IOException iox)
+          {
+            // Closed by stop(), or a failed accept we can't do anything about.
+          }
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * @return port The port being listened on, or -1 if the server hasn't started.
+   */
+  public int getPort()
+  {
+    ServerSocket ss = server;
+    return ss == null ? -1 : ss.getLocalPort();
+  }
+
+  /**
+   * @return requests The number of requests received so far.
+   */
+  public long getRequestCount()
+  {
+    return requests.get();
+  }
+
+  /**
+   * @return connections The number of connections accepted so far.
+   */
+  public long getConnectionCount()
+  {
+    return connections.get();
+  }
+
+  /**
+   * Close every open connection, but carry on listening, as a server does
+   * when it times out idle connections.
+   */
+  public void closeConnections()
+  {
+    Object[] open = sockets.toArray();
+    for (int i=0; i<open.length; i++) close((Socket)open[i]);
+  }
+
+  /**
+   * Stop listening and close every open connection.
+   */
+  public synchronized void stop()
+  {
+    if (server == null) return;
+
+    try
+    {
+      server.close();
+    }
+    catch (IOException iox)
+    {
+      // We're stopping anyway.
+    }
+    server = null;
+
+    Object[] open = sockets.toArray();
+    for (int i=0; i<open.length; i++) close((Socket)open[i]);
+  }
+
+  /**
+   * Answer requests on a connection until the client is done with it.
+   *
+   * @param socket The connection.
+   */
+  private void serve(Socket socket)
+  {
+    try
+    {
+      socket.setTcpNoDelay(true);
+      InputStream in = new BufferedInputStream(socket.getInputStream(), BUFSIZ);
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFSIZ);
+      HeadParser head = new HeadParser();
+
+      // The request line is read as if it were a status line.
+      while (head.parse(in))
+      {
+        HeaderTable headers = head.getHeaders();
+        String line = headers.getStatusLine();
+
+        int sp1 = line.indexOf(' ');
+        int sp2 = line.lastIndexOf(' ');
+        if (sp1 == -1 || sp2 <= sp1) break;
+
+        String method = line.substring(0, sp1);
+        String target = line.substring(sp1+1, sp2);
+        boolean http11 = line.endsWith("HTTP/1.1");
+
+        // Skip any request body.
+        long length = headers.getLong("Content-Length");
+        for (long i=0; i<length; i++)
+        {
+          if (in.read() == -1) return;
+        }
+
+        boolean keep_alive = http11 ? !headers.contains("Connection", "close") : headers.contains("Connection", "keep-alive");
+
+        String path = target;
+        String query = null;
+        int q = target.indexOf('?');
+        if (q != -1)
+        {
+          path = target.substring(0, q);
+          query = target.substring(q+1);
+        }
+
+        Page page = (Page)pages.get(path);
+        if (page == null) page = not_found;
+
+        requests.incrementAndGet();
+        keep_alive = page.write(out, !method.equals("HEAD"), query, headers, http11, keep_alive);
+        out.flush();
+
+        if (!keep_alive) break;
+      }
+    }
+    catch (IOException iox)
+    {
+      // The client went away.
+    }
+    catch (InterruptedException ix)
+    {
+      // Stopped while dripping out a body.
+    }
+    finally
+    {
+      close(socket);
+    }
+  }
+
+  private void close(Socket socket)
+  {
+    sockets.removeElement(socket);
+
+    // A thread blocked reading the socket would hold off the close, and
+    // could still read a request, so shut it down first.
+    try
+    {
+      socket.shutdownInput();
+      socket.shutdownOutput();
+    }
+    catch (IOException iox)
+    {
+      // Closed already, or half closed by the client.
+    }
+
+    try
+    {
+      socket.close();
+    }
+    catch (IOException iox)
+    {
+      // Already done with it.
+    }
+  }
+
+
+  /**
+   * What to send back for a path.
+   * <p>
+   * A page is set up before the server starts, and shouldn't be changed
+   * once requests are being answered.
+   */
+  public static class Page
+  {
+    private String version = "HTTP/1.1";
+    private int status;
+    private String reason;
+    private String body;
+    private boolean keep_alive = true;
+    private Vector headers = new Vector(); // String[] { name, value }
+    private Vector cookies = new Vector(); // Set-Cookie values, which may have ${...} in them
+
+    private int body_size = -1;
+    private int chunk_size = 0;
+    private boolean compressible = false;
+    private int drip_bytes = 0;
+    private long drip_millis = 0;
+
+    /** The body bytes, and compressed, when the body has no ${...} in it. */
+    private volatile byte[] plain;
+    private volatile byte[] gzipped;
+
+    /**
+     * A 200 OK page.
+     *
+     * @param body The body, which may include <code>${param.name}</code>
+     * and <code>${cookie.name}</code>.
+     */
+    public Page(String body)
+    {
+      this(200, "OK", body);
+    }
+
+    /**
+     * @param status The status code.
+     * @param reason The reason phrase, such as "Not Found".
+     * @param body The body, which may include <code>${param.name}</code>
+     * and <code>${cookie.name}</code>.
+     */
+    public Page(int status, String reason, String body)
+    {
+      this.status = status;
+      this.reason = reason;
+      this.body = body;
+    }
+
+    /**
+     * Add a header to send.  If no Content-Type is added, the page is sent
+     * as "text/html".
+     *
+     * @param name The header name.
+     * @param value The header value.
+     */
+    public void addHeader(String name, String value)
+    {
+      headers.addElement(new String[] { name, value });
+    }
+
+    /**
+     * Add a cookie to set, sent as a Set-Cookie header.
+     *
+     * @param set_cookie The Set-Cookie value, such as "name=value; path=/",
+     * which may include <code>${param.name}</code> and <code>${cookie.name}</code>.
+     */
+    public void addCookie(String set_cookie)
+    {
+      cookies.addElement(set_cookie);
+    }
+
+    /**
+     * Close the connection after sending the page (with a "Connection: close"
+     * header) even if the client asked to keep it alive.
+     *
+     * @param keep_alive False to close the connection.
+     */
+    public void setKeepAlive(boolean keep_alive)
+    {
+      this.keep_alive = keep_alive;
+    }
+
+    /**
+     * Answer as a server of another HTTP version.  An "HTTP/1.0" answer has
+     * no Connection header, so the connection is closed after it.
+     *
+     * @param version The version in the status line, such as "HTTP/1.0".
+     */
+    public void setVersion(String version)
+    {
+      this.version = version;
+    }
+
+    /**
+     * Pad the body out to a size, with spaces after the body text, to test
+     * bodies of different sizes.
+     *
+     * @param bytes The size of the body, before any compression.
+     */
+    public void setBodySize(int bytes)
+    {
+      body_size = bytes;
+    }
+
+    /**
+     * Send the body with chunked transfer coding, to HTTP/1.1 clients.
+     *
+     * @param bytes The size of each chunk, or zero to send a Content-Length instead.
+     */
+    public void setChunkSize(int bytes)
+    {
+      chunk_size = bytes;
+    }
+
+    /**
+     * Send the body gzip compressed to clients that accept it.
+     *
+     * @param compressible True to compress.
+     */
+    public void setCompressible(boolean compressible)
+    {
+      this.compressible = compressible;
+    }
+
+    /**
+     * Send the body a bit at a time, like a slow server or network.
+     *
+     * @param bytes How many bytes to send at a time (the chunk size, if chunked).
+     * @param millis How long to wait after each lot, in milliseconds.
+     */
+    public void setDrip(int bytes, long millis)
+    {
+      drip_bytes = bytes;
+      drip_millis = millis;
+    }
+
+    /**
+     * Write the response for a request.
+     *
+     * @return keep_alive True if the connection stays open for another request.
+     */
+    private boolean write(OutputStream out, boolean send_body, String query, HeaderTable request, boolean http11, boolean keep_alive)
+      throws IOException, InterruptedException
+    {
+      boolean old = !version.equals("HTTP/1.1");
+      keep_alive = keep_alive && this.keep_alive && !old;
+
+      boolean templated = body.indexOf("${") != -1;
+      Hashtable params = templated || hasTemplates(cookies) ? parseQuery(query) : null;
+      Hashtable sent_cookies = params != null ? parseCookies(request) : null;
+
+      boolean gzip = compressible && request.contains("Accept-Encoding", "gzip");
+      byte[] content = templated ? encode(expand(body, params, sent_cookies), gzip) : getBytes(gzip);
+
+      // A conditional request for a page the client already has.
+      int code = status;
+      String phrase = reason;
+      if (status == 200 && isNotModified(request))
+      {
+        code = 304;
+        phrase = "Not Modified";
+      }
+
+      boolean no_body = code == 204 || code == 304 || (code >= 100 && code < 200);
+      boolean chunked = chunk_size > 0 && http11 && !no_body;
+
+      StringBuffer head = new StringBuffer(256);
+      head.append(version).append(' ').append(code).append(' ').append(phrase).append("\r\n");
+
+      boolean typed = false;
+      for (int i=0; i<headers.size(); i++)
+      {
+        String[] h = (String[])headers.elementAt(i);
+        typed = typed || h[0].equalsIgnoreCase("Content-Type");
+        head.append(h[0]).append(": ").append(h[1]).append("\r\n");
+      }
+      if (!typed) head.append("Content-Type: text/html\r\n");
+
+      for (int i=0; i<cookies.size(); i++)
+        head.append("Set-Cookie: ").append(expand((String)cookies.elementAt(i), params, sent_cookies)).append("\r\n");
+
+      if (gzip) head.append("Content-Encoding: gzip\r\n");
+      if (chunked)
+        head.append("Transfer-Encoding: chunked\r\n");
+      else if (!no_body)
+        head.append("Content-Length: ").append(content.length).append("\r\n");
+
+      // An HTTP/1.0 answer without a Connection header is closed after it.
+      if (!keep_alive && !old) head.append("Connection: close\r\n");
+      else if (keep_alive && !http11) head.append("Connection: keep-alive\r\n");
+      head.append("\r\n");
+
+      out.write(head.toString().getBytes("ISO-8859-1"));
+      if (!send_body || no_body) return keep_alive;
+
+      int piece = content.length;
+      if (drip_bytes > 0) piece = drip_bytes;
+      else if (chunked) piece = chunk_size;
+
+      for (int off=0; off<content.length; off+=piece)
+      {
+        int n = Math.min(piece, content.length - off);
+        if (chunked) out.write((Integer.toHexString(n)+"\r\n").getBytes("ISO-8859-1"));
+        out.write(content, off, n);
+        if (chunked) out.write(CRLF);
+
+        if (drip_millis > 0)
+        {
+          out.flush();
+          Thread.sleep(drip_millis);
+        }
+      }
+
+      if (chunked) out.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+      return keep_alive;
+    }
+
+    /**
+     * A page with an ETag or Last-Modified header hasn't changed if the
+     * request says it has the same one.
+     *
+     * @param request The request headers.
+     * @return not_modified True if the client's copy of the page is current.
+     */
+    private boolean isNotModified(HeaderTable request)
+    {
+      String if_none_match = request.get("If-None-Match");
+      if (if_none_match != null)
+      {
+        String etag = getHeader("ETag");
+        return etag != null && (if_none_match.trim().equals("*") || if_none_match.indexOf(etag) != -1);
+      }
+
+      String since = request.get("If-Modified-Since");
+      return since != null && since.equals(getHeader("Last-Modified"));
+    }
+
+    /**
+     * @return value The first value of a header added to the page, or null.
+     */
+    private String getHeader(String name)
+    {
+      for (int i=0; i<headers.size(); i++)
+      {
+        String[] h = (String[])headers.elementAt(i);
+        if (h[0].equalsIgnoreCase(name)) return h[1];
+      }
+      return null;
+    }
+
+    /**
+     * The body of a page without parameters, built once.
+     */
+    private byte[] getBytes(boolean gzip) throws IOException
+    {
+      if (gzip)
+      {
+        if (gzipped == null) gzipped = encode(body, true);
+        return gzipped;
+      }
+
+      if (plain == null) plain = encode(body, false);
+      return plain;
+    }
+
+    /**
+     * Pad and, if asked, compress a body.
+     */
+    private byte[] encode(String text, boolean gzip) throws IOException
+    {
+      byte[] b = text.getBytes("ISO-8859-1");
+      if (body_size > b.length)
+      {
+        byte[] padded = new byte[body_size];
+        System.arraycopy(b, 0, padded, 0, b.length);
+        java.util.Arrays.fill(padded, b.length, body_size, (byte)' ');
+        b = padded;
+      }
+
+      if (!gzip) return b;
+
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(b.length / 4 + 64);
+      GZIPOutputStream out = new GZIPOutputStream(compressed);
+      out.write(b);
+      out.close();
+      return compressed.toByteArray();
+    }
+
+    private static boolean hasTemplates(Vector v)
+    {
+      for (int i=0; i<v.size(); i++)
+      {
+        if (((String)v.elementAt(i)).indexOf("${") != -1) return true;
+      }
+      return false;
+    }
+
+    /**
+     * Replace each <code>${param.name|default}</code> and
+     * <code>${cookie.name|default}</code> in some text.
+     */
+    private static String expand(String text, Hashtable params, Hashtable cookies)
+    {
+      int start = text.indexOf("${");
+      if (start == -1) return text;
+
+      StringBuffer result = new StringBuffer(text.length() + 32);
+      int from = 0;
+      while (start != -1)
+      {
+        int end = text.indexOf('}', start);
+        if (end == -1) break;
+
+        result.append(text.substring(from, start));
+
+        String name = text.substring(start+2, end);
+        String fallback = "";
+        int bar = name.indexOf('|');
+        if (bar != -1)
+        {
+          fallback = name.substring(bar+1);
+          name = name.substring(0, bar);
+        }
+
+        String value = null;
+        if (name.startsWith("param.")) value = (String)params.get(name.substring(6));
+        else if (name.startsWith("cookie.")) value = (String)cookies.get(name.substring(7));
+        result.append(value == null ? fallback : value);
+
+        from = end + 1;
+        start = text.indexOf("${", from);
+      }
+
+      result.append(text.substring(from));
+      return result.toString();
+    }
+
+    /**
+     * @return params The query parameters, name to (first) value.
+     */
+    private static Hashtable parseQuery(String query) throws UnsupportedEncodingException
+    {
+      Hashtable params = new Hashtable();
+      if (query == null) return params;
+
+      int from = 0;
+      while (from <= query.length())
+      {
+        int amp = query.indexOf('&', from);
+        if (amp == -1) amp = query.length();
+
+        String pair = query.substring(from, amp);
+        int eq = pair.indexOf('=');
+        String name = URLDecoder.decode(eq == -1 ? pair : pair.substring(0, eq), "UTF-8");
+        String value = eq == -1 ? "" : URLDecoder.decode(pair.substring(eq+1), "UTF-8");
+        if (name.length() > 0 && !params.containsKey(name)) params.put(name, value);
+
+        from = amp + 1;
+      }
+      return params;
+    }
+
+    /**
+     * @return cookies The cookies sent with a request, name to value.
+     */
+    private static Hashtable parseCookies(HeaderTable request)
+    {
+      Hashtable cookies = new Hashtable();
+
+      Vector lines = request.getAll("Cookie");
+      if (lines == null) return cookies;
+
+      for (int l=0; l<lines.size(); l++)
+      {
+        String line = (String)lines.elementAt(l);
+        int from = 0;
+        while (from < line.length())
+        {
+          int semi = line.indexOf(';', from);
+          if (semi == -1) semi = line.length();
+
+          String pair = line.substring(from, semi).trim();
+          int eq = pair.indexOf('=');
+          if (eq > 0 && !cookies.containsKey(pair.substring(0, eq).trim()))
+            cookies.put(pair.substring(0, eq).trim(), pair.substring(eq+1).trim());
+
+          from = semi + 1;
+        }
+      }
+      return cookies;
+    }
+  }
+
+}
@@ -0,0 +1,139 @@
+package com.dallaway.jsptest;
+
+import java.util.Hashtable;
+import java.util.Enumeration;
+import junit.framework.TestResult;
+
+/**
+ * The results of a <code>ParallelRunner</code> run: the JUnit result, and how
+ * long each test took, so the slow pages stand out.
+ *
+ * <p>
+ * Tests are named as JUnit names them, e.g., "testBasket(CheckoutTest)".
+ * A test's time is its wall time, including any wait for a turn at its host.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+public class SuiteReport
+{
+
+  /** How many of the slowest tests <code>toString()</code> lists. */
+  private static final int SLOWEST = 10;
+
+  private TestResult result;
+  private Hashtable times = new Hashtable(); // test name -> Long nanoseconds
+  private LatencyStats all = new LatencyStats();
+  private long elapsed = 0;  // nanoseconds
+
+  /**
+   * @param result Where the failures and errors of the run are collected.
+   */
+  SuiteReport(TestResult result)
+  {
+    this.result = result;
+  }
+
+  /**
+   * Record how long a test took.
+   *
+   * @param test The test's name.
+   * @param nanos Its wall time.
+   */
+  synchronized void timed(String test, long nanos)
+  {
+    // A test added to a suite twice is reported by its total time.
+    Long before = (Long)times.get(test);
+    times.put(test, Long.valueOf(before == null ? nanos : before.longValue() + nanos));
+    all.add(nanos);
+  }
+
+  /**
+   * @param nanos How long the run took.
+   */
+  synchronized void setElapsed(long nanos)
+  {
+    elapsed = nanos;
+  }
+
+  /**
+   * @return result The JUnit result, with the failures and errors.
+   */
+  public TestResult getResult()
+  {
+    return result;
+  }
+
+  /**
+   * @return successful True if every test passed.
+   */
+  public boolean wasSuccessful()
+  {
+    return result.wasSuccessful();
+  }
+
+  /**
+   * @return millis How long the run took, in milliseconds.
+   */
+  public synchronized long getElapsedMillis()
+  {
+    return elapsed / 1000000;
+  }
+
+  /**
+   * @return stats The wall times of all the tests.
+   */
+  public LatencyStats getStats()
+  {
+    return all;
+  }
+
+  /**
+   * @return tests The names of the tests run, slowest first.
+   */
+  public synchronized String[] getTests()
+  {
+    final String[] tests = new String[times.size()];
+    Enumeration e = times.keys();
+    for (int i=0; e.hasMoreElements(); i++) tests[i] = (String)e.nextElement();
+
+    java.util.Arrays.sort(tests, (a, b) -> Long.compare(getNanos(b), getNanos(a)));
+    return tests;
+  }
+
+  /**
+   * @param test The test's name.
+   * @return millis How long the test took, in milliseconds, or -1 if it wasn't run.
+   */
+  public synchronized long getMillis(String test)
+  {
+    long nanos = getNanos(test);
+    return nanos == -1 ? -1 : nanos / 1000000;
+  }
+
+  private long getNanos(String test)
+  {
+    Long nanos = (Long)times.get(test);
+    return nanos == null ? -1 : nanos.longValue();
+  }
+
+  /**
+   * @return report A readable summary of the run, with the slowest tests.
+   */
+  public String toString()
+  {
+    StringBuffer b = new StringBuffer();
+    b.append("Tests: ").append(result.runCount());
+    b.append("  Failures: ").append(result.failureCount());
+    b.append("  Errors: ").append(result.errorCount());
+    b.append("  Time: ").append(getElapsedMillis()).append("ms\n");
+    b.append("All: ").append(all).append('\n');
+
+    String[] tests = getTests();
+    for (int i=0; i<tests.length && i<SLOWEST; i++)
+      b.append(getMillis(tests[i])).append("ms ").append(tests[i]).append('\n');
+
+    return b.toString();
+  }
+
+}
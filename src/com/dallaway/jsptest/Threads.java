@@ -0,0 +1,79 @@
+package com.dallaway.jsptest;
+
+import java.lang.reflect.Method;
+
+/**
+ * Makes threads for running many blocking users or connections at once.
+ *
+ * <p>
+ * On a Java runtime with virtual threads (Java 21 onwards) we use them, as
+ * they cost next to nothing while blocked on the network.  Otherwise we fall
+ * back to ordinary daemon threads.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+class Threads
+{
+
+  /** Thread.ofVirtual(), or null if this runtime doesn't have virtual threads. */
+  private static Method of_virtual;
+
+  /** Thread.Builder.unstarted(Runnable), to go with of_virtual. */
+  private static Method unstarted;
+
+  static
+  {
+    try
+    {
+      of_virtual = Thread.class.getMethod("ofVirtual", new Class[0]);
+      unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", new Class[] { Runnable.class });
+    }
+    catch (Exception x)
+    {
+      of_virtual = null;
+    }
+  }
+
+  /**
+   * @return virtual True if threads made here are virtual threads.
+   */
+  static boolean isVirtual()
+  {
+    return of_virtual != null;
+  }
+
+  /**
+   * Make a new thread, which has not been started.
+   *
+   * @param task What the thread should run.
+   * @param name The name for the thread.
+   * @return thread The new thread.
+   */
+  static Thread newThread(Runnable task, String name)
+  {
+    Thread thread = null;
+
+    if (of_virtual != null)
+    {
+      try
+      {
+        thread = (Thread)unstarted.invoke(of_virtual.invoke(null, new Object[0]), new Object[] { task });
+      }
+      catch (Exception x)
+      {
+        thread = null;
+      }
+    }
+
+    if (thread == null)
+    {
+      thread = new Thread(task);
+      thread.setDaemon(true);
+    }
+
+    thread.setName(name);
+    return thread;
+  }
+
+}
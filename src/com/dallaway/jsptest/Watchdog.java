@@ -0,0 +1,55 @@
+package com.dallaway.jsptest;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single thread, shared by every session in the JVM, that stops requests
+ * which have run past their deadline.
+ *
+ * <p>
+ * Most requests finish in time, so their tasks are cancelled, and taken off
+ * the queue, long before they are due.
+ *
+ * @author  $Author$
+ * @version $Revision$  $Date$
+ */
+class Watchdog
+{
+
+  private static ScheduledThreadPoolExecutor timer;
+
+  /**
+   * Run a task after a delay.
+   *
+   * @param task What to run.
+   * @param millis How long to wait, in milliseconds.
+   * @return future Cancel this if the task is no longer needed.
+   */
+  static ScheduledFuture schedule(Runnable task, long millis)
+  {
+    return getTimer().schedule(task, millis, TimeUnit.MILLISECONDS);
+  }
+
+  private static synchronized ScheduledThreadPoolExecutor getTimer()
+  {
+    if (timer == null)
+    {
+      timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+      {
+        public Thread newThread(Runnable r)
+        {
+          Thread thread = new Thread(r, "jsptest-watchdog");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      timer.setRemoveOnCancelPolicy(true);
+    }
+
+    return timer;
+  }
+
+}